@@ -0,0 +1,60 @@
+package com.lyc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment handoff between a range reader (the benchmark thread) and its writer thread,
+ * without any real io on either side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DownloadBufferBenchmark {
+    @Param({"4096", "65536"})
+    int bufferSize;
+
+    private DownloadBuffer downloadBuffer;
+    private Thread writer;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        DownloadBuffer downloadBuffer = new DownloadBuffer(bufferSize);
+        this.downloadBuffer = downloadBuffer;
+        writer = new Thread(() -> {
+            Segment segment;
+            try {
+                while ((segment = downloadBuffer.availableReadSegment()) != null) {
+                    downloadBuffer.enqueueWriteSegment(segment);
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }, "Bench-Write");
+        writer.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        downloadBuffer.stop();
+        writer.join();
+    }
+
+    @Benchmark
+    public Segment handoff() throws InterruptedException {
+        Segment segment = downloadBuffer.availableWriteSegment();
+        segment.readSize = bufferSize;
+        downloadBuffer.enqueueReadSegment(segment);
+        return segment;
+    }
+}
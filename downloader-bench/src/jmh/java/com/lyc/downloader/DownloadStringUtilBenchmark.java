@@ -0,0 +1,39 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.DownloadStringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filename decisions made for every new task, and speed formatting done for every progress update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DownloadStringUtilBenchmark {
+    private String url = "https://download.example.com/releases/2019/07/some%20app_v4.6.21.50011.exe"
+            + "?key=4978092c5535384bfbb2ead8fed57be6&tmp=1556028679291";
+    private String contentDisposition = "attachment; filename=%E4%B8%8B%E8%BD%BD%E5%99%A8.apk";
+    private double bps = 3.7 * 1024 * 1024;
+
+    @Benchmark
+    public String parseFilenameFromUrl() {
+        return DownloadStringUtil.parseFilenameFromUrl(url);
+    }
+
+    @Benchmark
+    public String parseFilenameFromContentDisposition() {
+        return DownloadStringUtil.parseFilenameFromContentDisposition(contentDisposition);
+    }
+
+    @Benchmark
+    public String bpsToString() {
+        return DownloadStringUtil.bpsToString(bps);
+    }
+}
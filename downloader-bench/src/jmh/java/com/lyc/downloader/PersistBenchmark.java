@@ -0,0 +1,159 @@
+package com.lyc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One progress checkpoint of a task, as GreenDaoDownloadStore#persist writes it: in one
+ * transaction, update the task row, load its range rows and update each of them. greenDAO
+ * needs android.database, so its statements are replayed through sqlite-jdbc on the same
+ * tables in an in-memory database; this is the SQL cost of a checkpoint without any fsync.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistBenchmark {
+    // tasks in the table, so that lookups are not on a tiny b-tree
+    private static final int TASKS = 1000;
+
+    @Param({"1", "4", "16"})
+    int ranges;
+
+    private Connection connection;
+    private PreparedStatement updateInfo;
+    private PreparedStatement selectRanges;
+    private PreparedStatement updateRange;
+    private long createdTime;
+    private long taskId;
+    private long[] rangeIds;
+    private long downloaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            // the tables and indexes greenDAO and DownloadQuerySql create
+            statement.execute("CREATE TABLE \"DOWNLOAD_INFO\" (\"_id\" INTEGER PRIMARY KEY AUTOINCREMENT ,"
+                    + "\"URL\" TEXT NOT NULL ,\"PATH\" TEXT NOT NULL ,\"FILENAME\" TEXT,"
+                    + "\"RESUMABLE\" INTEGER NOT NULL ,\"DOWNLOAD_ITEM_STATE\" INTEGER NOT NULL ,"
+                    + "\"downloaded_size\" INTEGER NOT NULL ,\"total_size\" INTEGER NOT NULL ,"
+                    + "\"last_modified\" TEXT,\"created_time\" INTEGER,\"finished_time\" INTEGER,\"error_msg\" INTEGER)");
+            statement.execute("CREATE INDEX IDX_DOWNLOAD_INFO_URL_DESC ON \"DOWNLOAD_INFO\" (\"URL\" DESC)");
+            statement.execute("CREATE INDEX IDX_DOWNLOAD_INFO_STATE_CREATED ON \"DOWNLOAD_INFO\""
+                    + " (\"DOWNLOAD_ITEM_STATE\", \"created_time\", \"_id\")");
+            statement.execute("CREATE TABLE \"DOWNLOAD_THREAD_INFO\" (\"_id\" INTEGER PRIMARY KEY AUTOINCREMENT ,"
+                    + "\"TID\" INTEGER NOT NULL ,\"start_position\" INTEGER NOT NULL ,"
+                    + "\"downloaded_size\" INTEGER NOT NULL ,\"total_size\" INTEGER NOT NULL ,"
+                    + "\"download_info_id\" INTEGER NOT NULL )");
+        }
+        connection.setAutoCommit(false);
+        try (PreparedStatement insertInfo = connection.prepareStatement("INSERT INTO DOWNLOAD_INFO"
+                + " (URL, PATH, FILENAME, RESUMABLE, DOWNLOAD_ITEM_STATE, downloaded_size, total_size, created_time)"
+                + " VALUES (?, '/sdcard/Download', ?, 1, 3, 0, 1073741824, ?)", Statement.RETURN_GENERATED_KEYS);
+             PreparedStatement insertRange = connection.prepareStatement("INSERT INTO DOWNLOAD_THREAD_INFO"
+                     + " (TID, start_position, downloaded_size, total_size, download_info_id) VALUES (?, ?, 0, ?, ?)",
+                     Statement.RETURN_GENERATED_KEYS)) {
+            long rangeSize = (1L << 30) / ranges;
+            createdTime = System.currentTimeMillis();
+            rangeIds = new long[ranges];
+            for (int i = 0; i < TASKS; i++) {
+                insertInfo.setString(1, "https://example.com/files/" + i);
+                insertInfo.setString(2, "file" + i);
+                insertInfo.setLong(3, createdTime);
+                insertInfo.executeUpdate();
+                taskId = generatedKey(insertInfo);
+                for (int tid = 0; tid < ranges; tid++) {
+                    insertRange.setInt(1, tid);
+                    insertRange.setLong(2, tid * rangeSize);
+                    insertRange.setLong(3, rangeSize);
+                    insertRange.setLong(4, taskId);
+                    insertRange.executeUpdate();
+                    rangeIds[tid] = generatedKey(insertRange);
+                }
+            }
+        }
+        connection.commit();
+        // greenDAO updates every column of the entity
+        updateInfo = connection.prepareStatement("UPDATE \"DOWNLOAD_INFO\" SET \"_id\"=?,\"URL\"=?,\"PATH\"=?,"
+                + "\"FILENAME\"=?,\"RESUMABLE\"=?,\"DOWNLOAD_ITEM_STATE\"=?,\"downloaded_size\"=?,\"total_size\"=?,"
+                + "\"last_modified\"=?,\"created_time\"=?,\"finished_time\"=?,\"error_msg\"=? WHERE \"_id\"=?");
+        selectRanges = connection.prepareStatement("SELECT T.\"_id\",T.\"TID\",T.\"start_position\","
+                + "T.\"downloaded_size\",T.\"total_size\",T.\"download_info_id\" FROM \"DOWNLOAD_THREAD_INFO\" T"
+                + " WHERE T.\"download_info_id\" = ?");
+        updateRange = connection.prepareStatement("UPDATE \"DOWNLOAD_THREAD_INFO\" SET \"_id\"=?,\"TID\"=?,"
+                + "\"start_position\"=?,\"downloaded_size\"=?,\"total_size\"=?,\"download_info_id\"=? WHERE \"_id\"=?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    /**
+     * @return ranges read back, so the query is not dead code
+     */
+    @Benchmark
+    public int checkpoint() throws SQLException {
+        downloaded += 65536;
+        long rangeSize = (1L << 30) / ranges;
+        updateInfo.setLong(1, taskId);
+        updateInfo.setString(2, "https://example.com/files/" + (TASKS - 1));
+        updateInfo.setString(3, "/sdcard/Download");
+        updateInfo.setString(4, "file" + (TASKS - 1));
+        updateInfo.setInt(5, 1);
+        updateInfo.setInt(6, 3);
+        updateInfo.setLong(7, downloaded * ranges);
+        updateInfo.setLong(8, 1L << 30);
+        updateInfo.setNull(9, Types.VARCHAR);
+        updateInfo.setLong(10, createdTime);
+        updateInfo.setNull(11, Types.INTEGER);
+        updateInfo.setNull(12, Types.INTEGER);
+        updateInfo.setLong(13, taskId);
+        updateInfo.executeUpdate();
+
+        int loaded = 0;
+        selectRanges.setLong(1, taskId);
+        try (ResultSet resultSet = selectRanges.executeQuery()) {
+            while (resultSet.next()) {
+                loaded++;
+            }
+        }
+
+        for (int tid = 0; tid < ranges; tid++) {
+            updateRange.setLong(1, rangeIds[tid]);
+            updateRange.setInt(2, tid);
+            updateRange.setLong(3, tid * rangeSize);
+            updateRange.setLong(4, downloaded);
+            updateRange.setLong(5, rangeSize);
+            updateRange.setLong(6, taskId);
+            updateRange.setLong(7, rangeIds[tid]);
+            updateRange.executeUpdate();
+        }
+        connection.commit();
+        return loaded;
+    }
+
+    private static long generatedKey(Statement statement) throws SQLException {
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            keys.next();
+            return keys.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.lyc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One tick of {@link ProgressSampler} over all running tasks: read every counter, update the
+ * EWMA speed and ETA and hand the batch to the listener. The sampler runs this every
+ * {@link ProgressSampler#SAMPLE_INTERVAL_MILLIS}, so the score divided by that interval is
+ * the share of the scheduler thread it takes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProgressSamplerBenchmark {
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(ProgressSampler.SAMPLE_INTERVAL_MILLIS);
+
+    @Param({"1", "16", "256"})
+    int tasks;
+
+    private ProgressSampler sampler;
+    private Counter[] counters;
+    private long now;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        // progress is left to the group commit, as with DURABILITY_BEFORE_CHECKPOINT
+        sampler = new ProgressSampler(scheduler, Runnable::run,
+                progresses -> this.blackhole.consume(progresses), false);
+        counters = new Counter[tasks];
+        for (int i = 0; i < tasks; i++) {
+            counters[i] = new Counter(i);
+            sampler.add(counters[i]);
+        }
+        // only the benchmark samples
+        scheduler.shutdownNow();
+        now = System.nanoTime();
+    }
+
+    @Benchmark
+    public void sampleAll() {
+        for (Counter counter : counters) {
+            counter.size += 65536;
+        }
+        now += INTERVAL_NANOS;
+        sampler.sampleAll(now);
+    }
+
+    private static class Counter implements ProgressSampler.Source {
+        private final long id;
+        volatile long size;
+
+        Counter(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+
+        @Override
+        public long downloadedSize() {
+            return size;
+        }
+
+        @Override
+        public long totalSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public void persistProgress() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.UniqueDequeue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue operations of DownloadManager's running/waiting/paused id queues.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UniqueDequeueBenchmark {
+    @Param({"16", "1024"})
+    int size;
+
+    private UniqueDequeue<Long> dequeue;
+    private long next;
+
+    @Setup
+    public void setUp() {
+        dequeue = new UniqueDequeue<>();
+        for (long id = 0; id < size; id++) {
+            dequeue.offer(id);
+        }
+        next = size;
+    }
+
+    /**
+     * schedule(): the head leaves, a new id joins the tail
+     */
+    @Benchmark
+    public Long offerPoll() {
+        dequeue.offer(next++);
+        return dequeue.pollFirst();
+    }
+
+    /**
+     * a duplicated enqueue is rejected
+     */
+    @Benchmark
+    public boolean offerDuplicate() {
+        return dequeue.offer(dequeue.peekLast());
+    }
+
+    /**
+     * pause/cancel of a task in the middle of the queue
+     */
+    @Benchmark
+    public boolean removeMiddle() {
+        Long id = next - size / 2 - 1;
+        boolean removed = dequeue.remove(id);
+        dequeue.offer(id);
+        return removed;
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return dequeue.contains(next - size / 2 - 1);
+    }
+}
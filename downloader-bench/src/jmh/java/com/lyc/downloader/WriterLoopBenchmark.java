@@ -0,0 +1,86 @@
+package com.lyc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer loop of one range: segments of network read size go to the file through each
+ * file engine. "direct" is one RandomAccessFile write per segment, as before coalescing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriterLoopBenchmark {
+    private static final int RANGE_SIZE = 8 << 20;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int COALESCE_SIZE = 1 << 18;
+
+    @Param({"coalescing", "direct"})
+    String engine;
+
+    // typical socket read sizes
+    @Param({"1460", "8192", "65536"})
+    int segmentSize;
+
+    private File file;
+    private byte[] segment;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        file = File.createTempFile("writer-loop", Constants.TMP_FILE_SUFFIX);
+        segment = new byte[segmentSize];
+        for (int i = 0; i < segmentSize; i++) {
+            segment[i] = (byte) i;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * @return bytes on disk
+     */
+    @Benchmark
+    public long writeRange() throws IOException {
+        return "direct".equals(engine) ? writeDirect() : writeCoalescing();
+    }
+
+    private long writeCoalescing() throws IOException {
+        long written = 0;
+        try (CoalescingFileWriter writer = new CoalescingFileWriter(file, 0, BLOCK_SIZE, COALESCE_SIZE)) {
+            for (int left = RANGE_SIZE; left > 0; left -= segmentSize) {
+                written += writer.write(segment, 0, Math.min(left, segmentSize));
+            }
+            written += writer.flush();
+        }
+        return written;
+    }
+
+    private long writeDirect() throws IOException {
+        long written = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (int left = RANGE_SIZE; left > 0; left -= segmentSize) {
+                int size = Math.min(left, segmentSize);
+                raf.write(segment, 0, size);
+                written += size;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,120 @@
+package com.lyc.downloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Merges the small reads of one range into large writes that end on a block boundary.
+ * Bytes kept in the buffer are not on disk yet, so callers should only count
+ * the value returned by {@link #write(byte[], int, int)} and {@link #flush()} as downloaded.
+ * Not thread safe: one writer per range.
+ */
+class CoalescingFileWriter implements Closeable {
+    private final RandomAccessFile raf;
+    private final int blockSize;
+    private final byte[] buffer;
+    private int buffered;
+    // file position of buffer[0]
+    private long position;
+    // sizes handed to this writer
+    final WriteSizeHistogram incoming = new WriteSizeHistogram();
+    // sizes actually written to the file
+    final WriteSizeHistogram written = new WriteSizeHistogram();
+
+    /**
+     * @param capacity rounded down to a multiple of blockSize, at least one block
+     */
+    CoalescingFileWriter(File file, long position, int blockSize, int capacity) throws IOException {
+        this.blockSize = blockSize;
+        this.position = position;
+        this.buffer = new byte[Math.max(blockSize, capacity / blockSize * blockSize)];
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return bytes written to the file by this call
+     */
+    int write(byte[] b, int off, int len) throws IOException {
+        incoming.record(len);
+        int flushed = 0;
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+            if (buffered == buffer.length) {
+                flushed += flushAligned();
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * @return true if writing len more bytes will hit the file
+     */
+    boolean willWrite(int len) {
+        return buffered + len >= buffer.length;
+    }
+
+    /**
+     * Write everything buffered, aligned or not.
+     *
+     * @return bytes written to the file by this call
+     */
+    int flush() throws IOException {
+        int size = buffered;
+        if (size > 0) {
+            writeOut(size);
+        }
+        return size;
+    }
+
+    /**
+     * Force what has been written so far to the storage device.
+     * May be called from another thread while this writer is in use.
+     */
+    void force() throws IOException {
+        raf.getChannel().force(false);
+    }
+
+    int buffered() {
+        return buffered;
+    }
+
+    private int flushAligned() throws IOException {
+        long end = position + buffered;
+        int size = (int) (end - end % blockSize - position);
+        if (size <= 0) {
+            return 0;
+        }
+        writeOut(size);
+        return size;
+    }
+
+    private void writeOut(int size) throws IOException {
+        raf.write(buffer, 0, size);
+        written.record(size);
+        position += size;
+        buffered -= size;
+        if (buffered > 0) {
+            System.arraycopy(buffer, size, buffer, 0, buffered);
+        }
+    }
+
+    /**
+     * Does not flush; call {@link #flush()} first if buffered bytes should be kept.
+     */
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,130 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write state of one mounted volume shared by all tasks saving to it:
+ * a writer budget, the current queue depth and the measured write bandwidth.
+ */
+class DiskVolume {
+    // weight of the newest sample
+    private static final double EWMA_ALPHA = 0.3;
+    // stop admitting when incoming bytes reach this part of what the disk absorbs
+    private static final double SATURATION_RATIO = 0.9;
+
+    final String mountPoint;
+    private final int writeConcurrency;
+    private final Semaphore writePermits;
+    // writers waiting for or holding a permit
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong ingressBytes = new AtomicLong();
+    private long lastSampleNanos = System.nanoTime();
+    // bytes/s the disk absorbed while busy; -1 until measured
+    private volatile double writeBps = -1;
+    // bytes/s handed to writers of this volume
+    private volatile double ingressBps;
+    private volatile int lastPeakQueueDepth;
+
+    DiskVolume(String mountPoint, int writeConcurrency) {
+        this.mountPoint = mountPoint;
+        this.writeConcurrency = Math.max(1, writeConcurrency);
+        this.writePermits = new Semaphore(this.writeConcurrency, true);
+    }
+
+    /**
+     * Block until this volume's writer budget allows one more write.
+     * Always pair with {@link #endWrite(long, long)}.
+     */
+    void beginWrite() {
+        int depth = queueDepth.incrementAndGet();
+        int peak;
+        while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+            // retry
+        }
+        writePermits.acquireUninterruptibly();
+    }
+
+    void endWrite(long bytes, long nanos) {
+        writePermits.release();
+        queueDepth.decrementAndGet();
+        writtenBytes.addAndGet(bytes);
+        busyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Time spent forcing a file of this volume; counts as busy time.
+     */
+    void recordForce(long nanos) {
+        busyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Bytes received from network for a file of this volume.
+     */
+    void recordIngress(long bytes) {
+        ingressBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called periodically by {@link DiskVolumeScheduler} only.
+     */
+    void sample(long nowNanos) {
+        long elapsed = nowNanos - lastSampleNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastSampleNanos = nowNanos;
+        long bytes = writtenBytes.getAndSet(0);
+        long busy = busyNanos.getAndSet(0);
+        long ingress = ingressBytes.getAndSet(0);
+        lastPeakQueueDepth = peakQueueDepth.getAndSet(queueDepth.get());
+
+        ingressBps = ewma(ingressBps, ingress * 1e9 / elapsed);
+        if (bytes > 0 && busy > 0) {
+            double bps = bytes * 1e9 / busy;
+            writeBps = writeBps < 0 ? bps : ewma(writeBps, bps);
+        }
+    }
+
+    private static double ewma(double old, double sample) {
+        return old + EWMA_ALPHA * (sample - old);
+    }
+
+    /**
+     * @return true if this volume cannot absorb the throughput of another task
+     */
+    boolean isSaturated() {
+        if (lastPeakQueueDepth > writeConcurrency) {
+            // writers had to wait for the budget
+            return true;
+        }
+        double writeBps = this.writeBps;
+        return writeBps > 0 && ingressBps >= writeBps * SATURATION_RATIO;
+    }
+
+    double getWriteBps() {
+        return writeBps;
+    }
+
+    double getIngressBps() {
+        return ingressBps;
+    }
+
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskVolume{" + mountPoint +
+                ", writeBps=" + (long) writeBps +
+                ", ingressBps=" + (long) ingressBps +
+                ", queueDepth=" + queueDepth.get() +
+                '}';
+    }
+}
@@ -0,0 +1,194 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups download directories by the volume they are mounted on and decides
+ * whether a volume can take another running task.
+ */
+class DiskVolumeScheduler {
+    private static final String TAG = "DiskVolumeScheduler";
+    private static final String MOUNTS_FILE = "/proc/self/mounts";
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+    private static final long MOUNTS_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final int writeConcurrency;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable onCapacityAvailable;
+    private final ConcurrentHashMap<String, DiskVolume> volumes = new ConcurrentHashMap<>();
+    // directory -> volume
+    private final Map<String, DiskVolume> directoryVolumes = new ConcurrentHashMap<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    // saturated volumes that held back a task
+    private final Set<DiskVolume> deferredVolumes = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // longest first
+    private volatile List<String> mountPoints = Collections.emptyList();
+    private volatile long mountsLoadedNanos;
+
+    /**
+     * @param writeConcurrency    writer budget of every volume
+     * @param scheduler           runs the periodic volume sampling
+     * @param onCapacityAvailable called on the scheduler thread when a volume that held back
+     *                            a task can take more
+     */
+    DiskVolumeScheduler(int writeConcurrency, ScheduledExecutorService scheduler, Runnable onCapacityAvailable) {
+        this.writeConcurrency = writeConcurrency;
+        this.scheduler = scheduler;
+        this.onCapacityAvailable = onCapacityAvailable;
+    }
+
+    DiskVolume volumeOf(String directory) {
+        DiskVolume volume = directoryVolumes.get(directory);
+        if (volume != null) {
+            return volume;
+        }
+        volume = volumeOfMountPoint(findMountPoint(directory));
+        directoryVolumes.put(directory, volume);
+        startIfNeeded();
+        return volume;
+    }
+
+    DiskVolume volumeOfMountPoint(String mountPoint) {
+        DiskVolume volume = volumes.get(mountPoint);
+        if (volume == null) {
+            volume = new DiskVolume(mountPoint, writeConcurrency);
+            DiskVolume old = volumes.putIfAbsent(mountPoint, volume);
+            if (old != null) {
+                volume = old;
+            }
+        }
+        return volume;
+    }
+
+    /**
+     * @param runningOnVolume tasks already running on the volume
+     * @return true if a task saving to this volume may start now
+     */
+    boolean canAdmit(DiskVolume volume, int runningOnVolume) {
+        if (runningOnVolume == 0 || !volume.isSaturated()) {
+            return true;
+        }
+        deferredVolumes.add(volume);
+        Logger.d(TAG, "hold back task for saturated " + volume);
+        return false;
+    }
+
+    private void startIfNeeded() {
+        if (started.compareAndSet(false, true)) {
+            scheduler.scheduleWithFixedDelay(() -> sampleAll(System.nanoTime()),
+                    SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Samples every volume and wakes the scheduler only if a volume that held back a task is no
+     * longer saturated; capacity of other volumes would not let any held back task start.
+     */
+    void sampleAll(long nowNanos) {
+        boolean freed = false;
+        for (DiskVolume volume : volumes.values()) {
+            volume.sample(nowNanos);
+            if (!volume.isSaturated() && deferredVolumes.remove(volume)) {
+                freed = true;
+            }
+        }
+        if (freed) {
+            onCapacityAvailable.run();
+        }
+    }
+
+    private String findMountPoint(String directory) {
+        String path;
+        try {
+            path = new File(directory).getCanonicalPath();
+        } catch (IOException e) {
+            path = new File(directory).getAbsolutePath();
+        }
+        List<String> mountPoints = loadMountPoints();
+        for (String mountPoint : mountPoints) {
+            if (isUnder(path, mountPoint)) {
+                return mountPoint;
+            }
+        }
+        return File.separator;
+    }
+
+    static boolean isUnder(String path, String mountPoint) {
+        if (!path.startsWith(mountPoint)) {
+            return false;
+        }
+        return path.length() == mountPoint.length()
+                || mountPoint.endsWith(File.separator)
+                || path.charAt(mountPoint.length()) == File.separatorChar;
+    }
+
+    private List<String> loadMountPoints() {
+        long now = System.nanoTime();
+        if (!mountPoints.isEmpty() && now - mountsLoadedNanos < MOUNTS_REFRESH_NANOS) {
+            return mountPoints;
+        }
+        List<String> result = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(MOUNTS_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String mountPoint = parseMountPoint(line);
+                if (mountPoint != null) {
+                    result.add(mountPoint);
+                }
+            }
+        } catch (IOException e) {
+            Logger.w(TAG, "cannot read " + MOUNTS_FILE, e);
+        }
+        Collections.sort(result, (o1, o2) -> o2.length() - o1.length());
+        mountPoints = result;
+        mountsLoadedNanos = now;
+        return result;
+    }
+
+    /**
+     * "device mountPoint type options dump pass"; spaces in mountPoint are escaped as \040
+     */
+    static String parseMountPoint(String line) {
+        int start = line.indexOf(' ');
+        if (start == -1) {
+            return null;
+        }
+        int end = line.indexOf(' ', start + 1);
+        if (end == -1) {
+            return null;
+        }
+        String mountPoint = line.substring(start + 1, end);
+        if (mountPoint.indexOf('\\') == -1) {
+            return mountPoint;
+        }
+        StringBuilder sb = new StringBuilder(mountPoint.length());
+        for (int i = 0; i < mountPoint.length(); i++) {
+            char c = mountPoint.charAt(i);
+            if (c == '\\' && i + 3 < mountPoint.length()) {
+                try {
+                    sb.append((char) Integer.parseInt(mountPoint.substring(i + 1, i + 4), 8));
+                    i += 3;
+                    continue;
+                } catch (NumberFormatException e) {
+                    // not escaped
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
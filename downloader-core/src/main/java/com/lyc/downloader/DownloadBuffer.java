@@ -0,0 +1,164 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author liuyuchuan
+ * @date 2019/4/7
+ * @email kevinliu.sir@qq.com
+ */
+class DownloadBuffer {
+    private static final int SEGMENT_COUNT = 2;
+    // poison pill, wakes up the thread waiting on the other side when stopping
+    private static final Segment STOP = new Segment(0);
+
+    private final SegmentQueue readBufferQueue;
+    private final SegmentQueue writeBufferQueue;
+
+    DownloadBuffer(int bufferSize) {
+        // one more slot for STOP
+        readBufferQueue = new SegmentQueue(SEGMENT_COUNT + 1);
+        writeBufferQueue = new SegmentQueue(SEGMENT_COUNT + 1);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            writeBufferQueue.offer(new Segment(bufferSize));
+        }
+    }
+
+    /**
+     * @return a segment to read into, or null if stopped
+     */
+    Segment availableWriteSegment() throws InterruptedException {
+        return take(writeBufferQueue);
+    }
+
+    /**
+     * @return a segment to write to disk, or null if stopped
+     */
+    Segment availableReadSegment() throws InterruptedException {
+        return take(readBufferQueue);
+    }
+
+    private static Segment take(SegmentQueue queue) throws InterruptedException {
+        Segment segment = queue.take();
+        if (segment == STOP) {
+            // leave it for later calls
+            queue.offer(STOP);
+            return null;
+        }
+        return segment;
+    }
+
+    void enqueueReadSegment(Segment segment) {
+        readBufferQueue.offer(segment);
+    }
+
+    void enqueueWriteSegment(Segment segment) {
+        writeBufferQueue.offer(segment);
+    }
+
+    /**
+     * Appends the STOP pill to both queues, once; nothing queued is discarded. A thread waiting
+     * on an empty queue wakes up with null right away, otherwise STOP is taken after the segments
+     * queued before it: a writer that takes until null still writes every segment read before
+     * this call, and the reader still gets the free segments already queued. STOP is put back when taken, so every
+     * later call returns null until {@link #reset()}.
+     */
+    void stop() {
+        readBufferQueue.offerIfAbsent(STOP);
+        writeBufferQueue.offerIfAbsent(STOP);
+    }
+
+    /**
+     * Called before reusing this buffer for resuming.
+     */
+    void reset() {
+        readBufferQueue.remove(STOP);
+        writeBufferQueue.remove(STOP);
+    }
+
+    /**
+     * Bounded FIFO taken by one thread at a time. Unlike ArrayBlockingQueue it allocates
+     * nothing when the taker has to wait, and the taker parks instead of waiting on a
+     * monitor, which would pin a virtual thread to its carrier.
+     */
+    private static class SegmentQueue {
+        private final Segment[] items;
+        private int head;
+        private int size;
+        private Thread waiter;
+
+        SegmentQueue(int capacity) {
+            items = new Segment[capacity];
+        }
+
+        Segment take() throws InterruptedException {
+            while (true) {
+                if (Thread.interrupted()) {
+                    synchronized (this) {
+                        waiter = null;
+                    }
+                    throw new InterruptedException();
+                }
+                synchronized (this) {
+                    if (size > 0) {
+                        Segment segment = items[head];
+                        items[head] = null;
+                        head = (head + 1) % items.length;
+                        size--;
+                        waiter = null;
+                        return segment;
+                    }
+                    waiter = Thread.currentThread();
+                }
+                // an unpark before this park makes it return at once
+                LockSupport.park(this);
+            }
+        }
+
+        void offer(Segment segment) {
+            offer(segment, false);
+        }
+
+        void offerIfAbsent(Segment segment) {
+            offer(segment, true);
+        }
+
+        private void offer(Segment segment, boolean ifAbsent) {
+            Thread waiter;
+            synchronized (this) {
+                if (size == items.length || (ifAbsent && indexOf(segment) >= 0)) {
+                    return;
+                }
+                items[(head + size) % items.length] = segment;
+                size++;
+                waiter = this.waiter;
+                this.waiter = null;
+            }
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        synchronized void remove(Segment segment) {
+            int index = indexOf(segment);
+            if (index < 0) {
+                return;
+            }
+            // shift the later items one slot forward
+            for (int i = index; i < size - 1; i++) {
+                items[(head + i) % items.length] = items[(head + i + 1) % items.length];
+            }
+            items[(head + size - 1) % items.length] = null;
+            size--;
+        }
+
+        private int indexOf(Segment segment) {
+            for (int i = 0; i < size; i++) {
+                if (items[(head + i) % items.length] == segment) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
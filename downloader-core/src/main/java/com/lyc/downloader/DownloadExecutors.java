@@ -0,0 +1,44 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * @author liuyuchuan
+ * @date 2019/4/1
+ * @email kevinliu.sir@qq.com
+ */
+class DownloadExecutors {
+
+    static final EventLoop message = new ThreadEventLoop("message");
+    static final EventLoop command = new ThreadEventLoop("command");
+
+    private static boolean started;
+
+    // called by the service and by tests that drive DownloadManager directly; loops start once
+    static synchronized void init() {
+        if (started) {
+            return;
+        }
+        started = true;
+        message.start();
+        command.start();
+    }
+
+    // range threads and io; platform threads unless the runtime has virtual threads
+    static final ThreadBackend threads = ThreadBackend.auto();
+
+    static final Executor io = threads.newIoExecutor();
+
+    // periodic engine work; keep tasks short and hop to io for blocking work
+    static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static boolean isMessageThread() {
+        return message.inLoop();
+    }
+}
@@ -0,0 +1,43 @@
+package com.lyc.downloader;
+
+import java.util.List;
+
+/**
+ * Where the engine keeps its records between runs. {@code I} is the record of a download and
+ * {@code R} the record of one of its ranges; both come with the platform's database.
+ * Calls block, so they are made on io or on a range thread, never on the message loop.
+ */
+interface DownloadStore<I, R> {
+    /**
+     * Saves the record in one transaction; if ranges is not null, they replace the ranges
+     * of the record, in the order of their tids.
+     *
+     * @return id of the saved record, null if it has none
+     */
+    Long persist(I info, List<R> ranges) throws Exception;
+
+    /**
+     * Inserts all in one transaction and sets their ids.
+     */
+    void insert(List<I> infos) throws Exception;
+
+    /**
+     * @return null if there is no such record
+     */
+    I load(long id);
+
+    /**
+     * @return the records of the first count ids that exist, in no particular order
+     */
+    List<I> load(long[] ids, int count);
+
+    /**
+     * Deletes the record and its ranges; failures are logged.
+     */
+    void delete(I info);
+
+    /**
+     * Deletes the records and their ranges in one transaction; failures are logged.
+     */
+    void delete(List<I> infos);
+}
@@ -0,0 +1,18 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A single thread executing commands in order. A command submitted from the loop
+ * thread itself runs at once, so state owned by the loop needs no lock.
+ */
+public interface EventLoop extends Executor {
+    void start();
+
+    boolean inLoop();
+
+    /**
+     * Drops a command that has not run yet.
+     */
+    void remove(Runnable command);
+}
@@ -0,0 +1,188 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.Logger;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides unique file names per download directory.
+ * Every directory is guarded by one of a few striped locks, so tasks saving to
+ * different directories never wait for each other. Names already used in a directory
+ * are kept in memory (one listing, refreshed now and then) together with the names
+ * reserved by tasks that have not created their file yet, so choosing a name costs
+ * a single existence check instead of one per candidate.
+ */
+class FilenameReservations {
+    private static final String TAG = "FilenameReservations";
+    private static final int STRIPES = 16;
+    private static final long LISTING_EXPIRE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_FILENAME_LENGTH = 127 - Constants.TMP_FILE_SUFFIX.length();
+    // "name(2)": a name already made unique, counting goes on from 2
+    static final Pattern reduplicatedFilenamePattern = Pattern.compile("^(.*)\\(([1-9][0-9]*)\\)$");
+
+    private final Lock[] locks = new Lock[STRIPES];
+    private final Map<String, DirectoryIndex> indexes = new ConcurrentHashMap<>();
+
+    FilenameReservations() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    Lock lockOf(File directory) {
+        return locks[(directory.getAbsolutePath().hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Reserve filename in directory for task, or the first free "name(n).ext" after it.
+     * Neither the file nor its temp file exists on disk when this returns.
+     *
+     * @return the reserved filename
+     */
+    String reserve(File directory, String filename, long taskId) {
+        Lock lock = lockOf(directory);
+        try {
+            lock.lock();
+            DirectoryIndex index = indexOf(directory);
+            // a restarted task chooses its name again
+            index.releaseOwnedBy(filename, taskId);
+            if (!index.isTaken(directory, filename)) {
+                index.reserved.put(filename, taskId);
+                return filename;
+            }
+
+            int dot = filename.lastIndexOf(".");
+            String name;
+            String extendName;
+            if (dot != -1) {
+                name = filename.substring(0, dot);
+                extendName = filename.substring(dot);
+            } else {
+                name = filename;
+                extendName = "";
+            }
+
+            int cnt = 1;
+            Matcher matcher = reduplicatedFilenamePattern.matcher(filename);
+            if (matcher.find() && matcher.groupCount() == 2) {
+                name = matcher.group(1);
+                cnt = Integer.parseInt(matcher.group(2));
+            }
+
+            StringBuilder sb = new StringBuilder();
+            String candidate;
+            do {
+                sb.delete(0, sb.length());
+                sb.append(name).append('(').append(cnt++).append(')').append(extendName);
+                if (sb.length() > MAX_FILENAME_LENGTH) {
+                    sb.delete(0, sb.length() - MAX_FILENAME_LENGTH);
+                }
+                candidate = sb.toString();
+            } while (index.isTaken(directory, candidate));
+            Logger.w(TAG, "Task#" + taskId + ": file " + filename + " exists, use " + candidate);
+            index.reserved.put(candidate, taskId);
+            return candidate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The reserved file has been created; its name is now used on disk.
+     */
+    void onCreated(File directory, String filename, long taskId) {
+        Lock lock = lockOf(directory);
+        try {
+            lock.lock();
+            DirectoryIndex index = indexes.get(directory.getAbsolutePath());
+            if (index != null && index.releaseOwnedBy(filename, taskId)) {
+                index.onDisk.add(filename + Constants.TMP_FILE_SUFFIX);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The files of filename have been deleted or were never created.
+     */
+    void release(File directory, String filename) {
+        Lock lock = lockOf(directory);
+        try {
+            lock.lock();
+            DirectoryIndex index = indexes.get(directory.getAbsolutePath());
+            if (index != null) {
+                index.reserved.remove(filename);
+                index.onDisk.remove(filename);
+                index.onDisk.remove(filename + Constants.TMP_FILE_SUFFIX);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // guarded by lockOf(directory)
+    private DirectoryIndex indexOf(File directory) {
+        String key = directory.getAbsolutePath();
+        DirectoryIndex index = indexes.get(key);
+        if (index == null) {
+            index = new DirectoryIndex();
+            indexes.put(key, index);
+        }
+        long now = System.nanoTime();
+        if (now - index.listedNanos > LISTING_EXPIRE_NANOS || index.listedNanos == 0) {
+            String[] names = directory.list();
+            index.onDisk.clear();
+            if (names != null) {
+                Collections.addAll(index.onDisk, names);
+            }
+            index.listedNanos = now;
+        }
+        return index;
+    }
+
+    private static class DirectoryIndex {
+        // names seen in the directory
+        final Set<String> onDisk = new HashSet<>();
+        // filename -> id of the task that will create it
+        final Map<String, Long> reserved = new HashMap<>();
+        long listedNanos;
+
+        boolean isTaken(File directory, String filename) {
+            String tmpFilename = filename + Constants.TMP_FILE_SUFFIX;
+            if (reserved.containsKey(filename) || onDisk.contains(filename) || onDisk.contains(tmpFilename)) {
+                return true;
+            }
+            // created after the listing
+            if (new File(directory, filename).exists()) {
+                onDisk.add(filename);
+                return true;
+            }
+            if (new File(directory, tmpFilename).exists()) {
+                onDisk.add(tmpFilename);
+                return true;
+            }
+            return false;
+        }
+
+        boolean releaseOwnedBy(String filename, long taskId) {
+            Long owner = reserved.get(filename);
+            if (owner != null && owner == taskId) {
+                reserved.remove(filename);
+                return true;
+            }
+            return false;
+        }
+    }
+}
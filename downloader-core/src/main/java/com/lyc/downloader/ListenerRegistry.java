@@ -0,0 +1,153 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.LongHashMap;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Copy-on-write registry of listeners by task id, some of them registered for all ids.
+ * Every register or unregister rebuilds, under the lock, an immutable snapshot holding for each
+ * id the merged array of listeners for all ids followed by those of the id, without duplicates;
+ * {@link #listeners(long)} only reads the published snapshot, so it takes no lock and allocates nothing.
+ */
+class ListenerRegistry<L> {
+    private final L[] empty;
+    // guarded by this
+    private final Set<L> allIdListeners = new LinkedHashSet<>();
+    private final LongHashMap<Set<L>> idListeners = new LongHashMap<>();
+    private volatile Snapshot<L> snapshot;
+
+    /**
+     * @param empty empty array of the listener type, handed out when there is no listener
+     */
+    ListenerRegistry(L[] empty) {
+        this.empty = empty;
+        snapshot = new Snapshot<>(empty, new LongHashMap<>());
+    }
+
+    /**
+     * @return listeners of the id, in registration order; must not be modified
+     */
+    L[] listeners(long id) {
+        Snapshot<L> snapshot = this.snapshot;
+        L[] listeners = snapshot.idListeners.get(id);
+        return listeners == null ? snapshot.allIdListeners : listeners;
+    }
+
+    synchronized void registerForAll(L listener) {
+        if (allIdListeners.add(listener)) {
+            rebuild();
+        }
+    }
+
+    synchronized void register(long id, L listener) {
+        if (add(id, listener)) {
+            rebuild();
+        }
+    }
+
+    synchronized void register(Iterable<Long> ids, L listener) {
+        boolean changed = false;
+        for (Long id : ids) {
+            changed |= add(id, listener);
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    synchronized void unregister(long id, L listener) {
+        if (remove(id, listener)) {
+            rebuild();
+        }
+    }
+
+    synchronized void unregister(Iterable<Long> ids, L listener) {
+        boolean changed = false;
+        for (Long id : ids) {
+            changed |= remove(id, listener);
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Unregister the listener for all ids and every single id.
+     */
+    synchronized void unregister(L listener) {
+        boolean changed = allIdListeners.remove(listener);
+        for (int i = idListeners.size() - 1; i >= 0; i--) {
+            long id = idListeners.keyAt(i);
+            changed |= remove(id, listener);
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    /**
+     * @return true if the listener is registered for all ids or any single id
+     */
+    synchronized boolean contains(L listener) {
+        if (allIdListeners.contains(listener)) {
+            return true;
+        }
+        for (int i = 0, size = idListeners.size(); i < size; i++) {
+            if (idListeners.valueAt(i).contains(listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean add(long id, L listener) {
+        Set<L> listeners = idListeners.get(id);
+        if (listeners == null) {
+            listeners = new LinkedHashSet<>();
+            idListeners.put(id, listeners);
+        }
+        return listeners.add(listener);
+    }
+
+    private boolean remove(long id, L listener) {
+        Set<L> listeners = idListeners.get(id);
+        if (listeners == null || !listeners.remove(listener)) {
+            return false;
+        }
+        if (listeners.isEmpty()) {
+            idListeners.remove(id);
+        }
+        return true;
+    }
+
+    private void rebuild() {
+        L[] all = allIdListeners.toArray(empty);
+        int size = idListeners.size();
+        LongHashMap<L[]> merged = new LongHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            L[] listeners = Arrays.copyOf(all, all.length + idListeners.valueAt(i).size());
+            int count = all.length;
+            for (L listener : idListeners.valueAt(i)) {
+                if (!allIdListeners.contains(listener)) {
+                    listeners[count++] = listener;
+                }
+            }
+            merged.put(idListeners.keyAt(i), count == listeners.length ? listeners : Arrays.copyOf(listeners, count));
+        }
+        snapshot = new Snapshot<>(all, merged);
+    }
+
+    private static class Snapshot<L> {
+        final L[] allIdListeners;
+        // only ids that have listeners of their own
+        final LongHashMap<L[]> idListeners;
+
+        Snapshot(L[] allIdListeners, LongHashMap<L[]> idListeners) {
+            this.allIdListeners = allIdListeners;
+            this.idListeners = idListeners;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.lyc.downloader;
+
+/**
+ * Platform lookup of file extensions, used to complete filenames chosen by the engine.
+ */
+public interface MimeTypeResolver {
+    /**
+     * @param mimeType e.g. "application/zip"
+     * @return extension without dot, or null if unknown
+     */
+    String extensionFromMimeType(String mimeType);
+
+    /**
+     * @return extension of the url path without dot, or null if none
+     */
+    String extensionFromUrl(String url);
+}
@@ -0,0 +1,147 @@
+package com.lyc.downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Samples the byte counter of every running download at a fixed cadence on
+ * the shared scheduler thread, smooths the speed with an EWMA, derives the ETA and
+ * publishes the progress of all tasks in one message.
+ */
+class ProgressSampler {
+    static final long SAMPLE_INTERVAL_MILLIS = 200;
+    // weight of the newest sample; ~1s to follow a change of speed
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor io;
+    private final Listener listener;
+    private final boolean persistProgress;
+    private final Map<Source, Sample> samples = new ConcurrentHashMap<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    interface Source {
+        long id();
+
+        long downloadedSize();
+
+        /**
+         * @return -1 if unknown
+         */
+        long totalSize();
+
+        void persistProgress();
+    }
+
+    interface Listener {
+        /**
+         * Called on the scheduler thread with the progress of all sampled downloads.
+         */
+        void onProgress(List<Progress> progresses);
+    }
+
+    /**
+     * @param scheduler       runs the sampling, from the first {@link #add(Source)}
+     * @param io              where progress is persisted
+     * @param persistProgress if true, progress is persisted at every sample that sees new bytes
+     */
+    ProgressSampler(ScheduledExecutorService scheduler, Executor io, Listener listener, boolean persistProgress) {
+        this.scheduler = scheduler;
+        this.io = io;
+        this.listener = listener;
+        this.persistProgress = persistProgress;
+    }
+
+    void add(Source source) {
+        samples.put(source, new Sample(source.downloadedSize(), System.nanoTime()));
+        if (started.compareAndSet(false, true)) {
+            scheduler.scheduleAtFixedRate(() -> sampleAll(System.nanoTime()),
+                    SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void remove(Source source) {
+        samples.remove(source);
+    }
+
+    void sampleAll(long now) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        List<Progress> progresses = new ArrayList<>(samples.size());
+        List<Source> dirtySources = null;
+        for (Map.Entry<Source, Sample> entry : samples.entrySet()) {
+            Source source = entry.getKey();
+            Sample sample = entry.getValue();
+            long current = source.downloadedSize();
+            long elapsed = now - sample.nanos;
+            if (elapsed <= 0) {
+                continue;
+            }
+            long delta = current - sample.size;
+            double bps = Math.max(delta, 0) * 1e9 / elapsed;
+            sample.bps = sample.bps < 0 ? bps : sample.bps + EWMA_ALPHA * (bps - sample.bps);
+            sample.size = current;
+            sample.nanos = now;
+
+            long total = source.totalSize();
+            long etaMillis = -1;
+            if (total > 0 && sample.bps > 0) {
+                etaMillis = (long) (Math.max(total - current, 0) * 1000 / sample.bps);
+            }
+            progresses.add(new Progress(source.id(), total, current, sample.bps, etaMillis));
+
+            if (persistProgress && delta > 0) {
+                if (dirtySources == null) {
+                    dirtySources = new ArrayList<>();
+                }
+                dirtySources.add(source);
+            }
+        }
+        if (!progresses.isEmpty()) {
+            listener.onProgress(progresses);
+        }
+        if (dirtySources != null) {
+            List<Source> sources = dirtySources;
+            io.execute(() -> {
+                for (Source source : sources) {
+                    source.persistProgress();
+                }
+            });
+        }
+    }
+
+    private static class Sample {
+        long size;
+        long nanos;
+        // -1 until the first sample
+        double bps = -1;
+
+        Sample(long size, long nanos) {
+            this.size = size;
+            this.nanos = nanos;
+        }
+    }
+
+    static class Progress {
+        final long id;
+        final long total;
+        final long current;
+        final double bps;
+        final long etaMillis;
+
+        Progress(long id, long total, long current, double bps, long etaMillis) {
+            this.id = id;
+            this.total = total;
+            this.current = current;
+            this.bps = bps;
+            this.etaMillis = etaMillis;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.LongHashMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versioned log of task mutations that clients replicate the task table from.
+ * Every put or remove takes the next version; only the latest change of a task is kept, so the
+ * changes since any version are at most one per task. Removals are kept until there are more than
+ * {@code maxRemoved} of them; a client behind the oldest dropped removal, or of another epoch,
+ * i.e. of a previous service process, gets a full snapshot instead.
+ */
+class TaskChangeLog<T> {
+    private final int maxRemoved;
+    private final long epoch;
+    private final LongHashMap<Entry<T>> entries = new LongHashMap<>();
+    // removed entries, oldest first; some may have been put again since
+    private final ArrayDeque<Entry<T>> removedEntries = new ArrayDeque<>();
+    // all entries linked by version
+    private Entry<T> head;
+    private Entry<T> tail;
+    private long version;
+    // clients at an older version may have missed a dropped removal
+    private long horizon;
+
+    TaskChangeLog(int maxRemoved, long epoch) {
+        this.maxRemoved = maxRemoved;
+        this.epoch = epoch;
+    }
+
+    synchronized void put(long id, T value) {
+        Entry<T> entry = entries.get(id);
+        if (entry == null || entry.removed) {
+            if (entry != null) {
+                unlink(entry);
+            }
+            entry = new Entry<>(id);
+            entries.put(id, entry);
+        } else {
+            unlink(entry);
+        }
+        entry.value = value;
+        append(entry);
+    }
+
+    /**
+     * @param lastValue value of the task when it leaves the table, or null
+     */
+    synchronized void remove(long id, T lastValue) {
+        Entry<T> entry = entries.get(id);
+        if (entry != null && entry.removed) {
+            return;
+        }
+        if (entry == null) {
+            entry = new Entry<>(id);
+            entries.put(id, entry);
+        } else {
+            unlink(entry);
+        }
+        entry.removed = true;
+        entry.value = lastValue;
+        append(entry);
+        removedEntries.offerLast(entry);
+        while (removedEntries.size() > maxRemoved) {
+            Entry<T> oldest = removedEntries.pollFirst();
+            if (entries.get(oldest.id) == oldest) {
+                entries.remove(oldest.id);
+                unlink(oldest);
+                horizon = Math.max(horizon, oldest.version);
+            }
+        }
+    }
+
+    /**
+     * @param epoch   epoch of the client's table, 0 if it has none
+     * @param version version of the client's table
+     * @return changes to apply to reach the current version
+     */
+    synchronized Changes<T> since(long epoch, long version) {
+        List<Change<T>> changes = new ArrayList<>();
+        boolean reset = epoch != this.epoch || version < horizon || version > this.version;
+        if (reset) {
+            for (Entry<T> entry = head; entry != null; entry = entry.next) {
+                if (!entry.removed) {
+                    changes.add(new Change<>(entry.id, false, entry.value));
+                }
+            }
+        } else {
+            for (Entry<T> entry = tail; entry != null && entry.version > version; entry = entry.prev) {
+                changes.add(new Change<>(entry.id, entry.removed, entry.value));
+            }
+            Collections.reverse(changes);
+        }
+        return new Changes<>(this.epoch, this.version, reset, changes);
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    private void append(Entry<T> entry) {
+        entry.version = ++version;
+        entry.prev = tail;
+        entry.next = null;
+        if (tail == null) {
+            head = entry;
+        } else {
+            tail.next = entry;
+        }
+        tail = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev == null) {
+            head = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static class Entry<T> {
+        final long id;
+        long version;
+        boolean removed;
+        T value;
+        Entry<T> prev;
+        Entry<T> next;
+
+        Entry(long id) {
+            this.id = id;
+        }
+    }
+
+    static class Change<T> {
+        final long id;
+        final boolean removed;
+        // null for a removal without last value
+        final T value;
+
+        Change(long id, boolean removed, T value) {
+            this.id = id;
+            this.removed = removed;
+            this.value = value;
+        }
+    }
+
+    static class Changes<T> {
+        final long epoch;
+        final long version;
+        // the client drops its table first; changes are a snapshot without removals
+        final boolean reset;
+        final List<Change<T>> changes;
+
+        Changes(long epoch, long version, boolean reset, List<Change<T>> changes) {
+            this.epoch = epoch;
+            this.version = version;
+            this.reset = reset;
+            this.changes = changes;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.utils.LongHashDeque;
+import com.lyc.downloader.utils.LongHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which tasks download the same url in one transfer. The latest task that downloads a url on its own
+ * leads it; tasks submitted for the url while it leads follow it instead of downloading, and get a
+ * copy of its file when it finishes. A leader that stops for any other reason releases its followers,
+ * which then download on their own. Not thread safe.
+ */
+class TaskCoalescer {
+    private static final long[] NO_FOLLOWERS = new long[0];
+
+    private final Map<String, Long> leaderOfUrl = new HashMap<>();
+    private final LongHashMap<String> urlOfLeader = new LongHashMap<>();
+    private final LongHashMap<Followers> followersOfLeader = new LongHashMap<>();
+    private final LongHashMap<Long> leaderOfFollower = new LongHashMap<>();
+
+    /**
+     * @return id of the task leading the url, or -1
+     */
+    long leaderOf(String url) {
+        Long leaderId = url == null ? null : leaderOfUrl.get(url);
+        return leaderId == null ? -1 : leaderId;
+    }
+
+    /**
+     * The task now leads the url, in place of the one that did; followers of that one stay with it.
+     */
+    void lead(String url, long id) {
+        if (url == null) {
+            return;
+        }
+        Long previous = leaderOfUrl.put(url, id);
+        if (previous != null && previous != id) {
+            urlOfLeader.remove(previous);
+        }
+        urlOfLeader.put(id, url);
+    }
+
+    void follow(long leaderId, long followerId) {
+        Followers followers = followersOfLeader.get(leaderId);
+        if (followers == null) {
+            followers = new Followers();
+            followersOfLeader.put(leaderId, followers);
+        }
+        if (followers.ids.offerLast(followerId)) {
+            followers.array = null;
+        }
+        leaderOfFollower.put(followerId, leaderId);
+    }
+
+    boolean isFollower(long id) {
+        return leaderOfFollower.containsKey(id);
+    }
+
+    /**
+     * Cheap enough for every progress update: the array is only rebuilt after followers change.
+     *
+     * @return followers of the task, oldest first; shared and never modified, so do not modify it
+     */
+    long[] followersOf(long leaderId) {
+        Followers followers = followersOfLeader.get(leaderId);
+        if (followers == null) {
+            return NO_FOLLOWERS;
+        }
+        if (followers.array == null) {
+            followers.array = followers.ids.toArray();
+        }
+        return followers.array;
+    }
+
+    /**
+     * @return every task that follows another, in no particular order
+     */
+    long[] followers() {
+        long[] followerIds = new long[leaderOfFollower.size()];
+        for (int i = 0; i < followerIds.length; i++) {
+            followerIds[i] = leaderOfFollower.keyAt(i);
+        }
+        return followerIds;
+    }
+
+    /**
+     * @return false if the task does not follow any
+     */
+    boolean unfollow(long followerId) {
+        Long leaderId = leaderOfFollower.remove(followerId);
+        if (leaderId == null) {
+            return false;
+        }
+        Followers followers = followersOfLeader.get(leaderId);
+        followers.ids.remove(followerId);
+        followers.array = null;
+        if (followers.ids.isEmpty()) {
+            followersOfLeader.remove(leaderId);
+        }
+        return true;
+    }
+
+    /**
+     * The task finished: it takes no more followers, but those it has stay until each is
+     * {@link #unfollow(long) unfollowed} with its copy of the file.
+     *
+     * @return its followers
+     */
+    long[] retire(long leaderId) {
+        String url = urlOfLeader.remove(leaderId);
+        if (url != null) {
+            leaderOfUrl.remove(url);
+        }
+        return followersOf(leaderId);
+    }
+
+    /**
+     * The task stopped leading without a file: it takes no more followers and drops those it has.
+     *
+     * @return its former followers
+     */
+    long[] release(long leaderId) {
+        long[] followers = retire(leaderId);
+        followersOfLeader.remove(leaderId);
+        for (long followerId : followers) {
+            leaderOfFollower.remove(followerId);
+        }
+        return followers;
+    }
+
+    private static class Followers {
+        final LongHashDeque ids = new LongHashDeque();
+        // ids as returned by followersOf(), null after a change
+        long[] array;
+    }
+}
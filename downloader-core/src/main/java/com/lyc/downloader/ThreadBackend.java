@@ -0,0 +1,134 @@
+package com.lyc.downloader;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Where range readers, writers and blocking io commands run.
+ * {@link #auto()} picks virtual threads when the runtime has them (JDK 21+), so thousands
+ * of concurrent downloads do not need thousands of OS threads; otherwise platform threads.
+ * Virtual threads are reached by reflection to keep the engine Java 8 and Android compatible.
+ */
+public abstract class ThreadBackend {
+    private static final ThreadBackend PLATFORM = new Platform();
+    private static volatile ThreadBackend virtual;
+    private static volatile boolean virtualProbed;
+
+    /**
+     * @return an unstarted thread
+     */
+    public abstract Thread newThread(Runnable runnable, String name);
+
+    /**
+     * @return executor for short blocking jobs: connects, database and file work
+     */
+    public abstract ExecutorService newIoExecutor();
+
+    public abstract boolean isVirtual();
+
+    public static ThreadBackend platform() {
+        return PLATFORM;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ThreadBackend virtual() {
+        ThreadBackend backend = probeVirtual();
+        if (backend == null) {
+            throw new UnsupportedOperationException("virtual threads need JDK 21+");
+        }
+        return backend;
+    }
+
+    public static ThreadBackend auto() {
+        ThreadBackend backend = probeVirtual();
+        return backend == null ? PLATFORM : backend;
+    }
+
+    public static boolean isVirtualAvailable() {
+        return probeVirtual() != null;
+    }
+
+    private static ThreadBackend probeVirtual() {
+        if (!virtualProbed) {
+            synchronized (ThreadBackend.class) {
+                if (!virtualProbed) {
+                    try {
+                        virtual = new Virtual();
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        virtual = null;
+                    }
+                    virtualProbed = true;
+                }
+            }
+        }
+        return virtual;
+    }
+
+    @Override
+    public String toString() {
+        return isVirtual() ? "virtual" : "platform";
+    }
+
+    private static class Platform extends ThreadBackend {
+        @Override
+        public Thread newThread(Runnable runnable, String name) {
+            return new Thread(runnable, name);
+        }
+
+        @Override
+        public ExecutorService newIoExecutor() {
+            return Executors.newCachedThreadPool();
+        }
+
+        @Override
+        public boolean isVirtual() {
+            return false;
+        }
+    }
+
+    private static class Virtual extends ThreadBackend {
+        private final Method ofVirtual;
+        private final Method name;
+        private final Method unstarted;
+        private final Method newVirtualThreadPerTaskExecutor;
+
+        Virtual() throws ReflectiveOperationException {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // fails here rather than on first use if virtual threads are disabled
+            newThread(() -> {
+            }, "probe");
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable, String threadName) {
+            try {
+                Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+                return (Thread) unstarted.invoke(builder, runnable);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("cannot create virtual thread", e);
+            }
+        }
+
+        @Override
+        public ExecutorService newIoExecutor() {
+            try {
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("cannot create virtual thread executor", e);
+            }
+        }
+
+        @Override
+        public boolean isVirtual() {
+            return true;
+        }
+    }
+}
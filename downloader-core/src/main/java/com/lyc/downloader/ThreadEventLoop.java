@@ -0,0 +1,48 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@link EventLoop} on a plain daemon thread; the engine needs no platform looper.
+ */
+public class ThreadEventLoop extends Thread implements EventLoop {
+    private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<>();
+
+    public ThreadEventLoop(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable command;
+            try {
+                command = commands.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }
+    }
+
+    @Override
+    public boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    @Override
+    public void remove(Runnable command) {
+        commands.remove(command);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (inLoop()) {
+            command.run();
+            return;
+        }
+        commands.offer(command);
+    }
+}
@@ -0,0 +1,62 @@
+package com.lyc.downloader;
+
+/**
+ * Counts write calls by size, bucketed by power of two.
+ * Bucket i holds sizes in [2^i, 2^(i+1)).
+ */
+class WriteSizeHistogram {
+    private static final int BUCKET_COUNT = 32;
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long bytes;
+
+    void record(int size) {
+        if (size <= 0) {
+            return;
+        }
+        int bucket = 31 - Integer.numberOfLeadingZeros(size);
+        buckets[bucket]++;
+        count++;
+        bytes += size;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long bucket(int index) {
+        return buckets[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(count).append(", bytes=").append(bytes).append(" [");
+        boolean first = true;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (buckets[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            appendSize(sb, 1L << i).append(':').append(buckets[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static StringBuilder appendSize(StringBuilder sb, long size) {
+        if (size >= 1 << 20) {
+            return sb.append(size >> 20).append('M');
+        }
+        if (size >= 1 << 10) {
+            return sb.append(size >> 10).append('K');
+        }
+        return sb.append(size);
+    }
+}
@@ -1,7 +1,5 @@
 package com.lyc.downloader.utils;
 
-import org.greenrobot.greendao.annotation.NotNull;
-
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
@@ -75,7 +73,9 @@ public class DownloadStringUtil {
         return df.format(b) + "TB";
     }
 
-    @NotNull
+    /**
+     * @return never null, maybe empty
+     */
     public static String parseFilenameFromUrl(String url) {
         StringBuilder sb = new StringBuilder(url);
 
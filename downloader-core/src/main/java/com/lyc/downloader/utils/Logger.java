@@ -0,0 +1,89 @@
+package com.lyc.downloader.utils;
+
+/**
+ * Created by Liu Yuchuan on 2019/4/27.
+ * Logs go to the {@link Sink} of the platform; nothing is logged until one is set.
+ */
+public class Logger {
+    // same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile Sink sink;
+
+    public interface Sink {
+        /**
+         * @param tr may be null
+         */
+        void log(int priority, String tag, String msg, Throwable tr);
+    }
+
+    /**
+     * @param sink null to drop all logs
+     */
+    public static void setSink(Sink sink) {
+        Logger.sink = sink;
+    }
+
+    /**
+     * Check before building an expensive message, so that nothing is allocated when
+     * logs are dropped.
+     */
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    private static void log(int priority, String tag, String msg, Throwable tr) {
+        Sink sink = Logger.sink;
+        if (sink != null) {
+            sink.log(priority, tag, msg, tr);
+        }
+    }
+
+    public static void v(String tag, String msg) {
+        log(VERBOSE, tag, msg, null);
+    }
+
+    public static void v(String tag, String msg, Throwable tr) {
+        log(VERBOSE, tag, msg, tr);
+    }
+
+    public static void d(String tag, String msg) {
+        log(DEBUG, tag, msg, null);
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        log(DEBUG, tag, msg, tr);
+    }
+
+    public static void i(String tag, String msg) {
+        log(INFO, tag, msg, null);
+    }
+
+    public static void i(String tag, String msg, Throwable tr) {
+        log(INFO, tag, msg, tr);
+    }
+
+    public static void w(String tag, String msg) {
+        log(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        log(WARN, tag, msg, tr);
+    }
+
+    public static void w(String tag, Throwable tr) {
+        log(WARN, tag, null, tr);
+    }
+
+    public static void e(String tag, String msg) {
+        log(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        log(ERROR, tag, msg, tr);
+    }
+}
@@ -0,0 +1,179 @@
+package com.lyc.downloader.utils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Deque of unique primitive longs, linked in insertion order and indexed by a hash table,
+ * so that {@link #contains(long)} and {@link #remove(long)} of any element are O(1),
+ * unlike {@link UniqueDequeue} whose removal scans the deque. Not thread safe.
+ */
+public class LongHashDeque {
+    private static final int NONE = -1;
+
+    private final LongIndex index;
+    // nodes are dense in [0, size); a removal moves the last node into the hole
+    private long[] values;
+    private int[] prev;
+    private int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    public LongHashDeque() {
+        this(8);
+    }
+
+    public LongHashDeque(int expectedSize) {
+        int capacity = Math.max(expectedSize, 8);
+        index = new LongIndex(capacity);
+        values = new long[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long value) {
+        return index.get(value) >= 0;
+    }
+
+    /**
+     * @return false if value is already in this deque, which keeps its place
+     */
+    public boolean offerLast(long value) {
+        if (index.get(value) >= 0) {
+            return false;
+        }
+        int node = newNode(value);
+        prev[node] = tail;
+        next[node] = NONE;
+        if (tail == NONE) {
+            head = node;
+        } else {
+            next[tail] = node;
+        }
+        tail = node;
+        return true;
+    }
+
+    /**
+     * @return false if value is already in this deque, which keeps its place
+     */
+    public boolean offerFirst(long value) {
+        if (index.get(value) >= 0) {
+            return false;
+        }
+        int node = newNode(value);
+        prev[node] = NONE;
+        next[node] = head;
+        if (head == NONE) {
+            tail = node;
+        } else {
+            prev[head] = node;
+        }
+        head = node;
+        return true;
+    }
+
+    /**
+     * @throws NoSuchElementException if empty
+     */
+    public long peekFirst() {
+        if (head == NONE) {
+            throw new NoSuchElementException();
+        }
+        return values[head];
+    }
+
+    /**
+     * @throws NoSuchElementException if empty
+     */
+    public long pollFirst() {
+        long value = peekFirst();
+        remove(value);
+        return value;
+    }
+
+    public boolean remove(long value) {
+        int node = index.remove(value);
+        if (node < 0) {
+            return false;
+        }
+        unlink(node);
+        int last = --size;
+        if (node != last) {
+            move(last, node);
+        }
+        return true;
+    }
+
+    /**
+     * @return values from first to last
+     */
+    public long[] toArray() {
+        long[] array = new long[size];
+        int i = 0;
+        for (int node = head; node != NONE; node = next[node]) {
+            array[i++] = values[node];
+        }
+        return array;
+    }
+
+    public void clear() {
+        index.clear();
+        head = tail = NONE;
+        size = 0;
+    }
+
+    private int newNode(long value) {
+        if (size == values.length) {
+            int capacity = values.length << 1;
+            values = Arrays.copyOf(values, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        int node = size++;
+        values[node] = value;
+        index.put(value, node);
+        return node;
+    }
+
+    private void unlink(int node) {
+        int p = prev[node];
+        int n = next[node];
+        if (p == NONE) {
+            head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NONE) {
+            tail = p;
+        } else {
+            prev[n] = p;
+        }
+    }
+
+    private void move(int from, int to) {
+        values[to] = values[from];
+        prev[to] = prev[from];
+        next[to] = next[from];
+        if (prev[to] == NONE) {
+            head = to;
+        } else {
+            next[prev[to]] = to;
+        }
+        if (next[to] == NONE) {
+            tail = to;
+        } else {
+            prev[next[to]] = to;
+        }
+        index.put(values[to], to);
+    }
+}
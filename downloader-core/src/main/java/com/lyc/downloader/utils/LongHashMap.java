@@ -0,0 +1,109 @@
+package com.lyc.downloader.utils;
+
+import java.util.Arrays;
+
+/**
+ * Map with primitive long keys: O(1) get, put and remove, no boxing.
+ * Entries are kept dense, so {@link #keyAt(int)} and {@link #valueAt(int)} iterate like a
+ * LongSparseArray, but in no particular order; a removal moves the last entry into its place.
+ * Not thread safe.
+ */
+public class LongHashMap<V> {
+    private final LongIndex index;
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongHashMap() {
+        this(8);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = Math.max(expectedSize, 8);
+        index = new LongIndex(capacity);
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return index.get(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int position = index.get(key);
+        return position < 0 ? null : (V) values[position];
+    }
+
+    /**
+     * @return previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int position = index.get(key);
+        if (position >= 0) {
+            V old = (V) values[position];
+            values[position] = value;
+            return old;
+        }
+        if (size == keys.length) {
+            int capacity = keys.length << 1;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        index.put(key, size);
+        size++;
+        return null;
+    }
+
+    /**
+     * @return removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int position = index.remove(key);
+        if (position < 0) {
+            return null;
+        }
+        V old = (V) values[position];
+        int last = --size;
+        if (position != last) {
+            keys[position] = keys[last];
+            values[position] = values[last];
+            index.put(keys[position], position);
+        }
+        values[last] = null;
+        return old;
+    }
+
+    /**
+     * @param i in [0, size())
+     */
+    public long keyAt(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @param i in [0, size())
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int i) {
+        return (V) values[i];
+    }
+
+    public void clear() {
+        index.clear();
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
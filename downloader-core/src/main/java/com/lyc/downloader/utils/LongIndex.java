@@ -0,0 +1,135 @@
+package com.lyc.downloader.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to positions in the dense arrays of
+ * {@link LongHashMap} and {@link LongHashDeque}. Linear probing, at most half full,
+ * and backward shift on removal so that no tombstones pile up.
+ */
+class LongIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    // position + 1, 0 for a free slot
+    private int[] positions;
+    private int mask;
+    private int size;
+
+    LongIndex(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        positions = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return slot of key, or -(free slot) - 1 if absent
+     */
+    private int slotOf(long key) {
+        int slot = hash(key) & mask;
+        while (positions[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * @return position of key, or -1
+     */
+    int get(long key) {
+        int slot = slotOf(key);
+        return slot < 0 ? -1 : positions[slot] - 1;
+    }
+
+    /**
+     * Insert key or move it to another position.
+     */
+    void put(long key, int position) {
+        int slot = slotOf(key);
+        if (slot >= 0) {
+            positions[slot] = position + 1;
+            return;
+        }
+        if ((size + 1) * 2 > positions.length) {
+            rehash(positions.length << 1);
+            slot = slotOf(key);
+        }
+        slot = -slot - 1;
+        keys[slot] = key;
+        positions[slot] = position + 1;
+        size++;
+    }
+
+    /**
+     * @return position key had, or -1
+     */
+    int remove(long key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return -1;
+        }
+        int position = positions[slot] - 1;
+        size--;
+        // move later entries of the same probe run back into the hole
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (positions[next] != 0) {
+            int home = hash(keys[next]) & mask;
+            // entry at next may fill the hole only if its home is not in (hole, next]
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                keys[hole] = keys[next];
+                positions[hole] = positions[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        positions[hole] = 0;
+        return position;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(positions, 0);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldPositions = positions;
+        allocate(capacity);
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (positions[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                positions[slot] = oldPositions[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.lyc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How many concurrent downloads one process sustains with platform threads vs virtual threads.
+ * Every download is a reader and a writer thread sharing a {@link DownloadBuffer}, like one
+ * range of a task: the reader waits on a simulated network for every chunk and the writer
+ * writes through a {@link CoalescingFileWriter}. All downloads are alive at the same time.
+ * <p>
+ * Run with {@code ./gradlew :downloader-core:concurrencyBenchmark}, optionally
+ * {@code -Plevels=1000,4000,16000}. Virtual threads are only measured on JDK 21+.
+ * Open files grow with the level, so raise {@code ulimit -n} for large levels.
+ */
+public class ConcurrentDownloadsBenchmark {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int CHUNK_SIZE = 4096;
+    private static final int CHUNKS = 16;
+    private static final long CHUNK_LATENCY_MILLIS = 20;
+    private static final long TIMEOUT_SECONDS = 300;
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = {500, 2000, 8000};
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            levels = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                levels[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        List<ThreadBackend> backends = new ArrayList<>();
+        backends.add(ThreadBackend.platform());
+        if (ThreadBackend.isVirtualAvailable()) {
+            backends.add(ThreadBackend.virtual());
+        } else {
+            System.out.println("virtual threads not available on " + System.getProperty("java.version"));
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "ycd-concurrency-benchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        System.out.println("| backend | downloads | started | finished | wall ms | downloads/s | peak threads | heap MB |");
+        System.out.println("|---|---|---|---|---|---|---|---|");
+        for (ThreadBackend backend : backends) {
+            for (int level : levels) {
+                run(backend, level, dir);
+            }
+        }
+    }
+
+    private static void run(ThreadBackend backend, int level, File dir) throws InterruptedException {
+        System.gc();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        threadMXBean.resetPeakThreadCount();
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(level);
+        AtomicInteger finished = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>(level * 2);
+        int started = 0;
+        String failure = null;
+        for (int i = 0; i < level; i++) {
+            int index = i;
+            DownloadBuffer buffer = new DownloadBuffer(CHUNK_SIZE);
+            File file = new File(dir, backend + "-" + index + Constants.TMP_FILE_SUFFIX);
+            try {
+                Thread reader = backend.newThread(() -> read(gate, buffer), "Bench-Download-" + index);
+                Thread writer = backend.newThread(() -> {
+                    if (write(gate, buffer, file)) {
+                        finished.incrementAndGet();
+                    }
+                    done.countDown();
+                }, "Bench-Write-" + index);
+                reader.start();
+                threads.add(reader);
+                writer.start();
+                threads.add(writer);
+                started++;
+            } catch (OutOfMemoryError e) {
+                // "unable to create native thread"
+                failure = e.getMessage();
+                break;
+            }
+        }
+        for (int i = started; i < level; i++) {
+            done.countDown();
+        }
+        long start = System.nanoTime();
+        gate.countDown();
+        boolean completed = done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Runtime runtime = Runtime.getRuntime();
+        long heapMB = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+        if (!completed) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        System.out.println(String.format(Locale.US, "| %s | %d | %d | %d | %d | %.0f | %d | %d |",
+                backend, level, started, finished.get(), wallMillis,
+                finished.get() * 1000.0 / Math.max(wallMillis, 1),
+                threadMXBean.getPeakThreadCount(), heapMB));
+        if (failure != null) {
+            System.out.println("  " + backend + " stopped starting downloads: " + failure);
+        }
+    }
+
+    private static void read(CountDownLatch gate, DownloadBuffer buffer) {
+        try {
+            gate.await();
+            for (int i = 0; i <= CHUNKS; i++) {
+                Segment segment = buffer.availableWriteSegment();
+                if (segment == null) {
+                    return;
+                }
+                if (i == CHUNKS) {
+                    // end of range
+                    segment.readSize = -1;
+                } else {
+                    // waiting for the socket
+                    Thread.sleep(CHUNK_LATENCY_MILLIS);
+                    segment.readSize = CHUNK_SIZE;
+                }
+                buffer.enqueueReadSegment(segment);
+            }
+        } catch (InterruptedException e) {
+            buffer.stop();
+        }
+    }
+
+    private static boolean write(CountDownLatch gate, DownloadBuffer buffer, File file) {
+        try {
+            gate.await();
+            try (CoalescingFileWriter writer = new CoalescingFileWriter(file, 0, BLOCK_SIZE, CHUNK_SIZE * 2)) {
+                while (true) {
+                    Segment segment = buffer.availableReadSegment();
+                    if (segment == null) {
+                        return false;
+                    }
+                    try {
+                        if (segment.readSize <= 0) {
+                            writer.flush();
+                            return true;
+                        }
+                        writer.write(segment.buffer, 0, segment.readSize);
+                    } finally {
+                        buffer.enqueueWriteSegment(segment);
+                    }
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            buffer.stop();
+            return false;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class TestCoalescingFileWriter {
+    private static final int BLOCK = 4096;
+
+    @Test
+    public void testAlignedWrites() throws IOException {
+        File file = File.createTempFile("coalesce", ".ycd");
+        file.deleteOnExit();
+        long startPos = 100;
+        int segmentSize = 3000;
+        int segmentCount = 40;
+        byte[] segment = new byte[segmentSize];
+
+        long onDisk = 0;
+        try (CoalescingFileWriter writer = new CoalescingFileWriter(file, startPos, BLOCK, BLOCK * 4)) {
+            for (int i = 0; i < segmentCount; i++) {
+                for (int j = 0; j < segmentSize; j++) {
+                    segment[j] = (byte) (i * segmentSize + j);
+                }
+                int written = writer.write(segment, 0, segmentSize);
+                onDisk += written;
+                if (written > 0) {
+                    // every intermediate write ends on a block boundary
+                    Assert.assertEquals(0, (startPos + onDisk) % BLOCK);
+                }
+            }
+            onDisk += writer.flush();
+            Assert.assertEquals(0, writer.buffered());
+            Assert.assertEquals(segmentCount, writer.incoming.count());
+            Assert.assertTrue(writer.written.count() < writer.incoming.count());
+            Assert.assertEquals(writer.incoming.bytes(), writer.written.bytes());
+        }
+
+        Assert.assertEquals((long) segmentSize * segmentCount, onDisk);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Assert.assertEquals(startPos + onDisk, raf.length());
+            raf.seek(startPos);
+            for (int i = 0; i < segmentSize * segmentCount; i++) {
+                Assert.assertEquals((byte) i, raf.readByte());
+            }
+        }
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        WriteSizeHistogram histogram = new WriteSizeHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(4096);
+        histogram.record(8191);
+        Assert.assertEquals(3, histogram.count());
+        Assert.assertEquals(1, histogram.bucket(0));
+        Assert.assertEquals(2, histogram.bucket(12));
+    }
+}
@@ -0,0 +1,103 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestDiskVolumeScheduler {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testParseMountPoint() {
+        Assert.assertEquals("/data", DiskVolumeScheduler.parseMountPoint("/dev/block/dm-0 /data ext4 rw,nosuid 0 0"));
+        Assert.assertEquals("/mnt/my disk", DiskVolumeScheduler.parseMountPoint("/dev/sdb1 /mnt/my\\040disk vfat rw 0 0"));
+        Assert.assertEquals("/mnt/a\\b", DiskVolumeScheduler.parseMountPoint("/dev/sdb1 /mnt/a\\b vfat rw 0 0"));
+        Assert.assertNull(DiskVolumeScheduler.parseMountPoint("none"));
+        Assert.assertNull(DiskVolumeScheduler.parseMountPoint("/dev/sdb1 /data"));
+    }
+
+    @Test
+    public void testIsUnder() {
+        Assert.assertTrue(DiskVolumeScheduler.isUnder("/data", "/data"));
+        Assert.assertTrue(DiskVolumeScheduler.isUnder("/data/media/0", "/data"));
+        Assert.assertTrue(DiskVolumeScheduler.isUnder("/data/media/0", "/"));
+        // a common prefix is not a parent directory
+        Assert.assertFalse(DiskVolumeScheduler.isUnder("/data2/media", "/data"));
+        Assert.assertFalse(DiskVolumeScheduler.isUnder("/dat", "/data"));
+    }
+
+    @Test
+    public void testIsSaturated() {
+        DiskVolume volume = new DiskVolume("/data", 1);
+        long now = System.nanoTime();
+        // never written: nothing to compare with
+        volume.recordIngress(10_000_000);
+        volume.sample(now + SECOND);
+        Assert.assertFalse(volume.isSaturated());
+
+        // 1MB/s absorbed, ~3MB/s coming in
+        volume.beginWrite();
+        volume.endWrite(1_000_000, SECOND);
+        volume.recordIngress(10_000_000);
+        volume.sample(now + 2 * SECOND);
+        Assert.assertTrue(volume.isSaturated());
+
+        // ingress stops, its average decays below 90% of the write speed
+        int samples = 0;
+        while (volume.isSaturated()) {
+            Assert.assertTrue(++samples < 10);
+            volume.sample(now + (3 + samples) * SECOND);
+        }
+    }
+
+    @Test
+    public void testCanAdmit() {
+        DiskVolumeScheduler scheduler = new DiskVolumeScheduler(1, null, () -> {
+        });
+        DiskVolume volume = saturated(scheduler.volumeOfMountPoint("/data"));
+        // a saturated volume still runs one task
+        Assert.assertTrue(scheduler.canAdmit(volume, 0));
+        Assert.assertFalse(scheduler.canAdmit(volume, 1));
+        Assert.assertTrue(scheduler.canAdmit(scheduler.volumeOfMountPoint("/sdcard"), 1));
+        Assert.assertSame(volume, scheduler.volumeOfMountPoint("/data"));
+    }
+
+    @Test
+    public void testWakesOnlyForVolumeThatHeldBackTask() {
+        AtomicInteger wakes = new AtomicInteger();
+        DiskVolumeScheduler scheduler = new DiskVolumeScheduler(1, null, wakes::incrementAndGet);
+        long now = System.nanoTime();
+        DiskVolume data = saturated(scheduler.volumeOfMountPoint("/data"), now);
+        scheduler.volumeOfMountPoint("/sdcard");
+        Assert.assertFalse(scheduler.canAdmit(data, 1));
+
+        // /sdcard has capacity, but no task waits for it
+        scheduler.sampleAll(now + 2 * SECOND);
+        Assert.assertTrue(data.isSaturated());
+        Assert.assertEquals(0, wakes.get());
+
+        int samples = 0;
+        while (data.isSaturated()) {
+            Assert.assertTrue(++samples < 10);
+            scheduler.sampleAll(now + (2 + samples) * SECOND);
+        }
+        Assert.assertEquals(1, wakes.get());
+        // once per hold back
+        scheduler.sampleAll(now + (3 + samples) * SECOND);
+        Assert.assertEquals(1, wakes.get());
+    }
+
+    private static DiskVolume saturated(DiskVolume volume) {
+        return saturated(volume, System.nanoTime());
+    }
+
+    private static DiskVolume saturated(DiskVolume volume, long now) {
+        volume.beginWrite();
+        volume.endWrite(1_000_000, SECOND);
+        volume.recordIngress(10_000_000);
+        volume.sample(now + SECOND);
+        Assert.assertTrue(volume.isSaturated());
+        return volume;
+    }
+}
@@ -12,7 +12,7 @@ public class TestFilenamePattern {
     @Test
     public void test() {
         String input = "aabb(12)";
-        Matcher matcher = DownloadTask.reduplicatedFilenamePattern.matcher(input);
+        Matcher matcher = FilenameReservations.reduplicatedFilenamePattern.matcher(input);
         Assert.assertTrue(matcher.find());
         Assert.assertEquals(2, matcher.groupCount());
         Assert.assertEquals("aabb", matcher.group(1));
@@ -0,0 +1,52 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestListenerRegistry {
+
+    @Test
+    public void testMergesAllIdListenersFirst() {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(new String[0]);
+        Assert.assertEquals(0, registry.listeners(1).length);
+
+        registry.register(1, "a");
+        registry.registerForAll("all");
+        registry.register(Arrays.asList(1L, 2L), "b");
+        // registered for all ids already: not dispatched twice
+        registry.register(2, "all");
+        Assert.assertArrayEquals(new String[]{"all", "a", "b"}, registry.listeners(1));
+        Assert.assertArrayEquals(new String[]{"all", "b"}, registry.listeners(2));
+        Assert.assertArrayEquals(new String[]{"all"}, registry.listeners(3));
+        // lookups share the snapshot
+        Assert.assertSame(registry.listeners(1), registry.listeners(1));
+    }
+
+    @Test
+    public void testUnregister() {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(new String[0]);
+        registry.registerForAll("all");
+        registry.register(Arrays.asList(1L, 2L, 3L), "a");
+        registry.register(2, "b");
+        String[] before = registry.listeners(2);
+
+        registry.unregister(2, "a");
+        Assert.assertArrayEquals(new String[]{"all", "b"}, registry.listeners(2));
+        // a published array is never modified
+        Assert.assertArrayEquals(new String[]{"all", "a", "b"}, before);
+
+        registry.unregister("all");
+        Assert.assertArrayEquals(new String[]{"a"}, registry.listeners(1));
+        Assert.assertFalse(registry.contains("all"));
+        Assert.assertTrue(registry.contains("a"));
+        registry.unregister("a");
+        Assert.assertFalse(registry.contains("a"));
+        Assert.assertEquals(0, registry.listeners(1).length);
+        Assert.assertEquals(0, registry.listeners(3).length);
+        Assert.assertArrayEquals(new String[]{"b"}, registry.listeners(2));
+        registry.unregister(Arrays.asList(2L), "b");
+        Assert.assertEquals(0, registry.listeners(2).length);
+    }
+}
@@ -0,0 +1,98 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class TestProgressSampler {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testSpeedAndEta() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<ProgressSampler.Progress> last = new ArrayList<>();
+        List<Runnable> persists = new ArrayList<>();
+        ProgressSampler sampler = new ProgressSampler(scheduler, persists::add, progresses -> {
+            last.clear();
+            last.addAll(progresses);
+        }, true);
+        FakeSource source = new FakeSource(1, 10_000_000);
+        long now = System.nanoTime();
+        sampler.add(source);
+        // only sampleAll below; the periodic one is dropped
+        scheduler.shutdownNow();
+
+        source.size = 1_000_000;
+        sampler.sampleAll(now + SECOND);
+        Assert.assertEquals(1, last.size());
+        ProgressSampler.Progress progress = last.get(0);
+        Assert.assertEquals(1, progress.id);
+        Assert.assertEquals(1_000_000, progress.current);
+        Assert.assertEquals(1_000_000, progress.bps, 10_000);
+        Assert.assertEquals(9_000, progress.etaMillis, 100);
+        Assert.assertEquals(1, persists.size());
+
+        // no new bytes: the speed decays, nothing to persist
+        sampler.sampleAll(now + 2 * SECOND);
+        Assert.assertEquals(700_000, last.get(0).bps, 10_000);
+        Assert.assertEquals(1, persists.size());
+
+        persists.get(0).run();
+        Assert.assertEquals(1, source.persisted);
+        sampler.remove(source);
+        last.clear();
+        sampler.sampleAll(now + 3 * SECOND);
+        Assert.assertTrue(last.isEmpty());
+    }
+
+    @Test
+    public void testUnknownTotalHasNoEta() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<ProgressSampler.Progress> last = new ArrayList<>();
+        ProgressSampler sampler = new ProgressSampler(scheduler, Runnable::run, last::addAll, false);
+        FakeSource source = new FakeSource(2, -1);
+        sampler.add(source);
+        scheduler.shutdownNow();
+
+        source.size = 1_000;
+        sampler.sampleAll(System.nanoTime() + SECOND);
+        Assert.assertEquals(-1, last.get(0).etaMillis);
+        Assert.assertEquals(0, source.persisted);
+    }
+
+    private static class FakeSource implements ProgressSampler.Source {
+        final long id;
+        final long total;
+        volatile long size;
+        int persisted;
+
+        FakeSource(long id, long total) {
+            this.id = id;
+            this.total = total;
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+
+        @Override
+        public long downloadedSize() {
+            return size;
+        }
+
+        @Override
+        public long totalSize() {
+            return total;
+        }
+
+        @Override
+        public void persistProgress() {
+            persisted++;
+        }
+    }
+}
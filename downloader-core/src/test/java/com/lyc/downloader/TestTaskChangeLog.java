@@ -0,0 +1,79 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TestTaskChangeLog {
+
+    @Test
+    public void testDeltaKeepsLatestChange() {
+        TaskChangeLog<String> log = new TaskChangeLog<>(16, 7);
+        log.put(1, "a");
+        log.put(2, "b");
+        TaskChangeLog.Changes<String> snapshot = log.since(0, 0);
+        Assert.assertTrue(snapshot.reset);
+        Assert.assertEquals(2, snapshot.changes.size());
+        Assert.assertEquals(2, snapshot.version);
+
+        log.put(1, "a1");
+        log.put(1, "a2");
+        log.remove(2, "b1");
+        log.put(3, "c");
+        TaskChangeLog.Changes<String> delta = log.since(7, snapshot.version);
+        Assert.assertFalse(delta.reset);
+        Assert.assertEquals(3, delta.changes.size());
+        Assert.assertEquals(1, delta.changes.get(0).id);
+        Assert.assertEquals("a2", delta.changes.get(0).value);
+        Assert.assertEquals(2, delta.changes.get(1).id);
+        Assert.assertTrue(delta.changes.get(1).removed);
+        Assert.assertEquals(3, delta.changes.get(2).id);
+
+        Assert.assertTrue(log.since(7, log.version()).changes.isEmpty());
+        // another service process
+        Assert.assertTrue(log.since(8, log.version()).reset);
+    }
+
+    @Test
+    public void testReplicaConverges() {
+        TaskChangeLog<Integer> log = new TaskChangeLog<>(8, 1);
+        Map<Long, Integer> source = new HashMap<>();
+        Map<Long, Integer> replica = new HashMap<>();
+        long epoch = 0;
+        long version = 0;
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 1 + random.nextInt(20); i++) {
+                long id = random.nextInt(30);
+                if (random.nextInt(3) == 0) {
+                    source.remove(id);
+                    log.remove(id, null);
+                } else {
+                    int value = random.nextInt();
+                    source.put(id, value);
+                    log.put(id, value);
+                }
+            }
+            // a client that often misses rounds
+            if (random.nextInt(4) != 0) {
+                TaskChangeLog.Changes<Integer> changes = log.since(epoch, version);
+                if (changes.reset) {
+                    replica.clear();
+                }
+                for (TaskChangeLog.Change<Integer> change : changes.changes) {
+                    if (change.removed) {
+                        replica.remove(change.id);
+                    } else {
+                        replica.put(change.id, change.value);
+                    }
+                }
+                epoch = changes.epoch;
+                version = changes.version;
+                Assert.assertEquals(source, replica);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestTaskCoalescer {
+
+    @Test
+    public void testFollowersGetRetiredLeader() {
+        TaskCoalescer coalescer = new TaskCoalescer();
+        Assert.assertEquals(-1, coalescer.leaderOf("u"));
+        coalescer.lead("u", 1);
+        Assert.assertEquals(1, coalescer.leaderOf("u"));
+        coalescer.follow(1, 2);
+        coalescer.follow(1, 3);
+        Assert.assertTrue(coalescer.isFollower(2));
+        Assert.assertArrayEquals(new long[]{2, 3}, coalescer.followersOf(1));
+
+        // finished: no new followers, the old ones wait for their copy
+        Assert.assertArrayEquals(new long[]{2, 3}, coalescer.retire(1));
+        Assert.assertEquals(-1, coalescer.leaderOf("u"));
+        Assert.assertTrue(coalescer.unfollow(2));
+        Assert.assertFalse(coalescer.unfollow(2));
+        Assert.assertArrayEquals(new long[]{3}, coalescer.followersOf(1));
+        Assert.assertTrue(coalescer.unfollow(3));
+        Assert.assertEquals(0, coalescer.followersOf(1).length);
+    }
+
+    @Test
+    public void testReleaseDropsFollowers() {
+        TaskCoalescer coalescer = new TaskCoalescer();
+        coalescer.lead("u", 1);
+        coalescer.follow(1, 2);
+        // a newer task leads the url; the old leader keeps its followers
+        coalescer.lead("u", 4);
+        Assert.assertEquals(4, coalescer.leaderOf("u"));
+        Assert.assertArrayEquals(new long[]{2}, coalescer.release(1));
+        Assert.assertFalse(coalescer.isFollower(2));
+        Assert.assertEquals(4, coalescer.leaderOf("u"));
+
+        coalescer.follow(4, 5);
+        Assert.assertArrayEquals(new long[]{5}, coalescer.release(4));
+        Assert.assertEquals(-1, coalescer.leaderOf("u"));
+        Assert.assertEquals(0, coalescer.release(4).length);
+    }
+
+    @Test
+    public void testFollowerArraysRebuiltOnChange() {
+        TaskCoalescer coalescer = new TaskCoalescer();
+        coalescer.lead("u", 1);
+        coalescer.lead("v", 4);
+        coalescer.follow(1, 2);
+        coalescer.follow(4, 5);
+        long[] followers = coalescer.followersOf(1);
+        // no copy per call: progress updates look followers up on every tick
+        Assert.assertSame(followers, coalescer.followersOf(1));
+
+        coalescer.follow(1, 3);
+        Assert.assertArrayEquals(new long[]{2}, followers);
+        Assert.assertArrayEquals(new long[]{2, 3}, coalescer.followersOf(1));
+        long[] all = coalescer.followers();
+        Arrays.sort(all);
+        Assert.assertArrayEquals(new long[]{2, 3, 5}, all);
+
+        coalescer.unfollow(2);
+        Assert.assertArrayEquals(new long[]{3}, coalescer.followersOf(1));
+        coalescer.release(4);
+        Assert.assertArrayEquals(new long[]{3}, coalescer.followers());
+    }
+}
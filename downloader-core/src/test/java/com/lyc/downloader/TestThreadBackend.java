@@ -0,0 +1,34 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class TestThreadBackend {
+
+    @Test
+    public void testAutoMatchesRuntime() {
+        ThreadBackend backend = ThreadBackend.auto();
+        Assert.assertEquals(ThreadBackend.isVirtualAvailable(), backend.isVirtual());
+        if (!ThreadBackend.isVirtualAvailable()) {
+            Assert.assertSame(ThreadBackend.platform(), backend);
+        }
+    }
+
+    @Test
+    public void testThreadsAndIo() throws InterruptedException {
+        ThreadBackend backend = ThreadBackend.auto();
+        CountDownLatch latch = new CountDownLatch(2);
+        Thread thread = backend.newThread(latch::countDown, "Task#1-Download-0");
+        Assert.assertEquals("Task#1-Download-0", thread.getName());
+        Assert.assertEquals(Thread.State.NEW, thread.getState());
+        thread.start();
+        ExecutorService io = backend.newIoExecutor();
+        io.execute(latch::countDown);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        io.shutdown();
+    }
+}
@@ -0,0 +1,40 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestThreadEventLoop {
+
+    @Test
+    public void testRunsInOrderOnLoop() throws InterruptedException {
+        ThreadEventLoop loop = new ThreadEventLoop("test-loop");
+        loop.start();
+        List<Integer> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            int index = i;
+            loop.execute(() -> {
+                Assert.assertTrue(loop.inLoop());
+                order.add(index);
+            });
+        }
+        loop.execute(() -> {
+            // nested command runs at once
+            loop.execute(() -> order.add(100));
+            order.add(101);
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(loop.inLoop());
+        Assert.assertEquals(102, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            Assert.assertEquals(i, (int) order.get(i));
+        }
+        loop.interrupt();
+    }
+}
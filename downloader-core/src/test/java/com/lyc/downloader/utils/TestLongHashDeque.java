@@ -0,0 +1,69 @@
+package com.lyc.downloader.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+public class TestLongHashDeque {
+
+    @Test
+    public void testMatchesUniqueDequeue() {
+        LongHashDeque deque = new LongHashDeque();
+        UniqueDequeue<Long> expected = new UniqueDequeue<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(300);
+            switch (random.nextInt(5)) {
+                case 0:
+                    Assert.assertEquals(expected.offerLast(value), deque.offerLast(value));
+                    break;
+                case 1:
+                    Assert.assertEquals(expected.offerFirst(value), deque.offerFirst(value));
+                    break;
+                case 2:
+                    Assert.assertEquals(expected.remove(value), deque.remove(value));
+                    break;
+                case 3:
+                    if (!expected.isEmpty()) {
+                        Assert.assertEquals((long) expected.pollFirst(), deque.pollFirst());
+                    }
+                    break;
+                default:
+                    Assert.assertEquals(expected.contains(value), deque.contains(value));
+                    break;
+            }
+            Assert.assertEquals(expected.size(), deque.size());
+        }
+        List<Long> order = new ArrayList<>();
+        for (long value : deque.toArray()) {
+            order.add(value);
+        }
+        Assert.assertEquals(new ArrayList<>(expected), order);
+    }
+
+    @Test
+    public void testOrder() {
+        LongHashDeque deque = new LongHashDeque();
+        deque.offerLast(2);
+        deque.offerLast(3);
+        deque.offerFirst(1);
+        Assert.assertFalse(deque.offerLast(1));
+        Assert.assertTrue(deque.remove(2));
+        deque.offerLast(4);
+        Assert.assertArrayEquals(new long[]{1, 3, 4}, deque.toArray());
+        Assert.assertEquals(1, deque.pollFirst());
+        Assert.assertEquals(3, deque.peekFirst());
+        deque.clear();
+        Assert.assertTrue(deque.isEmpty());
+        try {
+            deque.pollFirst();
+            Assert.fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.lyc.downloader.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TestLongHashMap {
+
+    @Test
+    public void testMatchesHashMap() {
+        LongHashMap<String> map = new LongHashMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // small key range: many collisions, updates and removals of present keys
+            long key = random.nextInt(2000) - 1000;
+            int op = random.nextInt(3);
+            if (op == 0) {
+                Assert.assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+            } else if (op == 1) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Assert.assertEquals(expected.get(key), map.get(key));
+                Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        Map<Long, String> iterated = new HashMap<>();
+        for (int i = 0; i < map.size(); i++) {
+            iterated.put(map.keyAt(i), map.valueAt(i));
+        }
+        Assert.assertEquals(expected, iterated);
+
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(0));
+    }
+
+    @Test
+    public void testSpreadKeys() {
+        LongHashMap<Long> map = new LongHashMap<>();
+        // database ids and keys differing only in high bits
+        for (long i = 1; i <= 50000; i++) {
+            map.put(i << 32, i);
+            map.put(i, -i);
+        }
+        Assert.assertEquals(100000, map.size());
+        for (long i = 1; i <= 50000; i++) {
+            Assert.assertEquals(Long.valueOf(i), map.get(i << 32));
+            Assert.assertEquals(Long.valueOf(-i), map.get(i));
+        }
+    }
+}
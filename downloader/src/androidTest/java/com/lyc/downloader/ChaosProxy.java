@@ -0,0 +1,269 @@
+package com.lyc.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reverse proxy in front of a local origin that injects one kind of network fault into a
+ * limited number of responses, and counts the body bytes it relays so that bytes downloaded
+ * again after a fault can be measured.
+ * <p>
+ * Every request gets its own upstream connection and "Connection: close"; the origin must
+ * send Content-Length, as {@link RangeDispatcher} does.
+ */
+class ChaosProxy {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String STALE_LAST_MODIFIED = "Mon, 01 Jul 2019 08:00:00 GMT";
+
+    enum Fault {
+        NONE,
+        // connection reset before response headers, never for the first request
+        RESET_ON_CONNECT,
+        // connection reset after some body bytes
+        RESET_MID_STREAM,
+        // body stops for a while after some bytes
+        STALL,
+        // connection closed cleanly before Content-Length bytes are sent
+        TRUNCATE,
+        // Range of a request not starting at 0 is dropped, so the origin answers 200
+        IGNORE_RANGE,
+        // Last-Modified of the first response is rewritten, as if the file changed right after it
+        CHANGE_LAST_MODIFIED,
+        // every new connection waits before its first request is read: slow response headers
+        // over plain HTTP, not a TLS handshake
+        SLOW_NEW_CONNECTION
+    }
+
+    private final String upstreamHost;
+    private final int upstreamPort;
+    private final Fault fault;
+    private final long afterBytes;
+    private final long delayMillis;
+    private final AtomicInteger faultsLeft;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger faultCount = new AtomicInteger();
+    private final AtomicLong relayedBodyBytes = new AtomicLong();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param afterBytes body bytes of a response sent before a mid-stream fault
+     * @param times      responses that get the fault
+     * @param delayMillis stall or new connection delay
+     */
+    ChaosProxy(String upstreamHost, int upstreamPort, Fault fault, long afterBytes, int times, long delayMillis) {
+        this.upstreamHost = upstreamHost;
+        this.upstreamPort = upstreamPort;
+        this.fault = fault;
+        this.afterBytes = afterBytes;
+        this.delayMillis = delayMillis;
+        this.faultsLeft = new AtomicInteger(times);
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    executor.execute(() -> serve(client));
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+    }
+
+    void shutdown() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    int requestCount() {
+        return requestCount.get();
+    }
+
+    int faultCount() {
+        return faultCount.get();
+    }
+
+    long relayedBodyBytes() {
+        return relayedBodyBytes.get();
+    }
+
+    private boolean takeFault(Fault kind) {
+        if (fault != kind) {
+            return false;
+        }
+        while (true) {
+            int left = faultsLeft.get();
+            if (left <= 0) {
+                return false;
+            }
+            if (faultsLeft.compareAndSet(left, left - 1)) {
+                faultCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket clientSocket = client) {
+            if (takeFault(Fault.SLOW_NEW_CONNECTION)) {
+                Thread.sleep(delayMillis);
+            }
+            InputStream clientIn = clientSocket.getInputStream();
+            OutputStream clientOut = clientSocket.getOutputStream();
+            String requestHead = readHead(clientIn);
+            if (requestHead == null) {
+                return;
+            }
+            int index = requestCount.getAndIncrement();
+            if (index > 0 && takeFault(Fault.RESET_ON_CONNECT)) {
+                reset(clientSocket);
+                return;
+            }
+            requestHead = rewriteRequest(requestHead);
+
+            try (Socket upstream = new Socket(upstreamHost, upstreamPort)) {
+                OutputStream upstreamOut = upstream.getOutputStream();
+                upstreamOut.write(requestHead.getBytes(ASCII));
+                upstreamOut.flush();
+                InputStream upstreamIn = upstream.getInputStream();
+                String responseHead = readHead(upstreamIn);
+                if (responseHead == null) {
+                    return;
+                }
+                responseHead = setHeader(responseHead, "Connection", "close");
+                if (index == 0 && takeFault(Fault.CHANGE_LAST_MODIFIED)) {
+                    responseHead = setHeader(responseHead, "Last-Modified", STALE_LAST_MODIFIED);
+                }
+                clientOut.write(responseHead.getBytes(ASCII));
+                relayBody(clientSocket, upstreamIn, clientOut, contentLength(responseHead));
+            }
+        } catch (IOException | InterruptedException e) {
+            // client or proxy gone
+        }
+    }
+
+    private String rewriteRequest(String head) {
+        head = setHeader(head, "Host", upstreamHost + ":" + upstreamPort);
+        head = setHeader(head, "Connection", "close");
+        String range = header(head, "Range");
+        if (range != null && !range.startsWith("bytes=0-") && takeFault(Fault.IGNORE_RANGE)) {
+            head = setHeader(head, "Range", null);
+        }
+        return head;
+    }
+
+    private void relayBody(Socket clientSocket, InputStream upstreamIn, OutputStream clientOut, long length)
+            throws IOException, InterruptedException {
+        boolean midStreamFault = length > afterBytes && (takeFault(Fault.RESET_MID_STREAM)
+                || takeFault(Fault.TRUNCATE) || takeFault(Fault.STALL));
+        byte[] buffer = new byte[8192];
+        long sent = 0;
+        while (sent < length) {
+            long limit = midStreamFault && sent < afterBytes ? afterBytes - sent : length - sent;
+            int read = upstreamIn.read(buffer, 0, (int) Math.min(buffer.length, limit));
+            if (read == -1) {
+                break;
+            }
+            // counted first, so that it is complete once the client has the bytes
+            relayedBodyBytes.addAndGet(read);
+            clientOut.write(buffer, 0, read);
+            sent += read;
+            if (midStreamFault && sent == afterBytes) {
+                clientOut.flush();
+                midStreamFault = false;
+                switch (fault) {
+                    case RESET_MID_STREAM:
+                        reset(clientSocket);
+                        return;
+                    case TRUNCATE:
+                        clientSocket.shutdownOutput();
+                        return;
+                    case STALL:
+                        Thread.sleep(delayMillis);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        clientOut.flush();
+    }
+
+    // RST instead of FIN
+    private static void reset(Socket socket) throws IOException {
+        socket.setSoLinger(true, 0);
+        socket.close();
+    }
+
+    /**
+     * @return head including the blank line, or null at end of stream
+     */
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // last 4 bytes read
+        int tail = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+            tail = (tail << 8) | b;
+            if (tail == 0x0d0a0d0a) {
+                return new String(out.toByteArray(), ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static long contentLength(String head) {
+        String value = header(head, "Content-Length");
+        return value == null ? Long.MAX_VALUE : Long.parseLong(value);
+    }
+
+    private static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param value null to remove the header
+     */
+    private static String setHeader(String head, String name, String value) {
+        String[] lines = head.split("\r\n");
+        StringBuilder sb = new StringBuilder(lines[0]).append("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (!lines[i].isEmpty()) {
+                sb.append(lines[i]).append("\r\n");
+            }
+        }
+        if (value != null) {
+            sb.append(name).append(": ").append(value).append("\r\n");
+        }
+        return sb.append("\r\n").toString();
+    }
+}
@@ -0,0 +1,249 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.ChaosProxy.Fault;
+import com.lyc.downloader.db.DownloadInfo;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads one file through a {@link ChaosProxy} per fault kind and checks the outcome:
+ * transient faults must be retried into a correct file, a 200 to a Range request must end
+ * in {@link DownloadError#ERROR_CONTENT_EXPIRED}. Every scenario prints the bytes downloaded
+ * again compared with the fault free run, the retries and the time to completion.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FaultInjectionTest {
+    private static final int FILE_SIZE = 2 << 20;
+    // 1MB/s per connection: every range is still streaming when a fault hits
+    private static final long BYTES_PER_PERIOD = 100 * 1024;
+    private static final long PERIOD_MILLIS = 100;
+    private static final long AFTER_BYTES = 128 * 1024;
+    private static final long DELAY_MILLIS = 2000;
+    private static final long WAIT_SECONDS = 60;
+
+    private static final byte[] payload = RangeDispatcher.payload(FILE_SIZE);
+    // relayed bytes of the fault free run, -1 until it has run
+    private static long baselineBytes = -1;
+
+    private MockWebServer server;
+    private DownloadManager downloadManager;
+    private File directory;
+    private Long id;
+    private volatile CountDownLatch doneLatch;
+    private final AtomicReference<DownloadInfo> finished = new AtomicReference<>();
+    private final AtomicInteger errorCode = new AtomicInteger(-1);
+
+    @BeforeClass
+    public static void printHeader() {
+        System.out.println("| fault | outcome | requests | faults | relayed KB | again KB | retries | ms |");
+        System.out.println("|---|---|---|---|---|---|---|---|");
+    }
+
+    @Before
+    public void init() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new RangeDispatcher(payload, BYTES_PER_PERIOD, PERIOD_MILLIS));
+        server.start();
+
+        Context context = ApplicationProvider.getApplicationContext();
+        directory = new File(context.getCacheDir(), "fault_injection");
+        // BaseServiceManager is bypassed, so the message and command loops are started here
+        DownloadExecutors.init();
+        DownloadManager.init(context, new Configuration.Builder()
+                .setMultiProcess(false)
+                .setAvoidFrameDrop(false)
+                .build());
+        downloadManager = DownloadManager.instance();
+        downloadManager.setSpeedLimit(0);
+        downloadManager.setDownloadCallback(new FaultCallback());
+    }
+
+    @After
+    public void clear() throws IOException {
+        downloadManager.setDownloadCallback(null);
+        if (id != null) {
+            downloadManager.delete(id, true);
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        run(Fault.NONE, 0);
+        assertFinished();
+    }
+
+    @Test
+    public void testResetOnConnect() throws Exception {
+        // within the retry budget of one range
+        assertFinished(run(Fault.RESET_ON_CONNECT, 2));
+    }
+
+    @Test
+    public void testResetMidStream() throws Exception {
+        assertFinished(run(Fault.RESET_MID_STREAM, 2));
+    }
+
+    @Test
+    public void testStall() throws Exception {
+        // shorter than the read timeout, ranges just wait
+        assertFinished(run(Fault.STALL, 2));
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        assertFinished(run(Fault.TRUNCATE, 2));
+    }
+
+    @Test
+    public void testSlowNewConnection() throws Exception {
+        assertFinished(run(Fault.SLOW_NEW_CONNECTION, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testIgnoreRange() throws Exception {
+        run(Fault.IGNORE_RANGE, Integer.MAX_VALUE);
+        Assert.assertEquals(DownloadError.ERROR_CONTENT_EXPIRED, errorCode.get());
+    }
+
+    @Test
+    public void testChangeLastModified() throws Exception {
+        run(Fault.CHANGE_LAST_MODIFIED, 1);
+        Assert.assertEquals(DownloadError.ERROR_CONTENT_EXPIRED, errorCode.get());
+    }
+
+    private ChaosProxy run(Fault fault, int times) throws Exception {
+        if (baselineBytes < 0 && fault != Fault.NONE) {
+            // the pivot connection is closed early even without faults, so measure that first
+            run(Fault.NONE, 0);
+            downloadManager.delete(id, true);
+            id = null;
+        }
+        ChaosProxy proxy = new ChaosProxy(server.getHostName(), server.getPort(),
+                fault, AFTER_BYTES, times, DELAY_MILLIS);
+        proxy.start();
+        try {
+            finished.set(null);
+            errorCode.set(-1);
+            doneLatch = new CountDownLatch(1);
+            CountDownLatch submitLatch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            downloadManager.submit(proxy.url("/file"), directory.getAbsolutePath(),
+                    "fault_" + fault.name().toLowerCase(Locale.US), new ISubmitCallback.Stub() {
+                        @Override
+                        public void submitSuccess(DownloadInfo downloadInfo) {
+                            id = downloadInfo.getId();
+                            submitLatch.countDown();
+                        }
+
+                        @Override
+                        public void submitFail(String reason) {
+                            Assert.fail(reason);
+                        }
+                    });
+            Assert.assertTrue(submitLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            Assert.assertTrue(doneLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            DownloadStats stats = downloadManager.queryDownloadStats(id);
+            long relayed = proxy.relayedBodyBytes();
+            if (fault == Fault.NONE && baselineBytes < 0) {
+                baselineBytes = relayed;
+            }
+            System.out.println(String.format(Locale.US, "| %s | %s | %d | %d | %d | %d | %d | %d |",
+                    fault, finished.get() != null ? "finished" : "error " + errorCode.get(),
+                    proxy.requestCount(), proxy.faultCount(), relayed >> 10,
+                    (relayed - baselineBytes) >> 10,
+                    stats == null ? 0 : stats.getTotal().getRetryCount(), millis));
+            return proxy;
+        } finally {
+            proxy.shutdown();
+        }
+    }
+
+    private void assertFinished(ChaosProxy proxy) throws IOException {
+        Assert.assertTrue("fault never injected", proxy.faultCount() > 0);
+        assertFinished();
+    }
+
+    private void assertFinished() throws IOException {
+        DownloadInfo downloadInfo = finished.get();
+        Assert.assertNotNull("error " + errorCode.get(), downloadInfo);
+        File file = new File(downloadInfo.getPath(), downloadInfo.getFilename());
+        Assert.assertEquals(FILE_SIZE, file.length());
+        byte[] content = new byte[FILE_SIZE];
+        try (InputStream is = new FileInputStream(file)) {
+            int offset = 0;
+            int read;
+            while (offset < FILE_SIZE && (read = is.read(content, offset, FILE_SIZE - offset)) != -1) {
+                offset += read;
+            }
+        }
+        Assert.assertTrue(Arrays.equals(payload, content));
+    }
+
+    private class FaultCallback extends IDownloadCallback.Stub {
+        @Override
+        public void onDownloadConnecting(long id) {
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+            errorCode.set(code);
+            doneLatch.countDown();
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+        }
+
+        @Override
+        public void onDownloadWaiting(long id) {
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+            finished.set(downloadInfo);
+            doneLatch.countDown();
+        }
+    }
+}
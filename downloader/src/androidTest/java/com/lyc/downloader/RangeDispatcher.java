@@ -0,0 +1,92 @@
+package com.lyc.downloader;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves one payload for any path and honors "Range: bytes=a-b" like a static file server.
+ * Sends {@link #LAST_MODIFIED} and answers the whole payload if "If-Range" does not match it.
+ */
+class RangeDispatcher extends Dispatcher {
+    static final String LAST_MODIFIED = "Wed, 10 Jul 2019 08:00:00 GMT";
+
+    private final byte[] payload;
+    private final long bytesPerPeriod;
+    private final long periodMillis;
+    private final long latencyMillis;
+
+    /**
+     * @param bytesPerPeriod body throttle of every response, no throttle if <= 0
+     */
+    RangeDispatcher(byte[] payload, long bytesPerPeriod, long periodMillis) {
+        this(payload, bytesPerPeriod, periodMillis, 0);
+    }
+
+    /**
+     * @param latencyMillis delay before the response headers of every request
+     */
+    RangeDispatcher(byte[] payload, long bytesPerPeriod, long periodMillis, long latencyMillis) {
+        this.payload = payload;
+        this.bytesPerPeriod = bytesPerPeriod;
+        this.periodMillis = periodMillis;
+        this.latencyMillis = latencyMillis;
+    }
+
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        int total = payload.length;
+        int start = 0;
+        int end = total - 1;
+        boolean partial = false;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !LAST_MODIFIED.equals(ifRange)) {
+            range = null;
+        }
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            try {
+                start = Integer.parseInt(bounds[0].trim());
+                if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1].trim()));
+                }
+                partial = true;
+            } catch (NumberFormatException e) {
+                start = 0;
+            }
+        }
+        if (start > end) {
+            return new MockResponse().setResponseCode(416)
+                    .setHeader("Content-Range", "bytes */" + total);
+        }
+
+        MockResponse response = new MockResponse()
+                .setResponseCode(partial ? 206 : 200)
+                .setHeader("Accept-Ranges", "bytes")
+                .setHeader("Content-Type", "application/octet-stream")
+                .setHeader("Last-Modified", LAST_MODIFIED)
+                .setBody(new Buffer().write(payload, start, end - start + 1));
+        if (partial) {
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + total);
+        }
+        if (bytesPerPeriod > 0) {
+            response.throttleBody(bytesPerPeriod, periodMillis, TimeUnit.MILLISECONDS);
+        }
+        if (latencyMillis > 0) {
+            response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+}
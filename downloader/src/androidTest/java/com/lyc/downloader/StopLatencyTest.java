@@ -0,0 +1,196 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pauses and cancels many running tasks against a slow local server and checks
+ * how long it takes from the request to the PAUSED / CANCELED callback.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StopLatencyTest {
+    private static final int TASK_COUNT = 12;
+    private static final int ROUNDS = 5;
+    // the old 1s buffer poll made this ~1000ms
+    private static final long P99_LIMIT_MILLIS = 200;
+    private static final long WAIT_SECONDS = 30;
+
+    private MockWebServer server;
+    private DownloadManager downloadManager;
+    private File directory;
+    private final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Long, Long> stopRequestNanos = new ConcurrentHashMap<>();
+    private final List<Long> pauseLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> cancelLatencies = Collections.synchronizedList(new ArrayList<>());
+    private volatile CountDownLatch startLatch;
+    private volatile CountDownLatch stopLatch;
+
+    @Before
+    public void init() throws IOException {
+        // 2MB, 80KB/s per connection: no task can finish during the test
+        server = new MockWebServer();
+        server.setDispatcher(new RangeDispatcher(RangeDispatcher.payload(2 << 20), 8 * 1024, 100));
+        server.start();
+
+        Context context = ApplicationProvider.getApplicationContext();
+        directory = new File(context.getCacheDir(), "stop_latency");
+        // BaseServiceManager is bypassed, so the message and command loops are started here
+        DownloadExecutors.init();
+        DownloadManager.init(context, new Configuration.Builder()
+                .setMultiProcess(false)
+                .setAvoidFrameDrop(false)
+                .build());
+        downloadManager = DownloadManager.instance();
+        downloadManager.setMaxRunningTask(Math.min(TASK_COUNT, Configuration.MAX_SUPPORT_TASK_COUNT));
+        downloadManager.setDownloadCallback(new LatencyCallback());
+    }
+
+    @After
+    public void clear() throws IOException {
+        downloadManager.setDownloadCallback(null);
+        for (Long id : ids) {
+            downloadManager.delete(id, true);
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void testStopLatency() throws Exception {
+        int taskCount = Math.min(TASK_COUNT, Configuration.MAX_SUPPORT_TASK_COUNT);
+        startLatch = new CountDownLatch(taskCount);
+        CountDownLatch submitLatch = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            downloadManager.submit(server.url("/file" + i).toString(), directory.getAbsolutePath(),
+                    "stop_latency_" + i, new ISubmitCallback.Stub() {
+                        @Override
+                        public void submitSuccess(DownloadInfo downloadInfo) {
+                            ids.add(downloadInfo.getId());
+                            submitLatch.countDown();
+                        }
+
+                        @Override
+                        public void submitFail(String reason) {
+                            Assert.fail(reason);
+                        }
+                    });
+        }
+        Assert.assertTrue(submitLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertTrue(startLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // let readers block on the slow network
+            Thread.sleep(300);
+            stopLatch = new CountDownLatch(taskCount);
+            for (Long id : ids) {
+                stopRequestNanos.put(id, System.nanoTime());
+                downloadManager.pause(id);
+            }
+            Assert.assertTrue(stopLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+            startLatch = new CountDownLatch(taskCount);
+            for (Long id : ids) {
+                downloadManager.startOrResume(id, false);
+            }
+            Assert.assertTrue(startLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        Thread.sleep(300);
+        stopLatch = new CountDownLatch(taskCount);
+        for (Long id : ids) {
+            stopRequestNanos.put(id, System.nanoTime());
+            downloadManager.cancel(id);
+        }
+        Assert.assertTrue(stopLatch.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        long pauseP99 = p99(pauseLatencies);
+        long cancelP99 = p99(cancelLatencies);
+        System.out.println("stop latency p99: pause = " + pauseP99 + "ms, cancel = " + cancelP99 + "ms");
+        Assert.assertTrue("pause p99 " + pauseP99 + "ms", pauseP99 <= P99_LIMIT_MILLIS);
+        Assert.assertTrue("cancel p99 " + cancelP99 + "ms", cancelP99 <= P99_LIMIT_MILLIS);
+    }
+
+    private static long p99(List<Long> latencies) {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Assert.assertFalse(sorted.isEmpty());
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * 0.99) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(index, 0)));
+    }
+
+    private void onStopped(long id, List<Long> latencies) {
+        Long requested = stopRequestNanos.remove(id);
+        if (requested != null) {
+            latencies.add(System.nanoTime() - requested);
+            stopLatch.countDown();
+        }
+    }
+
+    private class LatencyCallback extends IDownloadCallback.Stub {
+        @Override
+        public void onDownloadConnecting(long id) {
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+            CountDownLatch startLatch = StopLatencyTest.this.startLatch;
+            if (startLatch != null) {
+                startLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+            onStopped(id, pauseLatencies);
+        }
+
+        @Override
+        public void onDownloadWaiting(long id) {
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+            onStopped(id, cancelLatencies);
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submits a url twice so that the second task follows the first, then checks that startAll and
+ * pauseAll treat the follower as part of the transfer it waits for: it is not started on its own,
+ * finished once, and paused with everything else.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskCoalescingTest {
+    private static final String CONNECTING = "connecting";
+    private static final String START = "start";
+    private static final String PAUSED = "paused";
+    private static final String FINISHED = "finished";
+    private static final long WAIT_MILLIS = 30_000;
+
+    private MockWebServer server;
+    private DownloadManager downloadManager;
+    private File directory;
+    private final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+    // "event#id" to how many times it has been called back
+    private final Map<String, Integer> events = new HashMap<>();
+
+    @Before
+    public void init() throws IOException {
+        // 1MB, 160KB/s per connection: the leader runs for about 2s
+        server = new MockWebServer();
+        server.setDispatcher(new RangeDispatcher(RangeDispatcher.payload(1 << 20), 16 * 1024, 100));
+        server.start();
+
+        Context context = ApplicationProvider.getApplicationContext();
+        directory = new File(context.getCacheDir(), "coalescing");
+        // BaseServiceManager is bypassed, so the message and command loops are started here
+        DownloadExecutors.init();
+        DownloadManager.init(context, new Configuration.Builder()
+                .setMultiProcess(false)
+                .setAvoidFrameDrop(false)
+                .build());
+        downloadManager = DownloadManager.instance();
+        downloadManager.setDownloadCallback(new RecordingCallback());
+    }
+
+    @After
+    public void clear() throws IOException {
+        downloadManager.setDownloadCallback(null);
+        for (Long id : ids) {
+            downloadManager.delete(id, true);
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void testStartAllLeavesFollowers() throws Exception {
+        long[] pair = submitFollowedPair("start_all");
+        long leader = pair[0], follower = pair[1];
+
+        downloadManager.startAll();
+        awaitEvent(FINISHED, leader);
+        awaitEvent(FINISHED, follower);
+        // a follower started by startAll would download again and finish twice
+        Thread.sleep(500);
+        Assert.assertEquals(0, count(CONNECTING, follower));
+        Assert.assertEquals(1, count(FINISHED, leader));
+        Assert.assertEquals(1, count(FINISHED, follower));
+    }
+
+    @Test
+    public void testPauseAllPausesFollowers() throws Exception {
+        long[] pair = submitFollowedPair("pause_all");
+        long leader = pair[0], follower = pair[1];
+
+        downloadManager.pauseAll();
+        awaitEvent(PAUSED, leader);
+        awaitEvent(PAUSED, follower);
+        // the paused leader must not hand its follower back to the queue
+        Thread.sleep(500);
+        Assert.assertEquals(0, count(CONNECTING, follower));
+        Assert.assertEquals(0, count(FINISHED, follower));
+    }
+
+    /**
+     * @return ids of a running task and of the task of the same url that follows it
+     */
+    private long[] submitFollowedPair(String name) throws Exception {
+        String url = server.url("/" + name).toString();
+        long leader = submit(url, name + "_leader");
+        awaitEvent(START, leader);
+        long follower = submit(url, name + "_follower");
+        // the follower waits for the leader instead of connecting
+        Thread.sleep(300);
+        Assert.assertEquals(0, count(CONNECTING, follower));
+        return new long[]{leader, follower};
+    }
+
+    private long submit(String url, String filename) throws Exception {
+        long[] id = {-1};
+        Object lock = new Object();
+        downloadManager.submit(url, directory.getAbsolutePath(), filename, new ISubmitCallback.Stub() {
+            @Override
+            public void submitSuccess(DownloadInfo downloadInfo) {
+                synchronized (lock) {
+                    id[0] = downloadInfo.getId();
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void submitFail(String reason) {
+                Assert.fail(reason);
+            }
+        });
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        synchronized (lock) {
+            while (id[0] < 0 && System.currentTimeMillis() < deadline) {
+                lock.wait(deadline - System.currentTimeMillis());
+            }
+        }
+        Assert.assertTrue("submit timed out", id[0] >= 0);
+        ids.add(id[0]);
+        return id[0];
+    }
+
+    private int count(String event, long id) {
+        synchronized (events) {
+            Integer count = events.get(event + "#" + id);
+            return count == null ? 0 : count;
+        }
+    }
+
+    private void awaitEvent(String event, long id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        synchronized (events) {
+            while (!events.containsKey(event + "#" + id)) {
+                long left = deadline - System.currentTimeMillis();
+                Assert.assertTrue(event + " of task#" + id + " timed out", left > 0);
+                events.wait(left);
+            }
+        }
+    }
+
+    private void record(String event, long id) {
+        synchronized (events) {
+            String key = event + "#" + id;
+            Integer count = events.get(key);
+            events.put(key, count == null ? 1 : count + 1);
+            events.notifyAll();
+        }
+    }
+
+    private class RecordingCallback extends IDownloadCallback.Stub {
+        @Override
+        public void onDownloadConnecting(long id) {
+            record(CONNECTING, id);
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+            record(START, downloadInfo.getId());
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+            record(PAUSED, id);
+        }
+
+        @Override
+        public void onDownloadWaiting(long id) {
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+            record(FINISHED, downloadInfo.getId());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test: N tasks download from a local server with Range support, per-connection bandwidth
+ * caps and request latency, and one table row per level is printed to logcat
+ * (tag System.out): aggregate MB/s, time to first byte and completion time percentiles,
+ * peak threads, peak heap, allocation rate and database writes.
+ * <p>
+ * Run with {@code ./gradlew :downloader:connectedAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=com.lyc.downloader.ThroughputHarness},
+ * and change the load with more runner arguments:
+ * {@code tasks} (levels, default "1,4,8"), {@code fileSizeKB} (default 4096),
+ * {@code bandwidthKBps} per connection (default 1024, 0 for no cap),
+ * {@code latencyMillis} (default 50).
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThroughputHarness {
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+    private static final long WAIT_MINUTES = 10;
+    // throttle granularity of the server
+    private static final long PERIOD_MILLIS = 100;
+
+    private final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Long, Long> submitNanos = new ConcurrentHashMap<>();
+    private final Map<Long, Long> finishNanos = new ConcurrentHashMap<>();
+    private final AtomicInteger errors = new AtomicInteger();
+    private volatile CountDownLatch doneLatch;
+
+    private MockWebServer server;
+    private DownloadManager downloadManager;
+    private File directory;
+    private int[] levels;
+    private int fileSize;
+
+    @Before
+    public void init() throws IOException {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String[] parts = arguments.getString("tasks", "1,4,8").split(",");
+        levels = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            levels[i] = Math.min(Integer.parseInt(parts[i].trim()), Configuration.MAX_SUPPORT_TASK_COUNT);
+        }
+        fileSize = Integer.parseInt(arguments.getString("fileSizeKB", "4096")) * 1024;
+        long bandwidth = Long.parseLong(arguments.getString("bandwidthKBps", "1024")) * 1024;
+        long latencyMillis = Long.parseLong(arguments.getString("latencyMillis", "50"));
+
+        server = new MockWebServer();
+        server.setDispatcher(new RangeDispatcher(RangeDispatcher.payload(fileSize),
+                bandwidth * PERIOD_MILLIS / 1000, PERIOD_MILLIS, latencyMillis));
+        server.start();
+
+        Context context = ApplicationProvider.getApplicationContext();
+        directory = new File(context.getCacheDir(), "throughput");
+        // BaseServiceManager is bypassed, so the message and command loops are started here
+        DownloadExecutors.init();
+        DownloadManager.init(context, new Configuration.Builder()
+                .setMultiProcess(false)
+                .setAvoidFrameDrop(false)
+                .build());
+        downloadManager = DownloadManager.instance();
+        downloadManager.setSpeedLimit(0);
+        downloadManager.setDownloadCallback(new HarnessCallback());
+        System.out.println(String.format(Locale.US,
+                "throughput: file %dKB, %s per connection, latency %dms",
+                fileSize >> 10, bandwidth > 0 ? (bandwidth >> 10) + "KB/s" : "no cap", latencyMillis));
+        System.out.println("| tasks | MB/s | ttfb p50 ms | ttfb p99 ms | done p50 ms | done p99 ms "
+                + "| peak threads | peak heap MB | alloc MB/s | db writes |");
+        System.out.println("|---|---|---|---|---|---|---|---|---|---|");
+    }
+
+    @After
+    public void clear() throws IOException {
+        downloadManager.setDownloadCallback(null);
+        deleteAll();
+        server.shutdown();
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        for (int level : levels) {
+            run(level);
+            deleteAll();
+        }
+    }
+
+    private void run(int taskCount) throws InterruptedException {
+        submitNanos.clear();
+        finishNanos.clear();
+        errors.set(0);
+        downloadManager.setMaxRunningTask(taskCount);
+        Sampler sampler = new Sampler();
+        long allocatedBefore = allocatedBytes();
+        long writesBefore = GreenDaoDownloadStore.writeCount();
+        doneLatch = new CountDownLatch(taskCount);
+        CountDownLatch submitLatch = new CountDownLatch(taskCount);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < taskCount; i++) {
+            long submitted = System.nanoTime();
+            downloadManager.submit(server.url("/file" + i).toString(), directory.getAbsolutePath(),
+                    "throughput_" + taskCount + "_" + i, new ISubmitCallback.Stub() {
+                        @Override
+                        public void submitSuccess(DownloadInfo downloadInfo) {
+                            submitNanos.put(downloadInfo.getId(), submitted);
+                            ids.add(downloadInfo.getId());
+                            submitLatch.countDown();
+                        }
+
+                        @Override
+                        public void submitFail(String reason) {
+                            Assert.fail(reason);
+                        }
+                    });
+        }
+        Assert.assertTrue(submitLatch.await(WAIT_MINUTES, TimeUnit.MINUTES));
+        Assert.assertTrue(doneLatch.await(WAIT_MINUTES, TimeUnit.MINUTES));
+        long wallNanos = System.nanoTime() - start;
+        sampler.stop();
+        long writes = GreenDaoDownloadStore.writeCount() - writesBefore;
+        long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        Assert.assertEquals("tasks failed", 0, errors.get());
+
+        List<Long> ttfb = new ArrayList<>();
+        List<Long> completion = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : finishNanos.entrySet()) {
+            long id = entry.getKey();
+            completion.add(entry.getValue() - submitNanos.get(id));
+            DownloadStats stats = downloadManager.queryDownloadStats(id);
+            if (stats != null) {
+                ttfb.add((long) (stats.getTotal().getAverageTtfbMillis() * 1000000));
+            }
+        }
+        double seconds = wallNanos / 1e9;
+        System.out.println(String.format(Locale.US, "| %d | %.2f | %d | %d | %d | %d | %d | %d | %s | %d |",
+                taskCount, (double) fileSize * taskCount / seconds / (1 << 20),
+                percentileMillis(ttfb, 0.5), percentileMillis(ttfb, 0.99),
+                percentileMillis(completion, 0.5), percentileMillis(completion, 0.99),
+                sampler.peakThreads.get(), sampler.peakHeap.get() >> 20,
+                allocated < 0 ? "n/a" : String.format(Locale.US, "%.1f", allocated / seconds / (1 << 20)),
+                writes));
+    }
+
+    private void deleteAll() {
+        synchronized (ids) {
+            for (Long id : ids) {
+                downloadManager.delete(id, true);
+            }
+            ids.clear();
+        }
+    }
+
+    private static long percentileMillis(List<Long> nanos, double percentile) {
+        if (nanos.isEmpty()) {
+            return -1;
+        }
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * percentile) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(index, 0)));
+    }
+
+    /**
+     * @return bytes allocated by the runtime so far, -1 if not available before M
+     */
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return threads of this process, including those not started from Java
+     */
+    private static int threadCount() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Threads:")) {
+                    return Integer.parseInt(line.substring("Threads:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // fall through
+        }
+        return Thread.activeCount();
+    }
+
+    /**
+     * Samples peak thread count and heap while a level runs.
+     */
+    private static class Sampler {
+        final AtomicInteger peakThreads = new AtomicInteger();
+        final AtomicLong peakHeap = new AtomicLong();
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        Sampler() {
+            executor.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void sample() {
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            if (heap > peakHeap.get()) {
+                peakHeap.set(heap);
+            }
+            int threads = threadCount();
+            if (threads > peakThreads.get()) {
+                peakThreads.set(threads);
+            }
+        }
+
+        void stop() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            sample();
+        }
+    }
+
+    private class HarnessCallback extends IDownloadCallback.Stub {
+        @Override
+        public void onDownloadConnecting(long id) {
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+            // a task in ERROR waits for the user, count it as done
+            if (finishNanos.putIfAbsent(id, System.nanoTime()) == null) {
+                errors.incrementAndGet();
+                doneLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+        }
+
+        @Override
+        public void onDownloadWaiting(long id) {
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+            if (finishNanos.putIfAbsent(downloadInfo.getId(), System.nanoTime()) == null) {
+                doneLatch.countDown();
+            }
+        }
+    }
+}
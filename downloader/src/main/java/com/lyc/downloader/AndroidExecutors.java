@@ -0,0 +1,15 @@
+package com.lyc.downloader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executors that only exist on Android; the engine ones are in {@link DownloadExecutors}.
+ */
+class AndroidExecutors {
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static final Executor main = command -> mainHandler.post(command);
+}
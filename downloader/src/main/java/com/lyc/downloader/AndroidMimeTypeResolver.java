@@ -0,0 +1,15 @@
+package com.lyc.downloader;
+
+import android.webkit.MimeTypeMap;
+
+class AndroidMimeTypeResolver implements MimeTypeResolver {
+    @Override
+    public String extensionFromMimeType(String mimeType) {
+        return MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+    }
+
+    @Override
+    public String extensionFromUrl(String url) {
+        return MimeTypeMap.getFileExtensionFromUrl(url);
+    }
+}
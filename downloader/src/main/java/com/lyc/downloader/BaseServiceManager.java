@@ -7,12 +7,16 @@ import android.os.Looper;
 import android.os.RemoteException;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.utils.Logger;
+import com.lyc.downloader.utils.LongHashMap;
 
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Liu Yuchuan on 2019/5/19.
@@ -21,8 +25,27 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     private static final int MAX_SUPPORT_TASK_COUNT = Runtime.getRuntime().availableProcessors() * 4;
     private static final long WAITING_TIME = TimeUnit.SECONDS.toNanos(6);
     final Context appContext;
-    private final DownloadListenerDispatcher downloadListenerDispatcher = new DownloadListenerDispatcher();
+    private final AtomicBoolean taskMirrorSyncScheduled = new AtomicBoolean();
+    private final TaskMirror taskMirror = new TaskMirror(this::requestTaskMirrorSync);
+    private final DownloadListenerDispatcher downloadListenerDispatcher = new DownloadListenerDispatcher(taskMirror);
     private final Set<DownloadTasksChangeListener> downloadTasksChangeListeners = new LinkedHashSet<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // guarded by itself
+    private final LongHashMap<CommandCallback> commandCallbacks = new LongHashMap<>();
+    private final ICommandCallback commandCallback = new ICommandCallback.Stub() {
+        @Override
+        public void onCommandResult(long requestId, boolean success) {
+            dispatchCommandResult(requestId, success);
+        }
+    };
+    // pushed by the service; kept over a binder death, the service pushes it again on reconnection
+    private volatile DownloadConfig config;
+    private final IConfigCallback configCallback = new IConfigCallback.Stub() {
+        @Override
+        public void onConfigChanged(DownloadConfig config) {
+            BaseServiceManager.this.config = config;
+        }
+    };
     IDownloadService downloadService;
     final CountDownLatch countDownLatch = new CountDownLatch(1);
     ServiceConnection downloadServiceConnection;
@@ -30,8 +53,9 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     private final IDownloadTasksChangeCallback downloadTasksChangeCallback = new IDownloadTasksChangeCallback.Stub() {
         @Override
         public void onNewDownloadTaskArrive(DownloadInfo downloadInfo) {
+            taskMirror.onTaskChanged();
             if (!downloadTasksChangeListeners.isEmpty()) {
-                DownloadExecutors.androidMain.execute(() -> {
+                AndroidExecutors.main.execute(() -> {
                     for (DownloadTasksChangeListener downloadTasksChangeListener : downloadTasksChangeListeners) {
                         downloadTasksChangeListener.onNewDownloadTaskArrive(downloadInfo);
                     }
@@ -41,20 +65,51 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
         @Override
         public void onDownloadTaskRemove(long id) {
+            taskMirror.onTaskChanged();
             if (!downloadTasksChangeListeners.isEmpty()) {
-                DownloadExecutors.androidMain.execute(() -> {
+                AndroidExecutors.main.execute(() -> {
                     for (DownloadTasksChangeListener downloadTasksChangeListener : downloadTasksChangeListeners) {
                         downloadTasksChangeListener.onDownloadTaskRemove(id);
                     }
                 });
             }
         }
+
+        @Override
+        public void onNewDownloadTasksArrive(List<DownloadInfo> downloadInfoList) {
+            taskMirror.onTaskChanged();
+            if (!downloadTasksChangeListeners.isEmpty()) {
+                AndroidExecutors.main.execute(() -> {
+                    for (DownloadTasksChangeListener downloadTasksChangeListener : downloadTasksChangeListeners) {
+                        for (DownloadInfo downloadInfo : downloadInfoList) {
+                            downloadTasksChangeListener.onNewDownloadTaskArrive(downloadInfo);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onDownloadTasksRemove(long[] ids) {
+            taskMirror.onTaskChanged();
+            if (!downloadTasksChangeListeners.isEmpty()) {
+                AndroidExecutors.main.execute(() -> {
+                    for (DownloadTasksChangeListener downloadTasksChangeListener : downloadTasksChangeListeners) {
+                        for (long id : ids) {
+                            downloadTasksChangeListener.onDownloadTaskRemove(id);
+                        }
+                    }
+                });
+            }
+        }
     };
     private int tryToConnectCount = 3;
     DeathRecipient deathRecipient = new DeathRecipient() {
         @Override
         public void binderDied() {
             Logger.e("BaseServiceManager", "Binder died...try to restart");
+            taskMirror.invalidate();
+            failPendingCommands();
             if (downloadService != null) {
                 downloadService.asBinder().unlinkToDeath(deathRecipient, 0);
             }
@@ -80,6 +135,28 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     abstract void initServiceConnection();
 
+    /**
+     * Pulls changes into {@link TaskMirror} on command thread; requests while one is pending are merged.
+     */
+    private void requestTaskMirrorSync() {
+        if (taskMirrorSyncScheduled.compareAndSet(false, true)) {
+            DownloadExecutors.command.execute(this::syncTaskMirror);
+        }
+    }
+
+    private void syncTaskMirror() {
+        taskMirrorSyncScheduled.set(false);
+        IDownloadService downloadService = this.downloadService;
+        if (downloadService == null) {
+            return;
+        }
+        try {
+            taskMirror.apply(downloadService.pullTaskChanges(taskMirror.epoch(), taskMirror.version()));
+        } catch (RemoteException e) {
+            Logger.e("BaseServiceManager", "cannot pullTaskChanges", e);
+        }
+    }
+
     private void waitingForConnection() {
         long start;
         long waited = 0;
@@ -98,83 +175,170 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void startOrResume(long id, boolean restart) {
-        DownloadExecutors.command.execute(() -> {
-            try {
-                waitingForConnection();
-                downloadService.startOrResume(id, restart);
-            } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot startOrResume", e);
-            }
-        });
+        startOrResume(id, restart, null);
+    }
+
+    void startOrResume(long id, boolean restart, CommandCallback callback) {
+        sendCommand("startOrResume", callback, (service, requestId, commandCallback) ->
+                service.startOrResumeAsync(requestId, id, restart, commandCallback));
     }
 
     @Override
     public void pause(long id) {
-        DownloadExecutors.command.execute(() -> {
-            try {
-                waitingForConnection();
-                downloadService.pause(id);
-            } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot startOrResume", e);
-            }
-        });
+        pause(id, null);
+    }
+
+    void pause(long id, CommandCallback callback) {
+        sendCommand("pause", callback, (service, requestId, commandCallback) ->
+                service.pauseAsync(requestId, id, commandCallback));
     }
 
     @Override
     public void startAll() {
-        DownloadExecutors.command.execute(() -> {
-            try {
-                waitingForConnection();
-                downloadService.startAll();
-            } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot startAll", e);
-            }
-        });
+        startAll(null);
+    }
+
+    void startAll(CommandCallback callback) {
+        sendCommand("startAll", callback, (service, requestId, commandCallback) ->
+                service.startAllAsync(requestId, commandCallback));
     }
 
     @Override
     public void pauseAll() {
-        DownloadExecutors.command.execute(() -> {
-            try {
-                waitingForConnection();
-                downloadService.pauseAll();
-            } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot pauseAll", e);
-            }
+        pauseAll(null);
+    }
 
-        });
+    void pauseAll(CommandCallback callback) {
+        sendCommand("pauseAll", callback, (service, requestId, commandCallback) ->
+                service.pauseAllAsync(requestId, commandCallback));
     }
 
     @Override
     public void delete(long id, boolean deleteFile) {
+        delete(id, deleteFile, null);
+    }
+
+    void delete(long id, boolean deleteFile, CommandCallback callback) {
+        sendCommand("delete", callback, (service, requestId, commandCallback) ->
+                service.deleteAsync(requestId, id, deleteFile, commandCallback));
+    }
+
+    @Override
+    public void cancel(long id) {
+        cancel(id, null);
+    }
+
+    void cancel(long id, CommandCallback callback) {
+        sendCommand("cancel", callback, (service, requestId, commandCallback) ->
+                service.cancelAsync(requestId, id, commandCallback));
+    }
+
+    @Override
+    public void startOrResume(long[] ids, boolean restart) {
+        startOrResume(ids, restart, null);
+    }
+
+    void startOrResume(long[] ids, boolean restart, CommandCallback callback) {
+        sendCommand("startOrResumeBatch", callback, (service, requestId, commandCallback) ->
+                service.startOrResumeBatchAsync(requestId, ids, restart, commandCallback));
+    }
+
+    @Override
+    public void pause(long[] ids) {
+        pause(ids, null);
+    }
+
+    void pause(long[] ids, CommandCallback callback) {
+        sendCommand("pauseBatch", callback, (service, requestId, commandCallback) ->
+                service.pauseBatchAsync(requestId, ids, commandCallback));
+    }
+
+    @Override
+    public void delete(long[] ids, boolean deleteFile) {
+        delete(ids, deleteFile, null);
+    }
+
+    void delete(long[] ids, boolean deleteFile, CommandCallback callback) {
+        sendCommand("deleteBatch", callback, (service, requestId, commandCallback) ->
+                service.deleteBatchAsync(requestId, ids, deleteFile, commandCallback));
+    }
+
+    /**
+     * Sends a oneway command from command thread, so that neither the caller nor command thread
+     * waits for the service; the result, if asked for, comes back through {@link #commandCallback}.
+     */
+    private void sendCommand(String name, CommandCallback callback, AsyncCommand command) {
+        long requestId = callback == null ? 0 : nextRequestId.incrementAndGet();
+        if (callback != null) {
+            synchronized (commandCallbacks) {
+                commandCallbacks.put(requestId, callback);
+            }
+        }
         DownloadExecutors.command.execute(() -> {
             waitingForConnection();
-            try {
-                downloadService.delete(id, deleteFile);
-            } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot delete", e);
+            IDownloadService downloadService = this.downloadService;
+            boolean sent = false;
+            if (downloadService == null) {
+                Logger.e("DownloadController", "cannot " + name + ": service disconnected");
+            } else {
+                try {
+                    command.send(downloadService, requestId, callback == null ? null : commandCallback);
+                    sent = true;
+                } catch (RemoteException e) {
+                    Logger.e("DownloadController", "cannot " + name, e);
+                }
+            }
+            if (!sent && callback != null) {
+                dispatchCommandResult(requestId, false);
             }
         });
     }
 
+    private void dispatchCommandResult(long requestId, boolean success) {
+        CommandCallback callback;
+        synchronized (commandCallbacks) {
+            callback = commandCallbacks.remove(requestId);
+        }
+        if (callback != null) {
+            AndroidExecutors.main.execute(() -> callback.onCommandResult(success));
+        }
+    }
+
+    private void failPendingCommands() {
+        long[] requestIds;
+        synchronized (commandCallbacks) {
+            requestIds = new long[commandCallbacks.size()];
+            for (int i = 0; i < requestIds.length; i++) {
+                requestIds[i] = commandCallbacks.keyAt(i);
+            }
+        }
+        for (long requestId : requestIds) {
+            dispatchCommandResult(requestId, false);
+        }
+    }
+
     @Override
-    public void cancel(long id) {
+    public void submit(String url, String path, String filename, ISubmitCallback callback) {
         DownloadExecutors.command.execute(() -> {
             waitingForConnection();
             try {
-                downloadService.cancel(id);
+                downloadService.submit(url, path, filename, callback);
             } catch (RemoteException e) {
-                Logger.e("DownloadController", "cannot cancel", e);
+                try {
+                    callback.submitFail(e.getMessage());
+                } catch (RemoteException e1) {
+                    Logger.e("BaseServiceManager", "submitFail", e1);
+                }
             }
         });
     }
 
     @Override
-    public void submit(String url, String path, String filename, ISubmitCallback callback) {
+    public void submitBatch(List<SubmitRequest> requests, IBatchSubmitCallback callback) {
         DownloadExecutors.command.execute(() -> {
             waitingForConnection();
             try {
-                downloadService.submit(url, path, filename, callback);
+                downloadService.submitBatch(requests, callback);
             } catch (RemoteException e) {
                 try {
                     callback.submitFail(e.getMessage());
@@ -191,6 +355,10 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public int getMaxRunningTask() {
+        DownloadConfig config = this.config;
+        if (config != null) {
+            return config.maxRunningTask;
+        }
         if (downloadService == null) {
             return 0;
         }
@@ -206,23 +374,25 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     @Override
     public void setMaxRunningTask(int count) {
         if (count < 0 || count > MAX_SUPPORT_TASK_COUNT) return;
-        DownloadExecutors.command.execute(() -> {
-            waitingForConnection();
-            try {
-                downloadService.setMaxRunningTask(count);
-            } catch (RemoteException e) {
-                Logger.e(getClass().getSimpleName(), "cannot set max task count", e);
-            }
-        });
+        DownloadConfig config = this.config;
+        if (config != null) {
+            this.config = config.withMaxRunningTask(count);
+        }
+        sendCommand("setMaxRunningTask", null, (service, requestId, commandCallback) ->
+                service.setMaxRunningTaskAsync(requestId, count, commandCallback));
     }
 
     @Override
     public boolean isAllowDownload() {
+        DownloadConfig config = this.config;
+        if (config != null) {
+            return config.allowDownload;
+        }
         if (downloadService == null) {
             return true;
         }
         try {
-            return downloadService.isAvoidFrameDrop();
+            return downloadService.isAllowDownload();
         } catch (RemoteException e) {
             Logger.e(getClass().getSimpleName(), "isAllowDownload", e);
         }
@@ -232,18 +402,20 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void setAllowDownload(boolean allowDownload) {
-        DownloadExecutors.command.execute(() -> {
-            waitingForConnection();
-            try {
-                downloadService.setAllowDownload(allowDownload);
-            } catch (RemoteException e) {
-                Logger.e(getClass().getSimpleName(), "setAllowDownload", e);
-            }
-        });
+        DownloadConfig config = this.config;
+        if (config != null) {
+            this.config = config.withAllowDownload(allowDownload);
+        }
+        sendCommand("setAllowDownload", null, (service, requestId, commandCallback) ->
+                service.setAllowDownloadAsync(requestId, allowDownload, commandCallback));
     }
 
     @Override
     public boolean isAvoidFrameDrop() {
+        DownloadConfig config = this.config;
+        if (config != null) {
+            return config.avoidFrameDrop;
+        }
         if (downloadService == null) {
             return false;
         }
@@ -258,18 +430,20 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void setAvoidFrameDrop(boolean avoidFrameDrop) {
-        DownloadExecutors.command.execute(() -> {
-            waitingForConnection();
-            try {
-                downloadService.setAvoidFrameDrop(avoidFrameDrop);
-            } catch (RemoteException e) {
-                Logger.e(getClass().getSimpleName(), "cannot set avoid frame drop", e);
-            }
-        });
+        DownloadConfig config = this.config;
+        if (config != null) {
+            this.config = config.withAvoidFrameDrop(avoidFrameDrop);
+        }
+        sendCommand("setAvoidFrameDrop", null, (service, requestId, commandCallback) ->
+                service.setAvoidFrameDropAsync(requestId, avoidFrameDrop, commandCallback));
     }
 
     @Override
     public long getSendMessageIntervalNanos() {
+        DownloadConfig config = this.config;
+        if (config != null) {
+            return config.sendMessageIntervalNanos;
+        }
         if (downloadService == null) {
             return 0;
         }
@@ -284,18 +458,63 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void setSendMessageIntervalNanos(long time) {
-        DownloadExecutors.command.execute(() -> {
-            waitingForConnection();
-            try {
-                downloadService.setSendMessageIntervalNanos(time);
-            } catch (RemoteException e) {
-                Logger.e(getClass().getSimpleName(), "cannot set send message interval nanos", e);
-            }
-        });
+        DownloadConfig config = this.config;
+        if (config != null) {
+            this.config = config.withSendMessageIntervalNanos(time);
+        }
+        sendCommand("setSendMessageIntervalNanos", null, (service, requestId, commandCallback) ->
+                service.setSendMessageIntervalNanosAsync(requestId, time, commandCallback));
+    }
+
+    @Override
+    public boolean exportTrace(String path) {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            throw new IllegalThreadStateException("this method cannot call in main thread");
+        }
+        waitingForConnection();
+        try {
+            return downloadService.exportTrace(path);
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "cannot exportTrace", e);
+        }
+        return false;
+    }
+
+    @Override
+    public DownloadStats queryDownloadStats(long id) {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            throw new IllegalThreadStateException("this method cannot call in main thread");
+        }
+        waitingForConnection();
+        try {
+            return downloadService.queryDownloadStats(id);
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "cannot queryDownloadStats", e);
+        }
+        return null;
+    }
+
+    @Override
+    public DownloadStats queryAggregateDownloadStats() {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            throw new IllegalThreadStateException("this method cannot call in main thread");
+        }
+        waitingForConnection();
+        try {
+            return downloadService.queryAggregateDownloadStats();
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "cannot queryAggregateDownloadStats", e);
+        }
+        return null;
     }
 
     @Override
     public DownloadInfo queryDownloadInfo(long id) {
+        DownloadInfo downloadInfo = taskMirror.queryDownloadInfo(id);
+        if (downloadInfo != null) {
+            return downloadInfo;
+        }
+        // not active: finished, deleted or not synced yet
         if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
             throw new IllegalThreadStateException("this method cannot call in main thread");
         }
@@ -310,6 +529,10 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public List<DownloadInfo> queryActiveDownloadInfoList() {
+        List<DownloadInfo> downloadInfoList = taskMirror.queryActiveDownloadInfoList();
+        if (downloadInfoList != null) {
+            return downloadInfoList;
+        }
         if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
             throw new IllegalThreadStateException("this method cannot call in main thread");
         }
@@ -352,8 +575,27 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         return null;
     }
 
+    @Override
+    public DownloadPage queryDownloadPage(DownloadQuery query) {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            throw new IllegalThreadStateException("this method cannot call in main thread");
+        }
+        waitingForConnection();
+        try {
+            return downloadService.queryDownloadPage(query);
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "queryDownloadPage", e);
+        }
+
+        return null;
+    }
+
     @Override
     public long getSpeedLimit() {
+        DownloadConfig config = this.config;
+        if (config != null) {
+            return config.speedLimit;
+        }
         if (downloadService == null) {
             return 0;
         }
@@ -368,14 +610,12 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void setSpeedLimit(long speedLimit) {
-
-        DownloadExecutors.command.execute(() -> {
-            try {
-                downloadService.setSpeedLimit(speedLimit);
-            } catch (RemoteException e) {
-                Logger.e(getClass().getSimpleName(), "setSpeedLimit", e);
-            }
-        });
+        DownloadConfig config = this.config;
+        if (config != null) {
+            this.config = config.withSpeedLimit(speedLimit);
+        }
+        sendCommand("setSpeedLimit", null, (service, requestId, commandCallback) ->
+                service.setSpeedLimitAsync(requestId, speedLimit, commandCallback));
     }
 
     void updateByConfiguration(Configuration configuration) {
@@ -395,15 +635,26 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     }
 
     void registerDownloadListener(Long id, DownloadListener downloadListener) {
+        registerDownloadListener(id, downloadListener, null, YCDownloader.DELIVER_ALL);
+    }
+
+    /**
+     * @param executor null for main thread
+     */
+    void registerDownloadListener(Long id, DownloadListener downloadListener, Executor executor, int delivery) {
         if (downloadListener != null) {
             DownloadExecutors.command.execute(() -> {
                 waitingForConnection();
-                downloadListenerDispatcher.registerDownloadListener(id, downloadListener);
+                downloadListenerDispatcher.registerDownloadListener(id, downloadListener, executor, delivery);
             });
         }
     }
 
     void registerDownloadListener(Set<Long> ids, DownloadListener downloadListener) {
+        registerDownloadListener(ids, downloadListener, null, YCDownloader.DELIVER_ALL);
+    }
+
+    void registerDownloadListener(Set<Long> ids, DownloadListener downloadListener, Executor executor, int delivery) {
         if (ids == null || ids.isEmpty()) {
             return;
         }
@@ -411,7 +662,7 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         if (downloadListener != null) {
             DownloadExecutors.command.execute(() -> {
                 waitingForConnection();
-                downloadListenerDispatcher.registerDownloadListener(ids, downloadListener);
+                downloadListenerDispatcher.registerDownloadListener(ids, downloadListener, executor, delivery);
             });
         }
     }
@@ -461,12 +712,12 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
             if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
                 runnable.run();
             } else {
-                DownloadExecutors.androidMain.execute(runnable);
+                AndroidExecutors.main.execute(runnable);
             }
         } else {
             DownloadExecutors.command.execute(() -> {
                 waitingForConnection();
-                DownloadExecutors.androidMain.execute(runnable);
+                AndroidExecutors.main.execute(runnable);
             });
         }
     }
@@ -483,7 +734,17 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         } catch (RemoteException e) {
             Logger.e("BaseServiceManager", "registerDownloadTasksChangeListener", e);
         }
+        try {
+            config = downloadService.registerConfigCallback(configCallback);
+        } catch (RemoteException e) {
+            Logger.e("BaseServiceManager", "registerConfigCallback", e);
+        }
+        requestTaskMirrorSync();
     }
 
     abstract boolean isInServerProcess();
+
+    private interface AsyncCommand {
+        void send(IDownloadService downloadService, long requestId, ICommandCallback commandCallback) throws RemoteException;
+    }
 }
@@ -0,0 +1,18 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.db.DownloadInfo;
+
+import java.util.List;
+
+/**
+ * Result of {@link YCDownloader#submitBatch(List, BatchSubmitListener)}, called in main thread.
+ * The tasks are created all together or not at all.
+ */
+public interface BatchSubmitListener {
+    /**
+     * @param downloadInfoList created tasks, in the order of the requests
+     */
+    void submitSuccess(List<DownloadInfo> downloadInfoList);
+
+    void submitFail(Exception e);
+}
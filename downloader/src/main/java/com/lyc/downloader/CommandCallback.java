@@ -0,0 +1,12 @@
+package com.lyc.downloader;
+
+/**
+ * Result of a command sent by {@link YCDownloader}, called in main thread.
+ */
+public interface CommandCallback {
+    /**
+     * @param success false if the task is not found, the command does not apply to its state,
+     *                or the download service cannot be reached
+     */
+    void onCommandResult(boolean success);
+}
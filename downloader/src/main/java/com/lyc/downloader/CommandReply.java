@@ -0,0 +1,33 @@
+package com.lyc.downloader;
+
+import android.os.RemoteException;
+import com.lyc.downloader.utils.Logger;
+
+/**
+ * Where {@link DownloadManager} reports the result of a command; {@link #NONE} for commands without callback.
+ */
+class CommandReply {
+    static final CommandReply NONE = new CommandReply(0, null);
+
+    private final long requestId;
+    private final ICommandCallback callback;
+
+    private CommandReply(long requestId, ICommandCallback callback) {
+        this.requestId = requestId;
+        this.callback = callback;
+    }
+
+    static CommandReply of(long requestId, ICommandCallback callback) {
+        return callback == null ? NONE : new CommandReply(requestId, callback);
+    }
+
+    void send(boolean success) {
+        if (callback != null) {
+            try {
+                callback.onCommandResult(requestId, success);
+            } catch (RemoteException e) {
+                Logger.e("CommandReply", "onCommandResult", e);
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.lyc.downloader;
 
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -8,6 +12,21 @@ import java.util.concurrent.TimeUnit;
  * @email kevinliu.sir@qq.com
  */
 public final class Configuration {
+    /**
+     * never force written bytes to disk; progress checkpoints may claim bytes still in page cache
+     */
+    public static final int DURABILITY_NONE = 0;
+    /**
+     * force dirty files once per {@link Builder#setSyncIntervalMillis(long)};
+     * checkpoints are still written independently
+     */
+    public static final int DURABILITY_PERIODIC = 1;
+    /**
+     * force dirty files once per interval and write the progress checkpoint right after,
+     * so the database never claims bytes that are not on disk
+     */
+    public static final int DURABILITY_BEFORE_CHECKPOINT = 2;
+
     public static int MAX_SUPPORT_TASK_COUNT = Math.max(Runtime.getRuntime().availableProcessors(), 1) * 4;
     public static int DEFAULT_MAX_RUNNING_TASK = Math.min(MAX_SUPPORT_TASK_COUNT, 4);
     public static boolean DEFAULT_ALLOW_DOWNLOAD = true;
@@ -15,6 +34,16 @@ public final class Configuration {
     public static long DEFAULT_SEND_MESSAGE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(333);
     public static int DEFAULT_SPEED_LIMIT = 0;
     public static boolean DEFAULT_MULTI_PROCESS = true;
+    // in bytes; range boundaries and disk writes are aligned to it
+    public static int DEFAULT_BLOCK_SIZE = 4 * (1 << 10);
+    public static int MIN_BLOCK_SIZE = 512;
+    public static int DEFAULT_DURABILITY_POLICY = DURABILITY_NONE;
+    public static long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    public static long MIN_SYNC_INTERVAL_MILLIS = 100;
+    public static int DEFAULT_WRITE_CONCURRENCY_PER_VOLUME = 2;
+    // events; 0 disables tracing
+    public static int DEFAULT_TRACE_BUFFER_SIZE = 0;
+    public static int MAX_TRACE_BUFFER_SIZE = 1 << 20;
 
 
     final int maxRunningTask;
@@ -23,14 +52,30 @@ public final class Configuration {
     final boolean avoidFrameDrop;
     final long sendMessageIntervalNanos;
     final boolean multiProcess;
+    final int blockSize;
+    @DurabilityPolicy
+    final int durabilityPolicy;
+    final long syncIntervalMillis;
+    final int writeConcurrencyPerVolume;
+    final int traceBufferSize;
 
-    private Configuration(int maxRunningTask, long speedLimit, boolean allowDownload, boolean avoidFrameDrop, long sendMessageIntervalNanos, boolean multiProcess) {
+    private Configuration(int maxRunningTask, long speedLimit, boolean allowDownload, boolean avoidFrameDrop, long sendMessageIntervalNanos, boolean multiProcess, int blockSize, int durabilityPolicy, long syncIntervalMillis, int writeConcurrencyPerVolume, int traceBufferSize) {
         this.maxRunningTask = maxRunningTask;
         this.speedLimit = speedLimit;
         this.allowDownload = allowDownload;
         this.avoidFrameDrop = avoidFrameDrop;
         this.sendMessageIntervalNanos = sendMessageIntervalNanos;
         this.multiProcess = multiProcess;
+        this.blockSize = blockSize;
+        this.durabilityPolicy = durabilityPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.writeConcurrencyPerVolume = writeConcurrencyPerVolume;
+        this.traceBufferSize = traceBufferSize;
+    }
+
+    @IntDef({DURABILITY_NONE, DURABILITY_PERIODIC, DURABILITY_BEFORE_CHECKPOINT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface DurabilityPolicy {
     }
 
     public static class Builder {
@@ -40,6 +85,11 @@ public final class Configuration {
         private boolean avoidFrameDrop = DEFAULT_AVOID_FRAME_DROP;
         private long sendMessageIntervalNanos = DEFAULT_SEND_MESSAGE_INTERVAL;
         private boolean multiProcess = DEFAULT_MULTI_PROCESS;
+        private int blockSize = DEFAULT_BLOCK_SIZE;
+        private int durabilityPolicy = DEFAULT_DURABILITY_POLICY;
+        private long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+        private int writeConcurrencyPerVolume = DEFAULT_WRITE_CONCURRENCY_PER_VOLUME;
+        private int traceBufferSize = DEFAULT_TRACE_BUFFER_SIZE;
 
         public Builder setMaxRunningTask(int maxRunningTask) {
             this.maxRunningTask = Math.max(0, maxRunningTask);
@@ -71,8 +121,55 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * @param blockSize filesystem block size in bytes, used to align download ranges and
+         *                  coalesced disk writes. Only takes effect at install time.
+         */
+        public Builder setBlockSize(int blockSize) {
+            this.blockSize = Math.max(MIN_BLOCK_SIZE, blockSize);
+            return this;
+        }
+
+        /**
+         * @see #DURABILITY_NONE
+         * @see #DURABILITY_PERIODIC
+         * @see #DURABILITY_BEFORE_CHECKPOINT
+         */
+        public Builder setDurabilityPolicy(@DurabilityPolicy int durabilityPolicy) {
+            if (durabilityPolicy < DURABILITY_NONE || durabilityPolicy > DURABILITY_BEFORE_CHECKPOINT) {
+                throw new IllegalArgumentException("unknown durability policy: " + durabilityPolicy);
+            }
+            this.durabilityPolicy = durabilityPolicy;
+            return this;
+        }
+
+        /**
+         * @param syncIntervalMillis how often all dirty download files are forced to disk in one pass
+         */
+        public Builder setSyncIntervalMillis(long syncIntervalMillis) {
+            this.syncIntervalMillis = Math.max(MIN_SYNC_INTERVAL_MILLIS, syncIntervalMillis);
+            return this;
+        }
+
+        /**
+         * @param writeConcurrencyPerVolume how many disk writes may run at once on one storage volume
+         */
+        public Builder setWriteConcurrencyPerVolume(int writeConcurrencyPerVolume) {
+            this.writeConcurrencyPerVolume = Math.max(1, writeConcurrencyPerVolume);
+            return this;
+        }
+
+        /**
+         * @param traceBufferSize how many of the latest lifecycle events are kept for
+         *                        {@link YCDownloader#exportTrace(String)}; 0 disables tracing
+         */
+        public Builder setTraceBufferSize(int traceBufferSize) {
+            this.traceBufferSize = Math.min(Math.max(0, traceBufferSize), MAX_TRACE_BUFFER_SIZE);
+            return this;
+        }
+
         public Configuration build() {
-            return new Configuration(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos, multiProcess);
+            return new Configuration(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos, multiProcess, blockSize, durabilityPolicy, syncIntervalMillis, writeConcurrencyPerVolume, traceBufferSize);
         }
     }
 }
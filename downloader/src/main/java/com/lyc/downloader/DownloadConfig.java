@@ -0,0 +1,79 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Runtime configuration of the download service, pushed to clients whenever it changes
+ * so that the getters of {@link YCDownloader} do not cross processes.
+ */
+class DownloadConfig implements Parcelable {
+    public static final Creator<DownloadConfig> CREATOR = new Creator<DownloadConfig>() {
+        @Override
+        public DownloadConfig createFromParcel(Parcel in) {
+            return new DownloadConfig(in);
+        }
+
+        @Override
+        public DownloadConfig[] newArray(int size) {
+            return new DownloadConfig[size];
+        }
+    };
+
+    final int maxRunningTask;
+    final long speedLimit;
+    final boolean allowDownload;
+    final boolean avoidFrameDrop;
+    final long sendMessageIntervalNanos;
+
+    DownloadConfig(int maxRunningTask, long speedLimit, boolean allowDownload,
+                   boolean avoidFrameDrop, long sendMessageIntervalNanos) {
+        this.maxRunningTask = maxRunningTask;
+        this.speedLimit = speedLimit;
+        this.allowDownload = allowDownload;
+        this.avoidFrameDrop = avoidFrameDrop;
+        this.sendMessageIntervalNanos = sendMessageIntervalNanos;
+    }
+
+    protected DownloadConfig(Parcel in) {
+        maxRunningTask = in.readInt();
+        speedLimit = in.readLong();
+        allowDownload = in.readByte() != 0;
+        avoidFrameDrop = in.readByte() != 0;
+        sendMessageIntervalNanos = in.readLong();
+    }
+
+    DownloadConfig withMaxRunningTask(int maxRunningTask) {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    DownloadConfig withSpeedLimit(long speedLimit) {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    DownloadConfig withAllowDownload(boolean allowDownload) {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    DownloadConfig withAvoidFrameDrop(boolean avoidFrameDrop) {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    DownloadConfig withSendMessageIntervalNanos(long sendMessageIntervalNanos) {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxRunningTask);
+        dest.writeLong(speedLimit);
+        dest.writeByte((byte) (allowDownload ? 1 : 0));
+        dest.writeByte((byte) (avoidFrameDrop ? 1 : 0));
+        dest.writeLong(sendMessageIntervalNanos);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
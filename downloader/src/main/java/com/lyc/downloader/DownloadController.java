@@ -1,5 +1,7 @@
 package com.lyc.downloader;
 
+import java.util.List;
+
 /**
  * Created by Liu Yuchuan on 2019/5/18.
  */
@@ -16,6 +18,14 @@ public interface DownloadController {
 
     void submit(String url, String path, String filename, ISubmitCallback callback);
 
+    void submitBatch(List<SubmitRequest> requests, IBatchSubmitCallback callback);
+
+    void startOrResume(long[] ids, boolean restart);
+
+    void pause(long[] ids);
+
+    void delete(long[] ids, boolean deleteFile);
+
     void delete(long id, boolean deleteFile);
 
     int getMaxRunningTask();
@@ -38,4 +48,18 @@ public interface DownloadController {
 
     // time unit: ms
     void setSendMessageIntervalNanos(long time);
+
+    /**
+     * @return null if the task has not run since the service started
+     */
+    DownloadStats queryDownloadStats(long id);
+
+    DownloadStats queryAggregateDownloadStats();
+
+    /**
+     * Writes recorded lifecycle events to path in Chrome trace format
+     *
+     * @return false if tracing is disabled or the file cannot be written
+     */
+    boolean exportTrace(String path);
 }
@@ -15,4 +15,9 @@ public interface DownloadInfoProvider {
     List<DownloadInfo> queryDeletedDownloadInfoList();
 
     List<DownloadInfo> queryFinishedDownloadInfoList();
+
+    /**
+     * @return one page of summaries of the tasks matching the query
+     */
+    DownloadPage queryDownloadPage(DownloadQuery query);
 }
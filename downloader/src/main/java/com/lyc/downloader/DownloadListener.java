@@ -23,8 +23,9 @@ public interface DownloadListener {
      * @param total total size. May be -1.
      * @param cur   current download size in bytes
      * @param bps   download speed, in bytes/second
+     * @param etaMillis estimated time left in milliseconds. -1 if unknown.
      */
-    void onDownloadProgressUpdate(long id, long total, long cur, double bps);
+    void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis);
 
     /**
      * Called when downloadInfo is changed.
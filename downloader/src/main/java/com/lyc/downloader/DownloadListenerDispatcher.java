@@ -1,14 +1,11 @@
 package com.lyc.downloader;
 
-import android.annotation.SuppressLint;
 import com.lyc.downloader.db.DownloadInfo;
 
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * @author liuyuchuan
@@ -16,220 +13,171 @@ import java.util.Set;
  * @email kevinliu.sir@qq.com
  */
 class DownloadListenerDispatcher extends IDownloadCallback.Stub {
-    // if id == null: register for all id
-    @SuppressLint("UseSparseArrays")
-    private final Map<Long, Set<DownloadListener>> downloadListenerMap = new HashMap<>();
-
-    void registerDownloadListener(Long id, DownloadListener downloadListener) {
-        synchronized (downloadListenerMap) {
-            Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-            if (downloadListeners == null) {
-                downloadListeners = new LinkedHashSet<>();
-                downloadListenerMap.put(id, downloadListeners);
-            }
-            downloadListeners.add(downloadListener);
+    private final ListenerRegistry<ListenerDelivery> listenerRegistry = new ListenerRegistry<>(new ListenerDelivery[0]);
+    // one per registered listener, whatever ids it is registered for; guarded by this
+    private final Map<DownloadListener, ListenerDelivery> deliveries = new HashMap<>();
+    private final TaskMirror taskMirror;
+
+    DownloadListenerDispatcher(TaskMirror taskMirror) {
+        this.taskMirror = taskMirror;
+    }
+
+    /**
+     * if id == null: register for all id. Registering a listener again replaces its executor and
+     * delivery policy for every id it is registered for.
+     *
+     * @param executor null for main thread
+     */
+    synchronized void registerDownloadListener(Long id, DownloadListener downloadListener, Executor executor, int delivery) {
+        ListenerDelivery listenerDelivery = deliveryOf(downloadListener, executor, delivery);
+        if (id == null) {
+            listenerRegistry.registerForAll(listenerDelivery);
+        } else {
+            listenerRegistry.register(id, listenerDelivery);
         }
     }
 
-    void registerDownloadListener(Set<Long> ids, DownloadListener downloadListener) {
+    /**
+     * @see #registerDownloadListener(Long, DownloadListener, Executor, int)
+     */
+    synchronized void registerDownloadListener(Set<Long> ids, DownloadListener downloadListener, Executor executor, int delivery) {
+        ListenerDelivery listenerDelivery = deliveryOf(downloadListener, executor, delivery);
         if (ids.contains(null)) {
             // register for all
-            registerDownloadListener((Long) null, downloadListener);
+            listenerRegistry.registerForAll(listenerDelivery);
         } else {
-            synchronized (downloadListenerMap) {
-                for (Long id : ids) {
-                    Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-                    if (downloadListeners == null) {
-                        downloadListeners = new LinkedHashSet<>();
-                        downloadListenerMap.put(id, downloadListeners);
-                    }
-                    downloadListeners.add(downloadListener);
-                }
-            }
+            listenerRegistry.register(ids, listenerDelivery);
         }
     }
 
-    void unregisterDownloadListener(Set<Long> ids, DownloadListener downloadListener) {
+    synchronized void unregisterDownloadListener(Set<Long> ids, DownloadListener downloadListener) {
+        ListenerDelivery listenerDelivery = deliveries.get(downloadListener);
+        if (listenerDelivery == null) {
+            return;
+        }
         if (ids.contains(null)) {
             // unregister for all
-            unregisterDownloadListener((Long) null, downloadListener);
+            listenerRegistry.unregister(listenerDelivery);
         } else {
-            synchronized (downloadListenerMap) {
-                for (Long id : ids) {
-                    Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-                    if (downloadListeners != null) {
-                        downloadListeners.remove(downloadListener);
-                    }
-                }
-            }
+            listenerRegistry.unregister(ids, listenerDelivery);
         }
+        forgetIfUnregistered(listenerDelivery);
     }
 
-    void unregisterDownloadListener(Long id, DownloadListener downloadListener) {
-        synchronized (downloadListenerMap) {
-            if (id == null) {
-                unregisterDownloadListener(downloadListener);
-            } else {
-                Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-                if (downloadListeners != null) {
-                    downloadListeners.remove(downloadListener);
-                }
-            }
+    synchronized void unregisterDownloadListener(Long id, DownloadListener downloadListener) {
+        ListenerDelivery listenerDelivery = deliveries.get(downloadListener);
+        if (listenerDelivery == null) {
+            return;
+        }
+        if (id == null) {
+            listenerRegistry.unregister(listenerDelivery);
+        } else {
+            listenerRegistry.unregister(id, listenerDelivery);
         }
+        forgetIfUnregistered(listenerDelivery);
     }
 
-    void unregisterDownloadListener(DownloadListener downloadListener) {
-        synchronized (downloadListenerMap) {
-            for (Set<DownloadListener> value : downloadListenerMap.values()) {
-                if (value != null) {
-                    value.remove(downloadListener);
-                }
-            }
+    synchronized void unregisterDownloadListener(DownloadListener downloadListener) {
+        ListenerDelivery listenerDelivery = deliveries.remove(downloadListener);
+        if (listenerDelivery != null) {
+            listenerRegistry.unregister(listenerDelivery);
+        }
+    }
+
+    private ListenerDelivery deliveryOf(DownloadListener downloadListener, Executor executor, int delivery) {
+        ListenerDelivery listenerDelivery = deliveries.get(downloadListener);
+        if (listenerDelivery == null) {
+            listenerDelivery = new ListenerDelivery(downloadListener, executor, delivery);
+            deliveries.put(downloadListener, listenerDelivery);
+        } else {
+            listenerDelivery.update(executor, delivery);
+        }
+        return listenerDelivery;
+    }
+
+    private void forgetIfUnregistered(ListenerDelivery listenerDelivery) {
+        if (!listenerRegistry.contains(listenerDelivery)) {
+            deliveries.remove(listenerDelivery.listener);
         }
     }
 
     @Override
     public void onDownloadConnecting(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliver(ListenerDelivery.CONNECTING, id, null);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadConnecting(id);
-            }
-        });
     }
 
     @Override
-    public void onDownloadProgressUpdate(long id, long total, long cur, double bps) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+    public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        taskMirror.onProgress(id, total, cur);
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliverProgress(id, total, cur, bps, etaMillis);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadProgressUpdate(id, total, cur, bps);
-            }
-        });
     }
 
     @Override
     public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(downloadInfo.getId())) {
+            delivery.deliver(ListenerDelivery.UPDATE_INFO, downloadInfo.getId(), downloadInfo);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadUpdateInfo(downloadInfo);
-            }
-        });
     }
 
     @Override
     public void onDownloadError(long id, int code, boolean fatal) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliverError(id, code, fatal);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadError(id, code, fatal);
-            }
-        });
     }
 
     @Override
     public void onDownloadStart(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(downloadInfo.getId())) {
+            delivery.deliver(ListenerDelivery.START, downloadInfo.getId(), downloadInfo);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadStart(downloadInfo);
-            }
-        });
     }
 
     @Override
     public void onDownloadStopping(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliver(ListenerDelivery.STOPPING, id, null);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadStopping(id);
-            }
-        });
     }
 
     @Override
     public void onDownloadPaused(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliver(ListenerDelivery.PAUSED, id, null);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadPaused(id);
-            }
-        });
     }
 
     @Override
     public void onDownloadWaiting(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliver(ListenerDelivery.WAITING, id, null);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadTaskWait(id);
-            }
-        });
     }
 
     @Override
     public void onDownloadCanceled(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
-            return;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(id)) {
+            delivery.deliver(ListenerDelivery.CANCELED, id, null);
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadCanceled(id);
-            }
-        });
     }
 
     @Override
     public void onDownloadFinished(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
-            return;
-        }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadFinished(downloadInfo);
-            }
-        });
-    }
-
-    private Collection<DownloadListener> getDispatchListeners(long id) {
-        synchronized (downloadListenerMap) {
-            LinkedList<DownloadListener> downloadListenerList = new LinkedList<>();
-            Set<DownloadListener> allIdDownloadListeners = downloadListenerMap.get(null);
-            if (allIdDownloadListeners != null) {
-                downloadListenerList.addAll(allIdDownloadListeners);
-            }
-            Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-            if (downloadListeners != null) {
-                downloadListenerList.addAll(downloadListeners);
-            }
-            return downloadListenerList;
+        taskMirror.onTaskChanged();
+        for (ListenerDelivery delivery : listenerRegistry.listeners(downloadInfo.getId())) {
+            delivery.deliver(ListenerDelivery.FINISHED, downloadInfo.getId(), downloadInfo);
         }
     }
 }
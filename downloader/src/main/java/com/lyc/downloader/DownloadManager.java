@@ -5,25 +5,34 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.RemoteException;
 import androidx.annotation.WorkerThread;
-import androidx.collection.LongSparseArray;
 import com.lyc.downloader.db.DaoMaster;
 import com.lyc.downloader.db.DaoMaster.DevOpenHelper;
 import com.lyc.downloader.db.DaoSession;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.db.DownloadInfoDao;
+import com.lyc.downloader.db.DownloadThreadInfo;
+import com.lyc.downloader.utils.AndroidLogSink;
 import com.lyc.downloader.utils.Logger;
-import com.lyc.downloader.utils.UniqueDequeue;
+import com.lyc.downloader.utils.LongHashDeque;
+import com.lyc.downloader.utils.LongHashMap;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
 import okhttp3.logging.HttpLoggingInterceptor;
 import okhttp3.logging.HttpLoggingInterceptor.Level;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,30 +49,57 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     @SuppressLint("StaticFieldLeak")
     private volatile static DownloadManager instance;
     private static final String TAG = "DownloadManager";
+    // active rows read and put into the tables at a time while recovering
+    private static final int RECOVER_BATCH_SIZE = 200;
+    // removals kept for clients that pull changes
+    private static final int MAX_REMOVED_CHANGES = 1024;
     // for http
     private final OkHttpClient client;
-    final DaoSession daoSession;
-    private final LongSparseArray<DownloadTask> taskTable = new LongSparseArray<>();
-    private final LongSparseArray<DownloadInfo> infoTable = new LongSparseArray<>();
-    private final LongSparseArray<Long> lastSendMessageTime = new LongSparseArray<>();
-    private final Deque<Long> runningTasksId = new UniqueDequeue<>();
-    private final Deque<Long> waitingTasksId = new UniqueDequeue<>();
-    private final Deque<Long> errorTasksId = new UniqueDequeue<>();
-    private final Deque<Long> pausingTasksId = new UniqueDequeue<>();
+    // opened on io when recovering starts; use daoSession() or store()
+    private volatile DaoSession daoSession;
+    private volatile DownloadStore<DownloadInfo, DownloadThreadInfo> store;
+    private final LongHashMap<DownloadTask> taskTable = new LongHashMap<>();
+    private final LongHashMap<DownloadInfo> infoTable = new LongHashMap<>();
+    private final LongHashDeque runningTasksId = new LongHashDeque();
+    private final LongHashDeque waitingTasksId = new LongHashDeque();
+    private final LongHashDeque errorTasksId = new LongHashDeque();
+    private final LongHashDeque pausingTasksId = new LongHashDeque();
     private final Lock downloadCallbackSetLock = new ReentrantLock();
     private final Lock downloadTasksChangeCallbackSetLock = new ReentrantLock();
     private IDownloadCallback downloadCallback;
     private IDownloadTasksChangeCallback downloadTasksChangeCallback;
-
-    private CountDownLatch recoverCountDownLatch = new CountDownLatch(1);
+    private volatile IConfigCallback configCallback;
+
+    private final CountDownLatch databaseCountDownLatch = new CountDownLatch(1);
+    // counted down once every active task is in the tables
+    private final CountDownLatch recoverCountDownLatch = new CountDownLatch(1);
+    // message thread only
+    private boolean recovered;
+    // message thread only; commands waiting for the active tasks
+    private final List<Runnable> afterRecoverCommands = new ArrayList<>();
+    // message thread only; commands of ids that are not recovered yet
+    private final LongHashMap<List<Runnable>> pendingCommands = new LongHashMap<>();
 
     /* --------------------------------- config ---------------------------------*/
     private volatile int maxRunningTask;
     private volatile long speedLimit;
-    private boolean allowDownload;
+    private volatile boolean allowDownload;
     private volatile boolean avoidFrameDrop;
     // ns
     private volatile long sendMessageIntervalNanos;
+    private final int blockSize;
+    private final GroupCommitFlusher groupCommitFlusher;
+    private final DiskVolumeScheduler diskVolumeScheduler;
+    private final FilenameReservations filenameReservations = new FilenameReservations();
+    private final ProgressSampler progressSampler;
+    private final DownloadStatsCollector downloadStatsCollector = new DownloadStatsCollector();
+    private final TraceRecorder traceRecorder;
+    private final MimeTypeResolver mimeTypeResolver = new AndroidMimeTypeResolver();
+    // a new service process starts a new epoch
+    private final TaskChangeLog<DownloadInfo> taskChangeLog =
+            new TaskChangeLog<>(MAX_REMOVED_CHANGES, System.currentTimeMillis());
+    // only accessed in message thread
+    private final TaskCoalescer taskCoalescer = new TaskCoalescer();
 
     private DownloadManager(OkHttpClient client, Context appContext, Configuration configuration) {
         maxRunningTask = configuration.maxRunningTask;
@@ -71,11 +107,17 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         allowDownload = configuration.allowDownload;
         avoidFrameDrop = configuration.avoidFrameDrop;
         sendMessageIntervalNanos = configuration.sendMessageIntervalNanos;
+        blockSize = configuration.blockSize;
+        traceRecorder = configuration.traceBufferSize > 0
+                ? new TraceRecorder(configuration.traceBufferSize) : TraceRecorder.DISABLED;
+        groupCommitFlusher = new GroupCommitFlusher(configuration.durabilityPolicy, configuration.syncIntervalMillis);
+        progressSampler = new ProgressSampler(DownloadExecutors.scheduler, DownloadExecutors.io,
+                this::onDownloadProgressUpdate, !groupCommitFlusher.checkpointAfterForce());
+        diskVolumeScheduler = new DiskVolumeScheduler(configuration.writeConcurrencyPerVolume, DownloadExecutors.scheduler,
+                () -> DownloadExecutors.message.execute(this::schedule));
         this.client = client;
-        SQLiteDatabase db = new DevOpenHelper(appContext, DB_NAME).getWritableDatabase();
-        daoSession = new DaoMaster(db).newSession();
         Logger.d("DownloadManager", "DownloadManager: maxRunningTask = " + maxRunningTask);
-        recoverDownloadTasks();
+        recoverDownloadTasks(appContext);
     }
 
 
@@ -86,9 +128,13 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                     if (context == null) {
                         throw new NullPointerException("Context cannot be null!");
                     }
+                    AndroidLogSink.installIfDebug();
                     HttpLoggingInterceptor httpLoggingInterceptor = new HttpLoggingInterceptor();
                     httpLoggingInterceptor.setLevel(Level.HEADERS);
-                    OkHttpClient client = new Builder().addInterceptor(httpLoggingInterceptor).build();
+                    OkHttpClient client = new Builder()
+                            .addInterceptor(httpLoggingInterceptor)
+                            .eventListenerFactory(DownloadStatsCollector.EVENT_LISTENER_FACTORY)
+                            .build();
                     instance = new DownloadManager(client, context, configuration);
                 }
             }
@@ -108,16 +154,53 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         return speedLimit / Math.max(runningTasksId.size(), 1);
     }
 
+    int blockSize() {
+        return blockSize;
+    }
+
+    GroupCommitFlusher groupCommitFlusher() {
+        return groupCommitFlusher;
+    }
+
+    ProgressSampler progressSampler() {
+        return progressSampler;
+    }
+
+    MimeTypeResolver mimeTypeResolver() {
+        return mimeTypeResolver;
+    }
+
+    TraceRecorder traceRecorder() {
+        return traceRecorder;
+    }
+
+    DownloadStatsCollector downloadStatsCollector() {
+        return downloadStatsCollector;
+    }
+
+    FilenameReservations filenameReservations() {
+        return filenameReservations;
+    }
+
+    DiskVolume diskVolumeOf(String path) {
+        return diskVolumeScheduler.volumeOf(path);
+    }
+
     private void pauseAllInner() {
-        for (Long aLong : waitingTasksId) {
-            DownloadTask downloadTask = taskTable.get(aLong);
+        // otherwise a paused leader hands its followers back to the queue, to download on their own
+        for (long id : taskCoalescer.followers()) {
+            detachFollower(id);
+        }
+        // pausing a task may change the queues at once
+        for (long id : waitingTasksId.toArray()) {
+            DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask != null) {
                 downloadTask.pause();
             }
         }
 
-        for (Long aLong : runningTasksId) {
-            DownloadTask downloadTask = taskTable.get(aLong);
+        for (long id : runningTasksId.toArray()) {
+            DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask != null) {
                 downloadTask.pause();
             }
@@ -125,8 +208,8 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
     private void startAllInner() {
-        int size = taskTable.size();
-        List<DownloadInfo> infoList = new ArrayList<>();
+        int size = infoTable.size();
+        List<DownloadInfo> infoList = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
             DownloadInfo downloadInfo = infoTable.valueAt(i);
             if (downloadInfo != null) {
@@ -136,55 +219,159 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         Collections.sort(infoList, (o1, o2) ->
                 o2.getCreatedTime().compareTo(o1.getCreatedTime()));
         for (DownloadInfo downloadInfo : infoList) {
-            DownloadTask downloadTask = taskTable.get(downloadInfo.getId());
-            if (downloadTask != null) {
-                enqueueTask(downloadInfo.getId(), false, false);
+            long id = downloadInfo.getId();
+            // followers are on their way already, with the task they follow
+            if (taskTable.containsKey(id) && !taskCoalescer.isFollower(id)) {
+                enqueueTask(id, false, false);
             }
         }
         schedule();
     }
 
-    private void recoverDownloadTasks() {
+    /**
+     * Opens the database and recovers active tasks in batches on io, so that startup does not
+     * scale with the download history. Finished tasks are not recovered; they stay in the
+     * database and a task is built for one only when it is restarted. Commands of an id run as soon as its task is recovered.
+     */
+    private void recoverDownloadTasks(Context appContext) {
         DownloadExecutors.io.execute(() -> {
             try {
-                List<DownloadInfo> downloadInfoList = queryActiveDownloadInfoListInner();
-                List<DownloadInfo> finishedDownloadInfoList = queryFinishedDownloadInfoListInner();
-                for (DownloadInfo downloadInfo : downloadInfoList) {
-                    long id = downloadInfo.getId();
-                    infoTable.put(id, downloadInfo);
-
-                    int downloadItemState = downloadInfo.getDownloadItemState();
-                    if (downloadItemState == ERROR || downloadItemState == FATAL_ERROR) {
-                        errorTasksId.add(id);
-                    } else {
-                        downloadInfo.setDownloadItemState(PAUSED);
-                        pausingTasksId.add(id);
-                    }
-                    DownloadTask downloadTask = new DownloadTask(downloadInfo, client);
-                    taskTable.put(id, downloadTask);
-                    downloadInfo.setDownloadItemState(downloadTask.getState());
-                }
-
-                daoSession.getDownloadInfoDao().saveInTx(downloadInfoList);
-                for (DownloadInfo downloadInfo : finishedDownloadInfoList) {
-                    taskTable.put(downloadInfo.getId(), new DownloadTask(downloadInfo, client));
-                    infoTable.put(downloadInfo.getId(), downloadInfo);
+                try {
+                    SQLiteDatabase db = new DevOpenHelper(appContext, DB_NAME).getWritableDatabase();
+                    daoSession = new DaoMaster(db).newSession();
+                    DownloadQuerySql.createIndexes(daoSession.getDatabase());
+                    store = new GreenDaoDownloadStore(daoSession);
+                } finally {
+                    databaseCountDownLatch.countDown();
                 }
+                DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+                long lastId = 0;
+                List<DownloadInfo> batch;
+                do {
+                    batch = downloadInfoDao.queryBuilder()
+                            .where(DownloadInfoDao.Properties.DownloadItemState.notEq(FINISH))
+                            .where(DownloadInfoDao.Properties.DownloadItemState.notEq(CANCELED))
+                            .where(DownloadInfoDao.Properties.Id.gt(lastId))
+                            .orderAsc(DownloadInfoDao.Properties.Id)
+                            .limit(RECOVER_BATCH_SIZE)
+                            .build()
+                            .list();
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    // tasks interrupted by the last shutdown are paused; only they are rewritten
+                    List<DownloadInfo> changed = new ArrayList<>();
+                    for (DownloadInfo downloadInfo : batch) {
+                        int downloadItemState = downloadInfo.getDownloadItemState();
+                        if (downloadItemState != ERROR && downloadItemState != FATAL_ERROR
+                                && downloadItemState != PAUSED) {
+                            downloadInfo.setDownloadItemState(PAUSED);
+                            changed.add(downloadInfo);
+                        }
+                    }
+                    if (!changed.isEmpty()) {
+                        downloadInfoDao.updateInTx(changed);
+                    }
+                    lastId = batch.get(batch.size() - 1).getId();
+                    List<DownloadInfo> recoveredBatch = batch;
+                    DownloadExecutors.message.execute(() -> putRecoveredTasks(recoveredBatch));
+                } while (batch.size() == RECOVER_BATCH_SIZE);
             } finally {
-                recoverCountDownLatch.countDown();
+                DownloadExecutors.message.execute(this::onRecovered);
             }
         });
     }
 
+    private void putRecoveredTasks(List<DownloadInfo> downloadInfoList) {
+        for (DownloadInfo downloadInfo : downloadInfoList) {
+            long id = downloadInfo.getId();
+            infoTable.put(id, downloadInfo);
+            int downloadItemState = downloadInfo.getDownloadItemState();
+            if (downloadItemState == ERROR || downloadItemState == FATAL_ERROR) {
+                errorTasksId.offerLast(id);
+            } else {
+                pausingTasksId.offerLast(id);
+            }
+            taskTable.put(id, new DownloadTask(downloadInfo, client));
+            taskChangeLog.put(id, downloadInfo);
+            List<Runnable> commands = pendingCommands.remove(id);
+            if (commands != null) {
+                for (Runnable command : commands) {
+                    command.run();
+                }
+            }
+        }
+    }
+
+    private void onRecovered() {
+        recovered = true;
+        recoverCountDownLatch.countDown();
+        // ids that are not active; they are found in the database or not at all
+        for (int i = 0, size = pendingCommands.size(); i < size; i++) {
+            for (Runnable command : pendingCommands.valueAt(i)) {
+                command.run();
+            }
+        }
+        pendingCommands.clear();
+        for (Runnable command : afterRecoverCommands) {
+            command.run();
+        }
+        afterRecoverCommands.clear();
+    }
+
     private void doOnMessageAfterRecover(Runnable runnable) {
-        if (recoverCountDownLatch.getCount() == 0) {
-            runnable.run();
-        } else {
-            DownloadExecutors.io.execute(() -> {
-                waitForRecovering();
-                DownloadExecutors.message.execute(runnable);
-            });
+        DownloadExecutors.message.execute(() -> {
+            if (recovered) {
+                runnable.run();
+            } else {
+                afterRecoverCommands.add(runnable);
+            }
+        });
+    }
+
+    /**
+     * Runs a command of a task on message thread once the task is recovered.
+     */
+    private void doOnMessageAfterRecover(long id, Runnable runnable) {
+        DownloadExecutors.message.execute(() -> {
+            if (recovered || taskTable.containsKey(id)) {
+                runnable.run();
+                return;
+            }
+            List<Runnable> commands = pendingCommands.get(id);
+            if (commands == null) {
+                commands = new ArrayList<>(1);
+                pendingCommands.put(id, commands);
+            }
+            commands.add(runnable);
+        });
+    }
+
+    /**
+     * The greenDAO session, for queries that the {@link DownloadStore} does not cover.
+     */
+    DaoSession daoSession() {
+        DaoSession daoSession = this.daoSession;
+        if (daoSession == null) {
+            await(databaseCountDownLatch);
+            daoSession = this.daoSession;
+            if (daoSession == null) {
+                throw new IllegalStateException("cannot open database " + DB_NAME);
+            }
         }
+        return daoSession;
+    }
+
+    DownloadStore<DownloadInfo, DownloadThreadInfo> store() {
+        DownloadStore<DownloadInfo, DownloadThreadInfo> store = this.store;
+        if (store == null) {
+            await(databaseCountDownLatch);
+            store = this.store;
+            if (store == null) {
+                throw new IllegalStateException("cannot open database " + DB_NAME);
+            }
+        }
+        return store;
     }
 
     /**
@@ -195,30 +382,68 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         int maxRunningTask = allowDownload ? this.maxRunningTask : 0;
 
         while (runningTasksId.size() > maxRunningTask) {
-            Long id = runningTasksId.pollFirst();
+            long id = runningTasksId.pollFirst();
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) {
                 taskTable.remove(id);
                 infoTable.remove(id);
                 continue;
             }
+            traceRecorder.instant(TraceRecorder.SCHEDULE, id, TraceRecorder.LANE_SCHEDULER, TraceRecorder.SCHEDULE_PREEMPT);
             enqueueTask(id, false, false);
         }
 
+        if (runningTasksId.size() >= maxRunningTask || waitingTasksId.isEmpty()) {
+            return;
+        }
+
+        // running tasks of every volume
+        Map<DiskVolume, Integer> volumeRunningCount = new HashMap<>();
+        for (long id : runningTasksId.toArray()) {
+            DownloadTask downloadTask = taskTable.get(id);
+            if (downloadTask != null) {
+                DiskVolume volume = downloadTask.diskVolume();
+                Integer count = volumeRunningCount.get(volume);
+                volumeRunningCount.put(volume, count == null ? 1 : count + 1);
+            }
+        }
+
+        // tasks whose volume cannot absorb more writes keep their place in queue
+        List<Long> heldBackIds = null;
         while (runningTasksId.size() < maxRunningTask && !waitingTasksId.isEmpty()) {
-            Long id = waitingTasksId.pollFirst();
+            long id = waitingTasksId.pollFirst();
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) {
                 taskTable.remove(id);
                 infoTable.remove(id);
                 continue;
             }
+            DiskVolume volume = downloadTask.diskVolume();
+            Integer count = volumeRunningCount.get(volume);
+            int runningOnVolume = count == null ? 0 : count;
+            if (!diskVolumeScheduler.canAdmit(volume, runningOnVolume)) {
+                if (heldBackIds == null) {
+                    heldBackIds = new ArrayList<>();
+                }
+                heldBackIds.add(id);
+                traceRecorder.instant(TraceRecorder.SCHEDULE, id, TraceRecorder.LANE_SCHEDULER, TraceRecorder.SCHEDULE_HELD_BY_VOLUME);
+                continue;
+            }
             if (downloadTask.start()) {
-                runningTasksId.offer(id);
+                runningTasksId.offerLast(id);
+                volumeRunningCount.put(volume, runningOnVolume + 1);
+                traceRecorder.instant(TraceRecorder.SCHEDULE, id, TraceRecorder.LANE_SCHEDULER, TraceRecorder.SCHEDULE_START);
             } else if (downloadTask.getState() == WAITING) {
+                traceRecorder.instant(TraceRecorder.SCHEDULE, id, TraceRecorder.LANE_SCHEDULER, TraceRecorder.SCHEDULE_REQUEUE);
                 enqueueTask(id, false, false);
             }
         }
+
+        if (heldBackIds != null) {
+            for (int i = heldBackIds.size() - 1; i >= 0; i--) {
+                waitingTasksId.offerFirst(heldBackIds.get(i));
+            }
+        }
     }
 
     @Override
@@ -234,35 +459,72 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
     @Override
-    public void onDownloadProgressUpdate(long id, long total, long cur, double bps) {
+    public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+        IDownloadCallback downloadCallback = this.downloadCallback;
+        if (DownloadExecutors.isMessageThread()) {
+            sendProgressUpdate(downloadCallback, System.nanoTime(), id, total, cur, bps, etaMillis);
+            return;
+        }
+        DownloadExecutors.message.execute(() ->
+                sendProgressUpdate(downloadCallback, System.nanoTime(), id, total, cur, bps, etaMillis));
+    }
+
+    /**
+     * progress of all running tasks sampled by {@link ProgressSampler} at the same time
+     */
+    void onDownloadProgressUpdate(List<ProgressSampler.Progress> progresses) {
         IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
-            boolean shouldSend = false;
             long currentTime = System.nanoTime();
-            if (avoidFrameDrop) {
-                Long lastTime = lastSendMessageTime.get(id);
-                if (lastTime == null || lastTime + sendMessageIntervalNanos <= currentTime) {
-                    shouldSend = true;
-                }
-            } else {
-                shouldSend = true;
+            for (ProgressSampler.Progress progress : progresses) {
+                sendProgressUpdate(downloadCallback, currentTime, progress.id, progress.total,
+                        progress.current, progress.bps, progress.etaMillis);
             }
+        });
+    }
 
-            if (shouldSend) {
-                lastSendMessageTime.put(id, currentTime);
-                if (downloadCallback != null) {
-                    try {
-                        downloadCallback.onDownloadProgressUpdate(id, total, cur, bps);
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "onDownloadProgressUpdate", e);
+    private void sendProgressUpdate(IDownloadCallback downloadCallback, long currentTime,
+                                    long id, long total, long cur, double bps, long etaMillis) {
+        DownloadTask downloadTask = taskTable.get(id);
+        boolean shouldSend = true;
+        if (avoidFrameDrop && downloadTask != null) {
+            // Long.MIN_VALUE if never sent
+            shouldSend = downloadTask.progressSentNanos + sendMessageIntervalNanos <= currentTime;
+        }
+
+        if (shouldSend) {
+            if (downloadTask != null) {
+                downloadTask.progressSentNanos = currentTime;
+            }
+            if (downloadCallback != null) {
+                try {
+                    downloadCallback.onDownloadProgressUpdate(id, total, cur, bps, etaMillis);
+                    // followers show the progress of the transfer they wait for
+                    for (long followerId : taskCoalescer.followersOf(id)) {
+                        downloadCallback.onDownloadProgressUpdate(followerId, total, cur, bps, etaMillis);
                     }
+                } catch (RemoteException e) {
+                    Logger.e(TAG, "onDownloadProgressUpdate", e);
                 }
             }
-        });
+        }
+    }
+
+    /**
+     * Called by a task whenever its state or info changes, on any thread.
+     */
+    void onTaskChanged(DownloadInfo downloadInfo) {
+        int state = downloadInfo.getDownloadItemState();
+        if (state == FINISH || state == CANCELED) {
+            taskChangeLog.remove(downloadInfo.getId(), downloadInfo);
+        } else {
+            taskChangeLog.put(downloadInfo.getId(), downloadInfo);
+        }
     }
 
     @Override
     public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        onTaskChanged(downloadInfo);
         IDownloadCallback downloadCallback = this.downloadCallback;
         if (downloadCallback != null) {
             try {
@@ -277,11 +539,12 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     public void onDownloadError(long id, int code, boolean fatal) {
         IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
-            lastSendMessageTime.remove(id);
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
+            downloadTask.progressSentNanos = Long.MIN_VALUE;
             if (runningTasksId.remove(id) | pausingTasksId.remove(id) | waitingTasksId.remove(id)) {
-                errorTasksId.add(id);
+                errorTasksId.offerLast(id);
+                enqueueFollowers(taskCoalescer.release(id));
                 if (downloadCallback != null) {
                     try {
                         downloadCallback.onDownloadError(id, code, fatal);
@@ -299,7 +562,7 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
             if (!runningTasksId.contains(downloadInfo.getId())) {
-                runningTasksId.offer(downloadInfo.getId());
+                runningTasksId.offerLast(downloadInfo.getId());
             }
             if (downloadCallback != null) {
                 try {
@@ -328,10 +591,11 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
             DownloadTask downloadTask = taskTable.get(id);
-            lastSendMessageTime.remove(id);
             if (downloadTask == null) return;
+            downloadTask.progressSentNanos = Long.MIN_VALUE;
             if (runningTasksId.remove(id) | waitingTasksId.remove(id)) {
-                pausingTasksId.add(id);
+                pausingTasksId.offerLast(id);
+                enqueueFollowers(taskCoalescer.release(id));
                 if (downloadCallback != null) {
                     try {
                         downloadCallback.onDownloadPaused(id);
@@ -349,12 +613,13 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     public void onDownloadCanceled(long id) {
         IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
-            lastSendMessageTime.remove(id);
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
+            downloadTask.progressSentNanos = Long.MIN_VALUE;
             if (runningTasksId.remove(id) | pausingTasksId.remove(id) |
                     errorTasksId.remove(id) | waitingTasksId.remove(id)) {
                 taskTable.remove(id);
+                enqueueFollowers(taskCoalescer.release(id));
                 Logger.d("DownloadManager", "remove task#" + id + " running tasks = " + runningTasksId.size());
                 if (downloadCallback != null) {
                     try {
@@ -380,7 +645,7 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
         DownloadExecutors.message.execute(() -> {
             if (!waitingTasksId.contains(id)) {
-                waitingTasksId.offer(id);
+                waitingTasksId.offerLast(id);
                 schedule();
             }
         });
@@ -393,7 +658,13 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             long id = downloadInfo.getId();
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
-            if (runningTasksId.remove(id) | waitingTasksId.remove(id) | pausingTasksId.remove(id) | errorTasksId.remove(id)) {
+            if (runningTasksId.remove(id) | waitingTasksId.remove(id) | pausingTasksId.remove(id)
+                    | errorTasksId.remove(id) | taskCoalescer.unfollow(id)) {
+                // finished tasks live in db only; restart builds a new task
+                taskTable.remove(id);
+                infoTable.remove(id);
+                downloadStatsCollector.finish(id);
+                finishFollowers(downloadInfo, taskCoalescer.retire(id));
                 try {
                     if (downloadCallback != null) {
                         downloadCallback.onDownloadFinished(downloadInfo);
@@ -412,13 +683,14 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                 filename, true, WAITING,
                 0, 0, null, new Date(), null, null);
         try {
-            Long insertId = PersistUtil.persistDownloadInfo(daoSession, downloadInfo, null);
+            Long insertId = store().persist(downloadInfo, null);
             DownloadExecutors.message.execute(() -> {
                 if (insertId != null) {
                     infoTable.put(insertId, downloadInfo);
                     DownloadTask downloadTask = new DownloadTask(downloadInfo, client);
                     taskTable.put(insertId, downloadTask);
-                    waitingTasksId.add(insertId);
+                    taskChangeLog.put(insertId, downloadInfo);
+                    followOrEnqueue(insertId, downloadInfo);
                     try {
                         listener.submitSuccess(downloadInfo);
                     } catch (RemoteException e) {
@@ -443,21 +715,124 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
     }
 
+    @WorkerThread
+    private void submitBatchInner(List<SubmitRequest> requests, IBatchSubmitCallback callback) {
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(requests.size());
+        for (SubmitRequest request : requests) {
+            downloadInfoList.add(new DownloadInfo(null, request.getUrl(), request.getPath(),
+                    request.getFilename(), true, WAITING,
+                    0, 0, null, new Date(), null, null));
+        }
+        try {
+            store().insert(downloadInfoList);
+        } catch (Exception e) {
+            try {
+                callback.submitFail(e.getLocalizedMessage());
+            } catch (RemoteException e1) {
+                Logger.e(TAG, "submitFail", e1);
+            }
+            return;
+        }
+        DownloadExecutors.message.execute(() -> {
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                long id = downloadInfo.getId();
+                infoTable.put(id, downloadInfo);
+                taskTable.put(id, new DownloadTask(downloadInfo, client));
+                taskChangeLog.put(id, downloadInfo);
+                followOrEnqueue(id, downloadInfo);
+            }
+            try {
+                callback.submitSuccess(downloadInfoList);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "submitSuccess", e);
+            }
+            notifyDownloadManagerArrive(downloadInfoList);
+            schedule();
+        });
+    }
+
+    /**
+     * A new task follows the task that leads its url if that one is on its way, or leads the url itself.
+     */
+    private void followOrEnqueue(long id, DownloadInfo downloadInfo) {
+        long leaderId = taskCoalescer.leaderOf(downloadInfo.getUrl());
+        DownloadTask leader = leaderId < 0 ? null : taskTable.get(leaderId);
+        if (leader != null) {
+            int state = leader.getState();
+            if (state == WAITING || state == PENDING || state == CONNECTING || state == RUNNING) {
+                Logger.d(TAG, "Task#" + id + " follows task#" + leaderId + " of the same url");
+                taskCoalescer.follow(leaderId, id);
+                return;
+            }
+        }
+        taskCoalescer.lead(downloadInfo.getUrl(), id);
+        waitingTasksId.offerLast(id);
+    }
+
+    /**
+     * A command on a follower applies to it as a task of its own, waiting in queue.
+     */
+    private void detachFollower(long id) {
+        if (taskCoalescer.unfollow(id)) {
+            waitingTasksId.offerLast(id);
+        }
+    }
+
+    /**
+     * Followers of a task that stopped without a file download on their own.
+     */
+    private void enqueueFollowers(long[] followerIds) {
+        for (long followerId : followerIds) {
+            if (taskTable.containsKey(followerId)) {
+                waitingTasksId.offerLast(followerId);
+            }
+        }
+        if (followerIds.length > 0) {
+            schedule();
+        }
+    }
+
+    private void finishFollowers(DownloadInfo leaderInfo, long[] followerIds) {
+        if (followerIds.length == 0) {
+            return;
+        }
+        List<DownloadTask> followers = new ArrayList<>(followerIds.length);
+        for (long followerId : followerIds) {
+            DownloadTask follower = taskTable.get(followerId);
+            if (follower != null) {
+                followers.add(follower);
+            } else {
+                taskCoalescer.unfollow(followerId);
+            }
+        }
+        DownloadExecutors.io.execute(() -> {
+            for (DownloadTask follower : followers) {
+                if (!follower.finishFrom(leaderInfo)) {
+                    // downloads on its own, unless a command detached it already
+                    DownloadExecutors.message.execute(() -> {
+                        detachFollower(follower.id());
+                        schedule();
+                    });
+                }
+            }
+        });
+    }
+
     /**
      * 将DownloadTask排队
      */
-    private void enqueueTask(long id, boolean restart, boolean scheduleAfterEnqueue) {
+    private boolean enqueueTask(long id, boolean restart, boolean scheduleAfterEnqueue) {
         DownloadTask downloadTask = taskTable.get(id);
         if (downloadTask == null) {
-            return;
+            return false;
         }
 
         if (!downloadTask.toWait(restart)) {
-            return;
+            return false;
         }
 
         if (!waitingTasksId.contains(id)) {
-            waitingTasksId.offer(id);
+            waitingTasksId.offerLast(id);
             if (scheduleAfterEnqueue) {
                 schedule();
             }
@@ -470,52 +845,153 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                 }
             }
         }
+        return true;
     }
 
     /************************** api **************************/
 
     @Override
     public void pauseAll() {
-        DownloadExecutors.message.execute(this::pauseAllInner);
+        pauseAll(CommandReply.NONE);
+    }
+
+    void pauseAll(CommandReply reply) {
+        DownloadExecutors.message.execute(() -> {
+            pauseAllInner();
+            reply.send(true);
+        });
     }
 
     @Override
     public void startAll() {
-        DownloadExecutors.message.execute(this::startAllInner);
+        startAll(CommandReply.NONE);
+    }
+
+    void startAll(CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            startAllInner();
+            reply.send(true);
+        });
     }
 
     // include re-download
     @Override
     public void startOrResume(long id, boolean restart) {
-        DownloadExecutors.message.execute(() -> {
+        startOrResume(id, restart, CommandReply.NONE);
+    }
+
+    void startOrResume(long id, boolean restart, CommandReply reply) {
+        doOnMessageAfterRecover(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
             final DownloadInfo info = infoTable.get(id);
             if ((downloadTask == null || info == null) && restart) {
+                // a finished task, which is only in db
                 DownloadExecutors.io.execute(() -> {
-                    DownloadInfo downloadInfo = daoSession.getDownloadInfoDao().load(id);
-                    if (downloadInfo != null) {
-                        DownloadExecutors.message.execute(() -> {
-                            DownloadTask newDownloadTask = new DownloadTask(downloadInfo, client);
-                            taskTable.put(id, newDownloadTask);
-                            infoTable.put(id, downloadInfo);
-                            notifyDownloadManagerArrive(downloadInfo);
-                            enqueueTask(id, true, true);
-                        });
+                    DownloadInfo downloadInfo = store().load(id);
+                    if (downloadInfo == null) {
+                        reply.send(false);
+                        return;
                     }
+                    DownloadExecutors.message.execute(() -> {
+                        // restarted twice in a row
+                        if (taskTable.containsKey(id)) {
+                            reply.send(false);
+                            return;
+                        }
+                        putLoadedTask(downloadInfo);
+                        notifyDownloadManagerArrive(downloadInfo);
+                        reply.send(enqueueTask(id, true, true));
+                    });
                 });
-            } else if (downloadTask != null && ((pausingTasksId.remove(id) | errorTasksId.remove(id)) ||
-                    downloadTask.getState() == FINISH)) {
-                if (restart) {
-                    info.setDownloadedSize(0);
-                    info.setTotalSize(0);
-                    info.setLastModified(null);
-                    onDownloadUpdateInfo(info);
+            } else {
+                reply.send(downloadTask != null && resumeTask(id, downloadTask, restart, true));
+            }
+        });
+    }
+
+    @Override
+    public void startOrResume(long[] ids, boolean restart) {
+        startOrResume(ids, restart, CommandReply.NONE);
+    }
+
+    /**
+     * Like {@link #startOrResume(long, boolean)} for every id, with one scheduling pass, and
+     * finished tasks loaded from db by one query.
+     */
+    void startOrResume(long[] ids, boolean restart, CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            boolean applied = true;
+            long[] missingIds = new long[ids.length];
+            int missingCount = 0;
+            for (long id : ids) {
+                DownloadTask downloadTask = taskTable.get(id);
+                if ((downloadTask == null || !infoTable.containsKey(id)) && restart) {
+                    missingIds[missingCount++] = id;
+                } else {
+                    applied &= downloadTask != null && resumeTask(id, downloadTask, restart, false);
                 }
-                enqueueTask(id, restart, true);
             }
+            schedule();
+            if (missingCount == 0) {
+                reply.send(applied);
+                return;
+            }
+            boolean appliedInMemory = applied;
+            int count = missingCount;
+            DownloadExecutors.io.execute(() -> {
+                List<DownloadInfo> downloadInfoList = store().load(missingIds, count);
+                DownloadExecutors.message.execute(() -> {
+                    boolean allApplied = appliedInMemory && downloadInfoList.size() == count;
+                    List<DownloadInfo> arrived = new ArrayList<>(downloadInfoList.size());
+                    for (DownloadInfo downloadInfo : downloadInfoList) {
+                        // restarted twice in a row
+                        if (taskTable.containsKey(downloadInfo.getId())) {
+                            allApplied = false;
+                        } else {
+                            putLoadedTask(downloadInfo);
+                            arrived.add(downloadInfo);
+                        }
+                    }
+                    notifyDownloadManagerArrive(arrived);
+                    for (DownloadInfo downloadInfo : arrived) {
+                        allApplied &= enqueueTask(downloadInfo.getId(), true, false);
+                    }
+                    schedule();
+                    reply.send(allApplied);
+                });
+            });
         });
     }
 
+    /**
+     * Puts a task loaded from db, i.e. a finished one, back to restart it.
+     */
+    private void putLoadedTask(DownloadInfo downloadInfo) {
+        long id = downloadInfo.getId();
+        taskTable.put(id, new DownloadTask(downloadInfo, client));
+        infoTable.put(id, downloadInfo);
+        downloadInfo.setTotalSize(0);
+        downloadInfo.setLastModified(null);
+        taskChangeLog.put(id, downloadInfo);
+    }
+
+    /**
+     * Enqueues a paused, failed or finished task.
+     */
+    private boolean resumeTask(long id, DownloadTask downloadTask, boolean restart, boolean scheduleAfterEnqueue) {
+        if (!(pausingTasksId.remove(id) | errorTasksId.remove(id)) && downloadTask.getState() != FINISH) {
+            return false;
+        }
+        if (restart) {
+            DownloadInfo info = infoTable.get(id);
+            info.setDownloadedSize(0);
+            info.setTotalSize(0);
+            info.setLastModified(null);
+            onDownloadUpdateInfo(info);
+        }
+        return enqueueTask(id, restart, scheduleAfterEnqueue);
+    }
+
     private void notifyDownloadManagerArrive(DownloadInfo info) {
         try {
             final IDownloadTasksChangeCallback downloadTasksChangeCallback = this.downloadTasksChangeCallback;
@@ -527,6 +1003,28 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
     }
 
+    private void notifyDownloadManagerArrive(List<DownloadInfo> downloadInfoList) {
+        final IDownloadTasksChangeCallback downloadTasksChangeCallback = this.downloadTasksChangeCallback;
+        if (downloadTasksChangeCallback != null && !downloadInfoList.isEmpty()) {
+            try {
+                downloadTasksChangeCallback.onNewDownloadTasksArrive(downloadInfoList);
+            } catch (RemoteException e) {
+                Logger.e("DownloadManager", "onNewDownloadTasksArrive", e);
+            }
+        }
+    }
+
+    private void notifyDownloadInfoRemoved(long[] ids) {
+        final IDownloadTasksChangeCallback downloadTasksChangeCallback = this.downloadTasksChangeCallback;
+        if (downloadTasksChangeCallback != null && ids.length > 0) {
+            try {
+                downloadTasksChangeCallback.onDownloadTasksRemove(ids);
+            } catch (RemoteException e) {
+                Logger.e("DownloadManager", "onDownloadTasksRemove", e);
+            }
+        }
+    }
+
     private void notifyDownloadInfoRemoved(long id) {
         final IDownloadTasksChangeCallback downloadTasksChangeCallback = this.downloadTasksChangeCallback;
         if (downloadTasksChangeCallback != null) {
@@ -540,21 +1038,60 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void pause(long id) {
-        DownloadExecutors.message.execute(() -> {
+        pause(id, CommandReply.NONE);
+    }
+
+    void pause(long id, CommandReply reply) {
+        doOnMessageAfterRecover(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
-            if (downloadTask == null) return;
-            downloadTask.pause();
+            if (downloadTask == null) {
+                reply.send(false);
+                return;
+            }
+            detachFollower(id);
+            reply.send(downloadTask.pause());
+        });
+    }
+
+    @Override
+    public void pause(long[] ids) {
+        pause(ids, CommandReply.NONE);
+    }
+
+    void pause(long[] ids, CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            boolean applied = true;
+            for (long id : ids) {
+                DownloadTask downloadTask = taskTable.get(id);
+                if (downloadTask == null) {
+                    applied = false;
+                } else {
+                    detachFollower(id);
+                    // every id is paused even after one that is not
+                    applied &= downloadTask.pause();
+                }
+            }
+            reply.send(applied);
         });
     }
 
     // also delete
     @Override
     public void cancel(long id) {
-        DownloadExecutors.message.execute(() -> {
+        cancel(id, CommandReply.NONE);
+    }
+
+    void cancel(long id, CommandReply reply) {
+        doOnMessageAfterRecover(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
-            if (downloadTask == null) return;
-            downloadTask.cancel();
+            if (downloadTask == null) {
+                reply.send(false);
+                return;
+            }
+            detachFollower(id);
+            boolean canceled = downloadTask.cancel();
             notifyDownloadInfoRemoved(id);
+            reply.send(canceled);
         });
     }
 
@@ -570,41 +1107,121 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         if (path == null) {
             throw new NullPointerException("path cannot be null");
         }
-        DownloadExecutors.io.execute(() -> {
-            waitForRecovering();
-            submitInner(url, path, filename, callback);
-        });
+        DownloadExecutors.io.execute(() -> submitInner(url, path, filename, callback));
+    }
+
+    /**
+     * Creates the tasks of all the requests in one transaction, then registers them in one
+     * message pass with one tasks-changed event and one scheduling pass.
+     *
+     * @param callback told all the tasks or why none was created
+     */
+    @Override
+    public void submitBatch(List<SubmitRequest> requests, IBatchSubmitCallback callback) {
+        DownloadExecutors.io.execute(() -> submitBatchInner(requests, callback));
     }
 
     @Override
     public void delete(long id, boolean deleteFile) {
-        DownloadExecutors.message.execute(() -> {
+        delete(id, deleteFile, CommandReply.NONE);
+    }
+
+    void delete(long id, boolean deleteFile, CommandReply reply) {
+        doOnMessageAfterRecover(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
             DownloadInfo info = infoTable.get(id);
             if (downloadTask != null && info != null) {
-                taskTable.remove(id);
-                infoTable.remove(id);
-                runningTasksId.remove(id);
-                waitingTasksId.remove(id);
-                errorTasksId.remove(id);
-                pausingTasksId.remove(id);
-                downloadTask.delete(deleteFile);
+                removeTask(id);
+                boolean deleted = downloadTask.deleteWithoutRecord(deleteFile);
                 notifyDownloadInfoRemoved(id);
                 schedule();
+                if (!deleted) {
+                    reply.send(true);
+                    return;
+                }
+                // the store blocks; keep it off the message thread
+                DownloadExecutors.io.execute(() -> {
+                    store().delete(info);
+                    reply.send(true);
+                });
             } else {
                 Logger.w("DownloadManager", "delete a task that is not present in DownloadManager! find in db. id = " + id);
                 DownloadExecutors.io.execute(() -> {
-                    DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
-                    DownloadInfo downloadInfo = downloadInfoDao.load(id);
+                    DownloadStore<DownloadInfo, DownloadThreadInfo> store = store();
+                    DownloadInfo downloadInfo = store.load(id);
                     if (downloadInfo != null) {
-                        PersistUtil.deleteDownloadInfo(daoSession, downloadInfo);
+                        store.delete(downloadInfo);
                         PersistUtil.deleteFile(downloadInfo, deleteFile);
                     }
+                    reply.send(downloadInfo != null);
                 });
             }
         });
     }
 
+    @Override
+    public void delete(long[] ids, boolean deleteFile) {
+        delete(ids, deleteFile, CommandReply.NONE);
+    }
+
+    /**
+     * Like {@link #delete(long, boolean)} for every id, with records deleted on io in one transaction
+     * for tasks in memory and one for those only in db. Tasks leave memory at once; the reply is sent
+     * when the records are deleted.
+     */
+    void delete(long[] ids, boolean deleteFile, CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            List<DownloadInfo> deletedInfoList = new ArrayList<>(ids.length);
+            long[] missingIds = new long[ids.length];
+            int missingCount = 0;
+            for (long id : ids) {
+                DownloadTask downloadTask = taskTable.get(id);
+                DownloadInfo info = infoTable.get(id);
+                if (downloadTask != null && info != null) {
+                    removeTask(id);
+                    if (downloadTask.deleteWithoutRecord(deleteFile)) {
+                        deletedInfoList.add(info);
+                    }
+                } else {
+                    missingIds[missingCount++] = id;
+                }
+            }
+            long[] removedIds = new long[deletedInfoList.size()];
+            for (int i = 0; i < removedIds.length; i++) {
+                removedIds[i] = deletedInfoList.get(i).getId();
+            }
+            notifyDownloadInfoRemoved(removedIds);
+            schedule();
+            int count = missingCount;
+            DownloadExecutors.io.execute(() -> {
+                DownloadStore<DownloadInfo, DownloadThreadInfo> store = store();
+                store.delete(deletedInfoList);
+                if (count == 0) {
+                    reply.send(true);
+                    return;
+                }
+                List<DownloadInfo> downloadInfoList = store.load(missingIds, count);
+                for (DownloadInfo downloadInfo : downloadInfoList) {
+                    PersistUtil.deleteFile(downloadInfo, deleteFile);
+                }
+                store.delete(downloadInfoList);
+                reply.send(downloadInfoList.size() == count);
+            });
+        });
+    }
+
+    private void removeTask(long id) {
+        taskTable.remove(id);
+        infoTable.remove(id);
+        runningTasksId.remove(id);
+        waitingTasksId.remove(id);
+        errorTasksId.remove(id);
+        pausingTasksId.remove(id);
+        taskChangeLog.remove(id, null);
+        taskCoalescer.unfollow(id);
+        enqueueFollowers(taskCoalescer.release(id));
+    }
+
     @Override
     public int getMaxRunningTask() {
         return maxRunningTask;
@@ -612,12 +1229,18 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void setMaxRunningTask(int count) {
-        if (maxRunningTask != count) {
-            doOnMessageAfterRecover(() -> {
+        setMaxRunningTask(count, CommandReply.NONE);
+    }
+
+    void setMaxRunningTask(int count, CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            if (maxRunningTask != count) {
                 maxRunningTask = count;
+                notifyConfigChanged();
                 schedule();
-            });
-        }
+            }
+            reply.send(true);
+        });
     }
 
     @Override
@@ -627,7 +1250,17 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void setSpeedLimit(long speedLimit) {
-        DownloadExecutors.message.execute(() -> this.speedLimit = speedLimit);
+        setSpeedLimit(speedLimit, CommandReply.NONE);
+    }
+
+    void setSpeedLimit(long speedLimit, CommandReply reply) {
+        DownloadExecutors.message.execute(() -> {
+            if (this.speedLimit != speedLimit) {
+                this.speedLimit = speedLimit;
+                notifyConfigChanged();
+            }
+            reply.send(true);
+        });
     }
 
     @Override
@@ -637,12 +1270,18 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void setAllowDownload(boolean allowDownload) {
-        if (this.allowDownload != allowDownload) {
-            doOnMessageAfterRecover(() -> {
+        setAllowDownload(allowDownload, CommandReply.NONE);
+    }
+
+    void setAllowDownload(boolean allowDownload, CommandReply reply) {
+        doOnMessageAfterRecover(() -> {
+            if (this.allowDownload != allowDownload) {
                 this.allowDownload = allowDownload;
+                notifyConfigChanged();
                 schedule();
-            });
-        }
+            }
+            reply.send(true);
+        });
     }
 
     public boolean isAvoidFrameDrop() {
@@ -650,14 +1289,22 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
     public void setAvoidFrameDrop(boolean avoidFrameDrop) {
-        if (this.avoidFrameDrop != avoidFrameDrop) {
-            DownloadExecutors.message.execute(() -> {
+        setAvoidFrameDrop(avoidFrameDrop, CommandReply.NONE);
+    }
+
+    void setAvoidFrameDrop(boolean avoidFrameDrop, CommandReply reply) {
+        DownloadExecutors.message.execute(() -> {
+            if (this.avoidFrameDrop != avoidFrameDrop) {
                 this.avoidFrameDrop = avoidFrameDrop;
                 if (!avoidFrameDrop) {
-                    lastSendMessageTime.clear();
+                    for (int i = 0, size = taskTable.size(); i < size; i++) {
+                        taskTable.valueAt(i).progressSentNanos = Long.MIN_VALUE;
+                    }
                 }
-            });
-        }
+                notifyConfigChanged();
+            }
+            reply.send(true);
+        });
     }
 
     public long getSendMessageIntervalNanos() {
@@ -665,48 +1312,100 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
     public void setSendMessageIntervalNanos(long time) {
-        if (sendMessageIntervalNanos != time) {
-            DownloadExecutors.message.execute(() -> sendMessageIntervalNanos = time);
+        setSendMessageIntervalNanos(time, CommandReply.NONE);
+    }
+
+    void setSendMessageIntervalNanos(long time, CommandReply reply) {
+        DownloadExecutors.message.execute(() -> {
+            if (sendMessageIntervalNanos != time) {
+                sendMessageIntervalNanos = time;
+                notifyConfigChanged();
+            }
+            reply.send(true);
+        });
+    }
+
+    DownloadConfig config() {
+        return new DownloadConfig(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos);
+    }
+
+    private void notifyConfigChanged() {
+        IConfigCallback configCallback = this.configCallback;
+        if (configCallback != null) {
+            try {
+                configCallback.onConfigChanged(config());
+            } catch (RemoteException e) {
+                Logger.e(TAG, "onConfigChanged", e);
+            }
         }
     }
 
     @Override
-    public DownloadInfo queryDownloadInfo(long id) {
-        waitForRecovering();
-        return infoTable.get(id);
+    public boolean exportTrace(String path) {
+        if (!traceRecorder.isEnabled()) {
+            Logger.w(TAG, "exportTrace: tracing is disabled, see Configuration.Builder#setTraceBufferSize");
+            return false;
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+            traceRecorder.exportChromeTrace(writer);
+            return true;
+        } catch (IOException e) {
+            Logger.e(TAG, "cannot export trace to " + path, e);
+            return false;
+        }
     }
 
     @Override
-    public List<DownloadInfo> queryFinishedDownloadInfoList() {
-        waitForRecovering();
-        return queryFinishedDownloadInfoListInner();
+    public DownloadStats queryDownloadStats(long id) {
+        return downloadStatsCollector.query(id);
+    }
+
+    @Override
+    public DownloadStats queryAggregateDownloadStats() {
+        return downloadStatsCollector.queryAggregate();
+    }
+
+    @Override
+    public DownloadInfo queryDownloadInfo(long id) {
+        await(recoverCountDownLatch);
+        DownloadInfo downloadInfo = activeDownloadInfo(id);
+        if (downloadInfo == null) {
+            // finished tasks are not kept in memory
+            downloadInfo = store().load(id);
+        }
+        return downloadInfo;
     }
 
-    private List<DownloadInfo> queryFinishedDownloadInfoListInner() {
-        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+    @Override
+    public List<DownloadInfo> queryFinishedDownloadInfoList() {
+        DownloadInfoDao downloadInfoDao = daoSession().getDownloadInfoDao();
         return downloadInfoDao.queryBuilder()
                 .where(DownloadInfoDao.Properties.DownloadItemState.eq(FINISH))
                 .orderDesc(DownloadInfoDao.Properties.FinishedTime).build().list();
     }
 
     @Override
-    public List<DownloadInfo> queryActiveDownloadInfoList() {
-        waitForRecovering();
-        return queryActiveDownloadInfoListInner();
+    public DownloadPage queryDownloadPage(DownloadQuery query) {
+        // interrupted tasks are paused in db while recovering
+        await(recoverCountDownLatch);
+        return new DownloadQuerySql(query, mimeTypeResolver).query(daoSession().getDatabase());
     }
 
-    private void waitForRecovering() {
-        while (recoverCountDownLatch.getCount() > 0) {
-            try {
-                recoverCountDownLatch.await();
-            } catch (InterruptedException e) {
-                // do nothing
-            }
-        }
+    /**
+     * @param epoch   epoch of the client's mirror, 0 if it has none
+     * @param version version of the client's mirror
+     */
+    TaskChanges pullTaskChanges(long epoch, long version) {
+        // the log has every active task once recovered
+        await(recoverCountDownLatch);
+        return new TaskChanges(taskChangeLog.since(epoch, version));
     }
 
-    private List<DownloadInfo> queryActiveDownloadInfoListInner() {
-        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+    @Override
+    public List<DownloadInfo> queryActiveDownloadInfoList() {
+        // interrupted tasks are paused in db while recovering
+        await(recoverCountDownLatch);
+        DownloadInfoDao downloadInfoDao = daoSession().getDownloadInfoDao();
         return downloadInfoDao.queryBuilder()
                 .where(DownloadInfoDao.Properties.DownloadItemState.notEq(FINISH))
                 .where(DownloadInfoDao.Properties.DownloadItemState.notEq(CANCELED))
@@ -717,7 +1416,7 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public List<DownloadInfo> queryDeletedDownloadInfoList() {
-        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        DownloadInfoDao downloadInfoDao = daoSession().getDownloadInfoDao();
         return downloadInfoDao.queryBuilder()
                 .where(DownloadInfoDao.Properties.DownloadItemState.eq(FINISH))
                 .orderDesc(DownloadInfoDao.Properties.CreatedTime)
@@ -725,6 +1424,34 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                 .list();
     }
 
+    /**
+     * Looks up {@link #infoTable} for a caller on any thread: the table is not thread safe,
+     * so the lookup runs on the message thread, inline if the caller is on it.
+     */
+    private DownloadInfo activeDownloadInfo(long id) {
+        FutureTask<DownloadInfo> lookup = new FutureTask<>(() -> infoTable.get(id));
+        DownloadExecutors.message.execute(lookup);
+        while (true) {
+            try {
+                return lookup.get();
+            } catch (InterruptedException e) {
+                // do nothing
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    private static void await(CountDownLatch countDownLatch) {
+        while (countDownLatch.getCount() > 0) {
+            try {
+                countDownLatch.await();
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        }
+    }
+
     void setDownloadCallback(IDownloadCallback callback) {
         try {
             downloadCallbackSetLock.lock();
@@ -742,4 +1469,12 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             downloadTasksChangeCallbackSetLock.unlock();
         }
     }
+
+    /**
+     * @return config when the callback is set; changes after it are sent to the callback
+     */
+    DownloadConfig setConfigCallback(IConfigCallback callback) {
+        configCallback = callback;
+        return config();
+    }
 }
@@ -0,0 +1,66 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of tasks of a {@link DownloadQuery}; pass it to {@link DownloadQuery#next(DownloadPage)}
+ * for the page after it.
+ */
+public class DownloadPage implements Parcelable {
+    public static final Creator<DownloadPage> CREATOR = new Creator<DownloadPage>() {
+        @Override
+        public DownloadPage createFromParcel(Parcel in) {
+            return new DownloadPage(in);
+        }
+
+        @Override
+        public DownloadPage[] newArray(int size) {
+            return new DownloadPage[size];
+        }
+    };
+
+    private final List<DownloadSummary> items;
+    private final boolean hasMore;
+    // sort key and id of the last item
+    final long nextCursorTime;
+    final long nextCursorId;
+
+    DownloadPage(List<DownloadSummary> items, boolean hasMore, long nextCursorTime, long nextCursorId) {
+        this.items = items;
+        this.hasMore = hasMore;
+        this.nextCursorTime = nextCursorTime;
+        this.nextCursorId = nextCursorId;
+    }
+
+    protected DownloadPage(Parcel in) {
+        items = in.createTypedArrayList(DownloadSummary.CREATOR);
+        hasMore = in.readByte() != 0;
+        nextCursorTime = in.readLong();
+        nextCursorId = in.readLong();
+    }
+
+    public List<DownloadSummary> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedList(items);
+        dest.writeByte((byte) (hasMore ? 1 : 0));
+        dest.writeLong(nextCursorTime);
+        dest.writeLong(nextCursorId);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
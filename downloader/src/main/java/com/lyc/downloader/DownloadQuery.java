@@ -0,0 +1,221 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A page request of {@link YCDownloader#queryDownloadPage(DownloadQuery)}: filters, sort order and
+ * the position after the previous page. Tasks are sorted by time descending, then by id descending.
+ * Build one by {@link Builder} and get the next page by {@link #next(DownloadPage)}.
+ */
+public class DownloadQuery implements Parcelable {
+    public static final int ORDER_BY_CREATED_TIME = 0;
+    // tasks that have never finished are left out
+    public static final int ORDER_BY_FINISHED_TIME = 1;
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    public static final Creator<DownloadQuery> CREATOR = new Creator<DownloadQuery>() {
+        @Override
+        public DownloadQuery createFromParcel(Parcel in) {
+            return new DownloadQuery(in);
+        }
+
+        @Override
+        public DownloadQuery[] newArray(int size) {
+            return new DownloadQuery[size];
+        }
+    };
+
+    // empty for any state
+    final int[] states;
+    final String host;
+    // [from, to) in ms; -1 if not limited
+    final long createdFrom;
+    final long createdTo;
+    final long finishedFrom;
+    final long finishedTo;
+    // without dot
+    final String[] extensions;
+    final String[] mimeTypes;
+    final int orderBy;
+    final int pageSize;
+    // sort key and id of the last task of the previous page; cursorId is -1 for the first page
+    final long cursorTime;
+    final long cursorId;
+
+    private DownloadQuery(Builder builder, long cursorTime, long cursorId) {
+        states = builder.states;
+        host = builder.host;
+        createdFrom = builder.createdFrom;
+        createdTo = builder.createdTo;
+        finishedFrom = builder.finishedFrom;
+        finishedTo = builder.finishedTo;
+        extensions = builder.extensions;
+        mimeTypes = builder.mimeTypes;
+        orderBy = builder.orderBy;
+        pageSize = builder.pageSize;
+        this.cursorTime = cursorTime;
+        this.cursorId = cursorId;
+    }
+
+    private DownloadQuery(DownloadQuery query, long cursorTime, long cursorId) {
+        states = query.states;
+        host = query.host;
+        createdFrom = query.createdFrom;
+        createdTo = query.createdTo;
+        finishedFrom = query.finishedFrom;
+        finishedTo = query.finishedTo;
+        extensions = query.extensions;
+        mimeTypes = query.mimeTypes;
+        orderBy = query.orderBy;
+        pageSize = query.pageSize;
+        this.cursorTime = cursorTime;
+        this.cursorId = cursorId;
+    }
+
+    protected DownloadQuery(Parcel in) {
+        states = in.createIntArray();
+        host = in.readString();
+        createdFrom = in.readLong();
+        createdTo = in.readLong();
+        finishedFrom = in.readLong();
+        finishedTo = in.readLong();
+        extensions = in.createStringArray();
+        mimeTypes = in.createStringArray();
+        orderBy = in.readInt();
+        pageSize = in.readInt();
+        cursorTime = in.readLong();
+        cursorId = in.readLong();
+    }
+
+    /**
+     * @param page the page returned for this query
+     * @return the query of the page after it, or null if it is the last page
+     */
+    public DownloadQuery next(DownloadPage page) {
+        if (!page.hasMore()) {
+            return null;
+        }
+        return new DownloadQuery(this, page.nextCursorTime, page.nextCursorId);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeIntArray(states);
+        dest.writeString(host);
+        dest.writeLong(createdFrom);
+        dest.writeLong(createdTo);
+        dest.writeLong(finishedFrom);
+        dest.writeLong(finishedTo);
+        dest.writeStringArray(extensions);
+        dest.writeStringArray(mimeTypes);
+        dest.writeInt(orderBy);
+        dest.writeInt(pageSize);
+        dest.writeLong(cursorTime);
+        dest.writeLong(cursorId);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static class Builder {
+        private int[] states = new int[0];
+        private String host;
+        private long createdFrom = -1;
+        private long createdTo = -1;
+        private long finishedFrom = -1;
+        private long finishedTo = -1;
+        private String[] extensions = new String[0];
+        private String[] mimeTypes = new String[0];
+        private int orderBy = ORDER_BY_CREATED_TIME;
+        private int pageSize = DEFAULT_PAGE_SIZE;
+
+        /**
+         * @param states {@link DownloadTask.DownloadState}s to include; none for any state
+         */
+        public Builder setStates(int... states) {
+            this.states = states.clone();
+            return this;
+        }
+
+        /**
+         * @param host host of the url, e.g. "example.com"; null for any host
+         */
+        public Builder setHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * @param from inclusive, in ms; -1 if not limited
+         * @param to   exclusive, in ms; -1 if not limited
+         */
+        public Builder setCreatedTime(long from, long to) {
+            this.createdFrom = from;
+            this.createdTo = to;
+            return this;
+        }
+
+        /**
+         * @param from inclusive, in ms; -1 if not limited
+         * @param to   exclusive, in ms; -1 if not limited
+         */
+        public Builder setFinishedTime(long from, long to) {
+            this.finishedFrom = from;
+            this.finishedTo = to;
+            return this;
+        }
+
+        /**
+         * Matches filenames by extension; combined with {@link #setMimeTypes(String...)}.
+         *
+         * @param extensions without dot, e.g. "apk"
+         */
+        public Builder setExtensions(String... extensions) {
+            this.extensions = extensions.clone();
+            return this;
+        }
+
+        /**
+         * Matches filenames by the extensions of mime types, e.g. "image/png".
+         */
+        public Builder setMimeTypes(String... mimeTypes) {
+            this.mimeTypes = mimeTypes.clone();
+            return this;
+        }
+
+        /**
+         * @param orderBy {@link #ORDER_BY_CREATED_TIME} or {@link #ORDER_BY_FINISHED_TIME}
+         */
+        public Builder setOrderBy(int orderBy) {
+            if (orderBy != ORDER_BY_CREATED_TIME && orderBy != ORDER_BY_FINISHED_TIME) {
+                throw new IllegalArgumentException("unknown order " + orderBy);
+            }
+            this.orderBy = orderBy;
+            return this;
+        }
+
+        /**
+         * @param pageSize in [1, {@link #MAX_PAGE_SIZE}]
+         */
+        public Builder setPageSize(int pageSize) {
+            if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("page size must be in [1, " + MAX_PAGE_SIZE + "]");
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public DownloadQuery build() {
+            return new DownloadQuery(this, 0, -1);
+        }
+    }
+}
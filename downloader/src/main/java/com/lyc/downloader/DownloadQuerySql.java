@@ -0,0 +1,188 @@
+package com.lyc.downloader;
+
+import android.database.Cursor;
+import com.lyc.downloader.db.DownloadInfoDao;
+import com.lyc.downloader.db.DownloadInfoDao.Properties;
+import org.greenrobot.greendao.database.Database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Translates a {@link DownloadQuery} into a keyset paged SELECT of the columns of {@link DownloadSummary}.
+ * A page seeks past the last row of the previous page on one of {@link #INDEXES} and reads it in order,
+ * so its cost does not grow with the history size. A filter on several states is one such SELECT per
+ * state, merged by UNION ALL: SQLite cannot read {@code state IN (...)} in time order from one index
+ * range and would sort every matching row instead. Host and extension filters only narrow the rows
+ * read, so a page that skips many rows they reject costs more.
+ */
+class DownloadQuerySql {
+    private static final String TABLE = DownloadInfoDao.TABLENAME;
+    private static final String ID = Properties.Id.columnName;
+    private static final String STATE = Properties.DownloadItemState.columnName;
+    private static final String CREATED_TIME = Properties.CreatedTime.columnName;
+    private static final String FINISHED_TIME = Properties.FinishedTime.columnName;
+
+    // not declared on the entity: greenDAO only creates indexes with the tables, and existing
+    // databases would never get them
+    static final String[] INDEXES = {
+            "CREATE INDEX IF NOT EXISTS IDX_DOWNLOAD_INFO_STATE_CREATED ON " + TABLE
+                    + " (" + STATE + ", " + CREATED_TIME + ", " + ID + ")",
+            "CREATE INDEX IF NOT EXISTS IDX_DOWNLOAD_INFO_STATE_FINISHED ON " + TABLE
+                    + " (" + STATE + ", " + FINISHED_TIME + ", " + ID + ")",
+            "CREATE INDEX IF NOT EXISTS IDX_DOWNLOAD_INFO_CREATED ON " + TABLE
+                    + " (" + CREATED_TIME + ", " + ID + ")",
+            "CREATE INDEX IF NOT EXISTS IDX_DOWNLOAD_INFO_FINISHED ON " + TABLE
+                    + " (" + FINISHED_TIME + ", " + ID + ")",
+    };
+
+    final String sql;
+    final String[] args;
+    private final int pageSize;
+
+    DownloadQuerySql(DownloadQuery query, MimeTypeResolver mimeTypeResolver) {
+        pageSize = query.pageSize;
+        String time = query.orderBy == DownloadQuery.ORDER_BY_FINISHED_TIME ? FINISHED_TIME : CREATED_TIME;
+        List<String> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder(time).append(" IS NOT NULL");
+
+        if (query.host != null) {
+            String host = escapeLike(query.host.toLowerCase(Locale.US));
+            where.append(" AND (");
+            String[] patterns = {"%://" + host, "%://" + host + "/%", "%://" + host + ":%", "%://" + host + "?%"};
+            for (int i = 0; i < patterns.length; i++) {
+                if (i > 0) {
+                    where.append(" OR ");
+                }
+                where.append(Properties.Url.columnName).append(" LIKE ? ESCAPE '\\'");
+                args.add(patterns[i]);
+            }
+            where.append(')');
+        }
+
+        appendRange(where, args, CREATED_TIME, query.createdFrom, query.createdTo);
+        appendRange(where, args, FINISHED_TIME, query.finishedFrom, query.finishedTo);
+
+        if (query.extensions.length > 0 || query.mimeTypes.length > 0) {
+            Set<String> extensions = new LinkedHashSet<>();
+            for (String extension : query.extensions) {
+                extensions.add(extension.toLowerCase(Locale.US));
+            }
+            for (String mimeType : query.mimeTypes) {
+                String extension = mimeTypeResolver.extensionFromMimeType(mimeType);
+                if (extension != null) {
+                    extensions.add(extension.toLowerCase(Locale.US));
+                }
+            }
+            if (extensions.isEmpty()) {
+                // only unknown mime types
+                where.append(" AND 0");
+            } else {
+                where.append(" AND (");
+                boolean first = true;
+                for (String extension : extensions) {
+                    if (!first) {
+                        where.append(" OR ");
+                    }
+                    first = false;
+                    where.append(Properties.Filename.columnName).append(" LIKE ? ESCAPE '\\'");
+                    args.add("%." + escapeLike(extension));
+                }
+                where.append(')');
+            }
+        }
+
+        if (query.cursorId >= 0) {
+            // (time, id) < (cursorTime, cursorId); the first term bounds the index range
+            where.append(" AND ").append(time).append(" <= ? AND (")
+                    .append(time).append(" < ? OR ").append(ID).append(" < ?)");
+            args.add(Long.toString(query.cursorTime));
+            args.add(Long.toString(query.cursorTime));
+            args.add(Long.toString(query.cursorId));
+        }
+
+        String select = "SELECT " + ID + ", " + STATE + ", " + Properties.DownloadedSize.columnName + ", "
+                + Properties.TotalSize.columnName + ", " + Properties.Filename.columnName + ", " + time
+                + " FROM " + TABLE + " WHERE ";
+        // one more row tells whether there is a next page
+        String orderAndLimit = " ORDER BY " + time + " DESC, " + ID + " DESC LIMIT " + (pageSize + 1);
+        Set<Integer> states = new LinkedHashSet<>();
+        for (int state : query.states) {
+            states.add(state);
+        }
+
+        if (states.size() <= 1) {
+            List<String> selectArgs = new ArrayList<>(args.size() + 1);
+            StringBuilder selectWhere = new StringBuilder();
+            for (int state : states) {
+                selectWhere.append(STATE).append(" = ? AND ");
+                selectArgs.add(Integer.toString(state));
+            }
+            selectWhere.append(where);
+            selectArgs.addAll(args);
+            sql = select + selectWhere + orderAndLimit;
+            this.args = selectArgs.toArray(new String[0]);
+        } else {
+            // each branch reads at most one page from the range of its state
+            StringBuilder union = new StringBuilder();
+            List<String> unionArgs = new ArrayList<>(states.size() * (args.size() + 1));
+            for (int state : states) {
+                if (union.length() > 0) {
+                    union.append(" UNION ALL ");
+                }
+                union.append("SELECT * FROM (").append(select).append(STATE).append(" = ? AND ")
+                        .append(where).append(orderAndLimit).append(')');
+                unionArgs.add(Integer.toString(state));
+                unionArgs.addAll(args);
+            }
+            sql = union + orderAndLimit;
+            this.args = unionArgs.toArray(new String[0]);
+        }
+    }
+
+    static void createIndexes(Database db) {
+        for (String index : INDEXES) {
+            db.execSQL(index);
+        }
+    }
+
+    DownloadPage query(Database db) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            List<DownloadSummary> items = new ArrayList<>(Math.min(cursor.getCount(), pageSize));
+            long lastTime = 0;
+            boolean hasMore = false;
+            while (cursor.moveToNext()) {
+                if (items.size() == pageSize) {
+                    hasMore = true;
+                    break;
+                }
+                items.add(new DownloadSummary(cursor.getLong(0), cursor.getInt(1), cursor.getLong(2),
+                        cursor.getLong(3), cursor.isNull(4) ? null : cursor.getString(4)));
+                lastTime = cursor.getLong(5);
+            }
+            long lastId = items.isEmpty() ? -1 : items.get(items.size() - 1).getId();
+            return new DownloadPage(items, hasMore, lastTime, lastId);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void appendRange(StringBuilder where, List<String> args, String column, long from, long to) {
+        if (from >= 0) {
+            where.append(" AND ").append(column).append(" >= ?");
+            args.add(Long.toString(from));
+        }
+        if (to >= 0) {
+            where.append(" AND ").append(column).append(" < ?");
+            args.add(Long.toString(to));
+        }
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
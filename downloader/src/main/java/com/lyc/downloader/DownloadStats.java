@@ -0,0 +1,326 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Performance numbers of one download task, or of all tasks if {@link #getId()} is -1.
+ * Query by {@link YCDownloader#queryDownloadStats(long)} and
+ * {@link YCDownloader#queryAggregateDownloadStats()}.
+ */
+public class DownloadStats implements Parcelable {
+    public static final long AGGREGATE_ID = -1;
+
+    public static final Creator<DownloadStats> CREATOR = new Creator<DownloadStats>() {
+        @Override
+        public DownloadStats createFromParcel(Parcel in) {
+            return new DownloadStats(in);
+        }
+
+        @Override
+        public DownloadStats[] newArray(int size) {
+            return new DownloadStats[size];
+        }
+    };
+
+    private final long id;
+    private final int taskCount;
+    private final long activeNanos;
+    private final Metrics total;
+    private final List<Metrics> ranges;
+
+    DownloadStats(long id, int taskCount, long activeNanos, Metrics total, List<Metrics> ranges) {
+        this.id = id;
+        this.taskCount = taskCount;
+        this.activeNanos = activeNanos;
+        this.total = total;
+        this.ranges = ranges;
+    }
+
+    protected DownloadStats(Parcel in) {
+        id = in.readLong();
+        taskCount = in.readInt();
+        activeNanos = in.readLong();
+        total = new Metrics(in);
+        ranges = in.createTypedArrayList(Metrics.CREATOR);
+    }
+
+    /**
+     * @return task id, or {@link #AGGREGATE_ID}
+     */
+    public long getId() {
+        return id;
+    }
+
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * @return time spent in RUNNING state, summed over tasks for aggregate stats
+     */
+    public long getActiveMillis() {
+        return activeNanos / 1000000;
+    }
+
+    /**
+     * @return bytes received per second of RUNNING state
+     */
+    public double getAverageBps() {
+        return activeNanos > 0 ? total.bytes * 1e9 / activeNanos : 0;
+    }
+
+    /**
+     * @return numbers summed over all ranges and connections
+     */
+    public Metrics getTotal() {
+        return total;
+    }
+
+    /**
+     * @return numbers of every range of the task; empty for aggregate stats
+     */
+    public List<Metrics> getRanges() {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(id);
+        dest.writeInt(taskCount);
+        dest.writeLong(activeNanos);
+        total.writeToParcel(dest, flags);
+        dest.writeTypedList(ranges);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadStats{" +
+                "id=" + id +
+                ", taskCount=" + taskCount +
+                ", activeMillis=" + getActiveMillis() +
+                ", averageBps=" + (long) getAverageBps() +
+                ", total=" + total +
+                ", ranges=" + ranges +
+                '}';
+    }
+
+    /**
+     * Counters of one range, or the sum of several.
+     * Timings are summed in nanoseconds; use the average getters for per-event numbers.
+     */
+    public static class Metrics implements Parcelable {
+        public static final Creator<Metrics> CREATOR = new Creator<Metrics>() {
+            @Override
+            public Metrics createFromParcel(Parcel in) {
+                return new Metrics(in);
+            }
+
+            @Override
+            public Metrics[] newArray(int size) {
+                return new Metrics[size];
+            }
+        };
+
+        // range id, -1 for a sum
+        int tid = -1;
+        // received from network
+        long bytes;
+        int retryCount;
+        // received but thrown away: range reset by a non resumable reconnection, restart...
+        long wastedBytes;
+        int connectionCount;
+        int failedConnectCount;
+        int dnsCount;
+        long dnsNanos;
+        int connectCount;
+        long connectNanos;
+        int tlsCount;
+        long tlsNanos;
+        int ttfbCount;
+        long ttfbNanos;
+        // reader waiting for a free segment: disk is slower than network
+        long readerWaitNanos;
+        // writer waiting for a filled segment: network is slower than disk
+        long writerWaitNanos;
+        int diskWriteCount;
+        long diskWriteNanos;
+        long maxDiskWriteNanos;
+
+        Metrics() {
+        }
+
+        protected Metrics(Parcel in) {
+            tid = in.readInt();
+            bytes = in.readLong();
+            retryCount = in.readInt();
+            wastedBytes = in.readLong();
+            connectionCount = in.readInt();
+            failedConnectCount = in.readInt();
+            dnsCount = in.readInt();
+            dnsNanos = in.readLong();
+            connectCount = in.readInt();
+            connectNanos = in.readLong();
+            tlsCount = in.readInt();
+            tlsNanos = in.readLong();
+            ttfbCount = in.readInt();
+            ttfbNanos = in.readLong();
+            readerWaitNanos = in.readLong();
+            writerWaitNanos = in.readLong();
+            diskWriteCount = in.readInt();
+            diskWriteNanos = in.readLong();
+            maxDiskWriteNanos = in.readLong();
+        }
+
+        void add(Metrics other) {
+            bytes += other.bytes;
+            retryCount += other.retryCount;
+            wastedBytes += other.wastedBytes;
+            connectionCount += other.connectionCount;
+            failedConnectCount += other.failedConnectCount;
+            dnsCount += other.dnsCount;
+            dnsNanos += other.dnsNanos;
+            connectCount += other.connectCount;
+            connectNanos += other.connectNanos;
+            tlsCount += other.tlsCount;
+            tlsNanos += other.tlsNanos;
+            ttfbCount += other.ttfbCount;
+            ttfbNanos += other.ttfbNanos;
+            readerWaitNanos += other.readerWaitNanos;
+            writerWaitNanos += other.writerWaitNanos;
+            diskWriteCount += other.diskWriteCount;
+            diskWriteNanos += other.diskWriteNanos;
+            maxDiskWriteNanos = Math.max(maxDiskWriteNanos, other.maxDiskWriteNanos);
+        }
+
+        private static double averageMillis(long nanos, int count) {
+            return count > 0 ? nanos / 1e6 / count : 0;
+        }
+
+        /**
+         * @return range id, -1 for a sum
+         */
+        public int getTid() {
+            return tid;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        public long getWastedBytes() {
+            return wastedBytes;
+        }
+
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        public int getFailedConnectCount() {
+            return failedConnectCount;
+        }
+
+        public double getAverageDnsMillis() {
+            return averageMillis(dnsNanos, dnsCount);
+        }
+
+        /**
+         * @return TCP connect time, TLS excluded
+         */
+        public double getAverageConnectMillis() {
+            return averageMillis(connectNanos, connectCount);
+        }
+
+        public double getAverageTlsMillis() {
+            return averageMillis(tlsNanos, tlsCount);
+        }
+
+        /**
+         * @return time from request headers sent to response headers received
+         */
+        public double getAverageTtfbMillis() {
+            return averageMillis(ttfbNanos, ttfbCount);
+        }
+
+        public long getReaderWaitMillis() {
+            return readerWaitNanos / 1000000;
+        }
+
+        public long getWriterWaitMillis() {
+            return writerWaitNanos / 1000000;
+        }
+
+        public int getDiskWriteCount() {
+            return diskWriteCount;
+        }
+
+        public double getAverageDiskWriteMillis() {
+            return averageMillis(diskWriteNanos, diskWriteCount);
+        }
+
+        public double getMaxDiskWriteMillis() {
+            return maxDiskWriteNanos / 1e6;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(tid);
+            dest.writeLong(bytes);
+            dest.writeInt(retryCount);
+            dest.writeLong(wastedBytes);
+            dest.writeInt(connectionCount);
+            dest.writeInt(failedConnectCount);
+            dest.writeInt(dnsCount);
+            dest.writeLong(dnsNanos);
+            dest.writeInt(connectCount);
+            dest.writeLong(connectNanos);
+            dest.writeInt(tlsCount);
+            dest.writeLong(tlsNanos);
+            dest.writeInt(ttfbCount);
+            dest.writeLong(ttfbNanos);
+            dest.writeLong(readerWaitNanos);
+            dest.writeLong(writerWaitNanos);
+            dest.writeInt(diskWriteCount);
+            dest.writeLong(diskWriteNanos);
+            dest.writeLong(maxDiskWriteNanos);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{" +
+                    "tid=" + tid +
+                    ", bytes=" + bytes +
+                    ", retryCount=" + retryCount +
+                    ", wastedBytes=" + wastedBytes +
+                    ", connections=" + connectionCount +
+                    ", failedConnects=" + failedConnectCount +
+                    ", dns=" + getAverageDnsMillis() + "ms" +
+                    ", connect=" + getAverageConnectMillis() + "ms" +
+                    ", tls=" + getAverageTlsMillis() + "ms" +
+                    ", ttfb=" + getAverageTtfbMillis() + "ms" +
+                    ", readerWait=" + getReaderWaitMillis() + "ms" +
+                    ", writerWait=" + getWriterWaitMillis() + "ms" +
+                    ", diskWrites=" + diskWriteCount +
+                    ", diskWrite=" + getAverageDiskWriteMillis() + "ms" +
+                    ", maxDiskWrite=" + getMaxDiskWriteMillis() + "ms" +
+                    '}';
+        }
+    }
+}
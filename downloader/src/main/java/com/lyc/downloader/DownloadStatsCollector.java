@@ -0,0 +1,354 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.DownloadStats.Metrics;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects {@link DownloadStats} of every task. Counters are updated lock free by
+ * range threads and by OkHttp's {@link EventListener}, and copied on query.
+ */
+class DownloadStatsCollector {
+    /**
+     * Times the connection phases of calls whose request is tagged with a {@link RangeRecorder}.
+     */
+    static final EventListener.Factory EVENT_LISTENER_FACTORY = call -> {
+        RangeRecorder recorder = call.request().tag(RangeRecorder.class);
+        return recorder == null ? EventListener.NONE : new ConnectionListener(recorder);
+    };
+
+    // finished tasks whose last stats stay queryable
+    static final int MAX_FINISHED_STATS = 32;
+
+    // tasks not finished or removed yet
+    private final ConcurrentHashMap<Long, TaskRecorder> taskRecorders = new ConcurrentHashMap<>();
+    // stats of finished and removed tasks, kept for the aggregate view
+    private final Metrics retired = new Metrics();
+    private long retiredActiveNanos;
+    private int retiredTaskCount;
+    // guarded by retired, oldest first
+    private final LinkedHashMap<Long, DownloadStats> finishedStats = new LinkedHashMap<Long, DownloadStats>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, DownloadStats> eldest) {
+            return size() > MAX_FINISHED_STATS;
+        }
+    };
+
+    TaskRecorder taskRecorder(long id) {
+        TaskRecorder recorder = taskRecorders.get(id);
+        if (recorder == null) {
+            recorder = new TaskRecorder(id);
+            TaskRecorder old = taskRecorders.putIfAbsent(id, recorder);
+            if (old != null) {
+                recorder = old;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * The task finished: its recorder is folded into the aggregate and dropped, so that recorders do
+     * not pile up with the download history. Its last stats stay queryable while it is among the
+     * {@link #MAX_FINISHED_STATS} latest finished tasks.
+     */
+    void finish(long id) {
+        DownloadStats stats = retire(id);
+        if (stats != null) {
+            synchronized (retired) {
+                finishedStats.put(id, stats);
+            }
+        }
+    }
+
+    void remove(long id) {
+        retire(id);
+        synchronized (retired) {
+            finishedStats.remove(id);
+        }
+    }
+
+    private DownloadStats retire(long id) {
+        TaskRecorder recorder = taskRecorders.remove(id);
+        if (recorder == null) {
+            return null;
+        }
+        DownloadStats stats = recorder.snapshot();
+        synchronized (retired) {
+            retired.add(stats.getTotal());
+            retiredActiveNanos += recorder.activeNanos();
+            retiredTaskCount++;
+        }
+        return stats;
+    }
+
+    /**
+     * @return null if the task is unknown, or finished long ago
+     */
+    DownloadStats query(long id) {
+        TaskRecorder recorder = taskRecorders.get(id);
+        if (recorder != null) {
+            return recorder.snapshot();
+        }
+        synchronized (retired) {
+            return finishedStats.get(id);
+        }
+    }
+
+    /**
+     * @return sum of every task since the service started, finished and removed tasks included
+     */
+    DownloadStats queryAggregate() {
+        Metrics total = new Metrics();
+        long activeNanos;
+        int taskCount;
+        synchronized (retired) {
+            total.add(retired);
+            activeNanos = retiredActiveNanos;
+            taskCount = retiredTaskCount;
+        }
+        for (TaskRecorder recorder : taskRecorders.values()) {
+            total.add(recorder.snapshot().getTotal());
+            activeNanos += recorder.activeNanos();
+            taskCount++;
+        }
+        return new DownloadStats(DownloadStats.AGGREGATE_ID, taskCount, activeNanos, total, new ArrayList<>(0));
+    }
+
+    static class TaskRecorder {
+        final long id;
+        private final ConcurrentHashMap<Integer, RangeRecorder> rangeRecorders = new ConcurrentHashMap<>();
+        // the first request deciding filename and size
+        final RangeRecorder pivot = new RangeRecorder(-1);
+        private final AtomicLong activeNanos = new AtomicLong();
+        private final AtomicLong wastedBytes = new AtomicLong();
+        // start of current RUNNING period, 0 if not running
+        private volatile long runStartNanos;
+
+        TaskRecorder(long id) {
+            this.id = id;
+        }
+
+        RangeRecorder range(int tid) {
+            RangeRecorder recorder = rangeRecorders.get(tid);
+            if (recorder == null) {
+                recorder = new RangeRecorder(tid);
+                RangeRecorder old = rangeRecorders.putIfAbsent(tid, recorder);
+                if (old != null) {
+                    recorder = old;
+                }
+            }
+            return recorder;
+        }
+
+        void onRunStart() {
+            runStartNanos = System.nanoTime();
+        }
+
+        void onRunEnd() {
+            long start = runStartNanos;
+            if (start != 0) {
+                runStartNanos = 0;
+                activeNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Bytes thrown away as a whole, e.g. when the task restarts from 0.
+         */
+        void recordWasted(long bytes) {
+            if (bytes > 0) {
+                wastedBytes.addAndGet(bytes);
+            }
+        }
+
+        long activeNanos() {
+            long start = runStartNanos;
+            return activeNanos.get() + (start == 0 ? 0 : System.nanoTime() - start);
+        }
+
+        DownloadStats snapshot() {
+            Metrics total = pivot.snapshot();
+            total.tid = -1;
+            total.wastedBytes += wastedBytes.get();
+            List<Metrics> ranges = new ArrayList<>(rangeRecorders.size());
+            for (RangeRecorder recorder : rangeRecorders.values()) {
+                Metrics metrics = recorder.snapshot();
+                ranges.add(metrics);
+                total.add(metrics);
+            }
+            return new DownloadStats(id, 1, activeNanos(), total, ranges);
+        }
+    }
+
+    static class RangeRecorder {
+        private final int tid;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger retryCount = new AtomicInteger();
+        private final AtomicLong wastedBytes = new AtomicLong();
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final AtomicInteger failedConnectCount = new AtomicInteger();
+        private final AtomicInteger dnsCount = new AtomicInteger();
+        private final AtomicLong dnsNanos = new AtomicLong();
+        private final AtomicInteger connectCount = new AtomicInteger();
+        private final AtomicLong connectNanos = new AtomicLong();
+        private final AtomicInteger tlsCount = new AtomicInteger();
+        private final AtomicLong tlsNanos = new AtomicLong();
+        private final AtomicInteger ttfbCount = new AtomicInteger();
+        private final AtomicLong ttfbNanos = new AtomicLong();
+        private final AtomicLong readerWaitNanos = new AtomicLong();
+        private final AtomicLong writerWaitNanos = new AtomicLong();
+        private final AtomicInteger diskWriteCount = new AtomicInteger();
+        private final AtomicLong diskWriteNanos = new AtomicLong();
+        private final AtomicLong maxDiskWriteNanos = new AtomicLong();
+
+        RangeRecorder(int tid) {
+            this.tid = tid;
+        }
+
+        void recordBytes(long size) {
+            bytes.addAndGet(size);
+        }
+
+        void recordRetry() {
+            retryCount.incrementAndGet();
+        }
+
+        void recordWasted(long size) {
+            if (size > 0) {
+                wastedBytes.addAndGet(size);
+            }
+        }
+
+        void recordReaderWait(long nanos) {
+            readerWaitNanos.addAndGet(nanos);
+        }
+
+        void recordWriterWait(long nanos) {
+            writerWaitNanos.addAndGet(nanos);
+        }
+
+        void recordDiskWrite(long nanos) {
+            diskWriteCount.incrementAndGet();
+            diskWriteNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxDiskWriteNanos.get()) && !maxDiskWriteNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        Metrics snapshot() {
+            Metrics metrics = new Metrics();
+            metrics.tid = tid;
+            metrics.bytes = bytes.get();
+            metrics.retryCount = retryCount.get();
+            metrics.wastedBytes = wastedBytes.get();
+            metrics.connectionCount = connectionCount.get();
+            metrics.failedConnectCount = failedConnectCount.get();
+            metrics.dnsCount = dnsCount.get();
+            metrics.dnsNanos = dnsNanos.get();
+            metrics.connectCount = connectCount.get();
+            metrics.connectNanos = connectNanos.get();
+            metrics.tlsCount = tlsCount.get();
+            metrics.tlsNanos = tlsNanos.get();
+            metrics.ttfbCount = ttfbCount.get();
+            metrics.ttfbNanos = ttfbNanos.get();
+            metrics.readerWaitNanos = readerWaitNanos.get();
+            metrics.writerWaitNanos = writerWaitNanos.get();
+            metrics.diskWriteCount = diskWriteCount.get();
+            metrics.diskWriteNanos = diskWriteNanos.get();
+            metrics.maxDiskWriteNanos = maxDiskWriteNanos.get();
+            return metrics;
+        }
+    }
+
+    /**
+     * One per call, events of a call come in order.
+     */
+    private static class ConnectionListener extends EventListener {
+        private final RangeRecorder recorder;
+        private long dnsStartNanos;
+        private long connectStartNanos;
+        private long tlsStartNanos;
+        private long tlsNanos;
+        private long requestSentNanos;
+
+        ConnectionListener(RangeRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            recorder.dnsCount.incrementAndGet();
+            recorder.dnsNanos.addAndGet(System.nanoTime() - dnsStartNanos);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStartNanos = System.nanoTime();
+            tlsNanos = 0;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            tlsNanos = System.nanoTime() - tlsStartNanos;
+            recorder.tlsCount.incrementAndGet();
+            recorder.tlsNanos.addAndGet(tlsNanos);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            recorder.connectCount.incrementAndGet();
+            recorder.connectNanos.addAndGet(System.nanoTime() - connectStartNanos - tlsNanos);
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+            recorder.failedConnectCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            recorder.connectionCount.incrementAndGet();
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            requestSentNanos = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (requestSentNanos != 0) {
+                recorder.ttfbCount.incrementAndGet();
+                recorder.ttfbNanos.addAndGet(System.nanoTime() - requestSentNanos);
+                requestSentNanos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * What a list item shows of a task; query the full {@link com.lyc.downloader.db.DownloadInfo}
+ * by {@link YCDownloader#queryDownloadInfo(long)} when it is opened.
+ */
+public class DownloadSummary implements Parcelable {
+    public static final Creator<DownloadSummary> CREATOR = new Creator<DownloadSummary>() {
+        @Override
+        public DownloadSummary createFromParcel(Parcel in) {
+            return new DownloadSummary(in);
+        }
+
+        @Override
+        public DownloadSummary[] newArray(int size) {
+            return new DownloadSummary[size];
+        }
+    };
+
+    private final long id;
+    private final int state;
+    private final long downloadedSize;
+    private final long totalSize;
+    private final String filename;
+
+    DownloadSummary(long id, int state, long downloadedSize, long totalSize, String filename) {
+        this.id = id;
+        this.state = state;
+        this.downloadedSize = downloadedSize;
+        this.totalSize = totalSize;
+        this.filename = filename;
+    }
+
+    protected DownloadSummary(Parcel in) {
+        id = in.readLong();
+        state = in.readInt();
+        downloadedSize = in.readLong();
+        totalSize = in.readLong();
+        filename = in.readString();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @DownloadTask.DownloadState
+    public int getState() {
+        return state;
+    }
+
+    public long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return null if not decided yet
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(id);
+        dest.writeInt(state);
+        dest.writeLong(downloadedSize);
+        dest.writeLong(totalSize);
+        dest.writeString(filename);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadSummary{" +
+                "id=" + id +
+                ", state=" + state +
+                ", downloadedSize=" + downloadedSize +
+                ", totalSize=" + totalSize +
+                ", filename='" + filename + '\'' +
+                '}';
+    }
+}
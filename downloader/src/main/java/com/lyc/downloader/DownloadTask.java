@@ -1,9 +1,9 @@
 package com.lyc.downloader;
 
-import android.util.SparseArray;
-import android.webkit.MimeTypeMap;
 import androidx.annotation.IntDef;
 import androidx.annotation.WorkerThread;
+import com.lyc.downloader.DownloadStatsCollector.RangeRecorder;
+import com.lyc.downloader.DownloadStatsCollector.TaskRecorder;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.db.DownloadThreadInfo;
 import com.lyc.downloader.utils.DownloadStringUtil;
@@ -16,13 +16,20 @@ import okhttp3.Request.Builder;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,14 +38,11 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author liuyuchuan
@@ -63,20 +67,29 @@ public class DownloadTask {
     private static final int MAX_BUFFER = 1 << 16;
     private static final int MIN_BUFFER = 4 * (1 << 10);
 
+    // upper bound of a single coalesced disk write
+    private static final int MAX_WRITE_COALESCE = 1 << 18;
+
+    // bodies up to this size are read whole by the pivot request, see finishSmallFile()
+    private static final int SMALL_FILE_SIZE = 1 << 16;
+
     // TODO: 2019/4/26 design a suitable thread count choose algorithm...
     private static final int MAX_DOWNLOAD_THREAD = 4;
 
-    private static Lock fileLock = new ReentrantLock();
     // ATTENTION: SYNC OPERATE
     private volatile int state;
+    // reader threads only: interrupting a writer may close its FileChannel
     private final Set<Thread> threads = new HashSet<>();
     private final Lock stateLock = new ReentrantLock();
-    private final Lock runLock = new ReentrantLock();
+    // held from start() until the last range thread exits, not always by the same thread
+    private final Semaphore runPermit = new Semaphore(1);
     private final DownloadError downloadError = DownloadError.instance();
     private File downloadFile;
     private int downloadThreadCount = 4;
     private final OkHttpClient client;
     private Call pivotCall;
+    // whole body read by the pivot request, written by finishSmallFile()
+    private byte[] smallFileBody;
     private DownloadRunnable[] downloadRunnables;
     private WriteToDiskRunnable[] writeToDiskRunnables;
     /**
@@ -86,17 +99,43 @@ public class DownloadTask {
      */
     private int targetState;
     final DownloadInfo downloadInfo;
-    private final SparseArray<DownloadThreadInfo> downloadThreadInfos = new SparseArray<>();
-    private long bufferTimeout = 1;
+    // index is tid
+    private final List<DownloadThreadInfo> downloadThreadInfos = new ArrayList<>();
     private AtomicLong downloadSize = new AtomicLong(0);
     private Request baseRequest;
     private boolean resuming;
     private final AtomicInteger leftActiveThreadCount = new AtomicInteger();
     private CountDownLatch startDownloadLatch;
-    private Semaphore semaphore;
     private boolean restart = false;
-    static Pattern reduplicatedFilenamePattern = Pattern.compile("^(.*)\\(([1-9][0-9]*)\\)$");
     private volatile AtomicBoolean deleted = new AtomicBoolean(false);
+    private volatile DiskVolume diskVolume;
+    private volatile TaskRecorder stats;
+    // has bytes written since last commit of GroupCommitFlusher
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    // last progress update sent to the callback; only touched on the message thread
+    long progressSentNanos = Long.MIN_VALUE;
+    // keeps the sampled methods out of the public api of this class
+    private final ProgressSampler.Source progressSource = new ProgressSampler.Source() {
+        @Override
+        public long id() {
+            return DownloadTask.this.id();
+        }
+
+        @Override
+        public long downloadedSize() {
+            return DownloadTask.this.downloadedSize();
+        }
+
+        @Override
+        public long totalSize() {
+            return DownloadTask.this.totalSize();
+        }
+
+        @Override
+        public void persistProgress() {
+            DownloadTask.this.persistProgress();
+        }
+    };
     private static final String TAG = "DownloadTask";
     /**
      * also {@link DownloadListener}
@@ -120,6 +159,28 @@ public class DownloadTask {
         return state;
     }
 
+    DiskVolume diskVolume() {
+        DiskVolume diskVolume = this.diskVolume;
+        if (diskVolume == null) {
+            diskVolume = downloadManager.diskVolumeOf(downloadInfo.getPath());
+            this.diskVolume = diskVolume;
+        }
+        return diskVolume;
+    }
+
+    private TraceRecorder trace() {
+        return downloadManager.traceRecorder();
+    }
+
+    TaskRecorder stats() {
+        TaskRecorder stats = this.stats;
+        if (stats == null) {
+            stats = downloadManager.downloadStatsCollector().taskRecorder(downloadInfo.getId());
+            this.stats = stats;
+        }
+        return stats;
+    }
+
     private boolean buildBaseRequest() {
         Builder builder = new Builder();
         try {
@@ -145,7 +206,8 @@ public class DownloadTask {
             return null;
         }
 
-        Request pivotRequest = baseRequest.newBuilder().header("Range", "bytes=0-").build();
+        Request pivotRequest = baseRequest.newBuilder().header("Range", "bytes=0-")
+                .tag(RangeRecorder.class, stats().pivot).build();
         String lastModified;
         String filename;
         long totalSize;
@@ -155,7 +217,9 @@ public class DownloadTask {
 
         try {
             pivotCall = client.newCall(pivotRequest);
+            long connectStart = System.nanoTime();
             Response response = pivotCall.execute();
+            trace().span(TraceRecorder.CONNECT, id(), TraceRecorder.LANE_TASK, connectStart, response.isSuccessful() ? 1 : 0);
             ResponseBody body = response.body();
             if (body == null) {
                 reportError(DownloadError.ERROR_EMPTY_RESPONSE);
@@ -193,9 +257,9 @@ public class DownloadTask {
                 MediaType mediaType = body.contentType();
                 String extension;
                 if (mediaType != null) {
-                    extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mediaType.toString());
+                    extension = downloadManager.mimeTypeResolver().extensionFromMimeType(mediaType.toString());
                 } else {
-                    extension = MimeTypeMap.getFileExtensionFromUrl(response.request().url().toString());
+                    extension = downloadManager.mimeTypeResolver().extensionFromUrl(response.request().url().toString());
                 }
 
                 if (extension != null && !filename.endsWith(extension)) {
@@ -207,54 +271,28 @@ public class DownloadTask {
                 }
             }
 
-
-            File file = new File(parent, filename);
-            downloadFile = new File(parent, filename + Constants.TMP_FILE_SUFFIX);
-            int maxLength = 127 - Constants.TMP_FILE_SUFFIX.length();
-
-            try {
-                fileLock.lock();
-                if (file.exists() || downloadFile.exists()) {
-                    int index = filename.lastIndexOf(".");
-                    String name;
-                    String extendName;
-                    if (index != -1) {
-                        name = filename.substring(0, index);
-                        extendName = filename.substring(index);
-                    } else {
-                        name = filename;
-                        extendName = "";
-                    }
-
-                    int cnt = 1;
-                    Matcher matcher = reduplicatedFilenamePattern.matcher(filename);
-                    if (matcher.find() && matcher.groupCount() == 2) {
-                        name = matcher.group(1);
-                        cnt = Integer.parseInt(matcher.group(2));
-                    }
-
-                    StringBuilder sb = new StringBuilder();
-                    while (file.exists() || downloadFile.exists()) {
-                        sb.delete(0, sb.length());
-                        sb.append(name).append('(').append(cnt++).append(')').append(extendName);
-                        if (sb.length() > maxLength) {
-                            sb.delete(0, sb.length() - maxLength);
-                        }
-                        filename = sb.toString();
-                        Logger.w(TAG, "Task#" + downloadInfo.getId() + ": " + "file " + file.getName() +
-                                " exists, " + " try " + filename);
-                        file = new File(parent, filename);
-                        downloadFile = new File(parent, sb.append(Constants.TMP_FILE_SUFFIX).toString());
-                    }
-                }
-                if (!preAllocation()) {
-                    reportError(DownloadError.ERROR_SPACE_FULL);
+            is = body.byteStream();
+            if (totalSize <= SMALL_FILE_SIZE) {
+                // also when the size is unknown: the body may turn out small
+                byte[] head;
+                try {
+                    head = readHead(is, totalSize);
+                } catch (IOException e) {
+                    reportError(DownloadError.ERROR_NETWORK);
                     return null;
                 }
-                is = body.byteStream();
-            } finally {
-                fileLock.unlock();
+                if (head.length <= SMALL_FILE_SIZE) {
+                    body.close();
+                    smallFileBody = head;
+                    totalSize = head.length;
+                } else {
+                    is = new SequenceInputStream(new ByteArrayInputStream(head), is);
+                }
             }
+
+            // only decides the name; files are created out of any shared lock
+            filename = downloadManager.filenameReservations().reserve(parent, filename, downloadInfo.getId());
+            downloadFile = new File(parent, filename + Constants.TMP_FILE_SUFFIX);
         } catch (IOException e) {
             try {
                 stateLock.lock();
@@ -271,12 +309,22 @@ public class DownloadTask {
             downloadInfo.setFilename(filename);
         }
         downloadInfo.setTotalSize(totalSize);
+        if (smallFileBody != null) {
+            // persisted once, when finished
+            downloadInfo.setLastModified(lastModified);
+            downloadManager.onDownloadUpdateInfo(downloadInfo);
+            return is;
+        }
+        boolean allocated = preAllocation();
+        FilenameReservations filenameReservations = downloadManager.filenameReservations();
+        if (!allocated) {
+            filenameReservations.release(parent, filename);
+            reportError(DownloadError.ERROR_SPACE_FULL);
+            return null;
+        }
+        filenameReservations.onCreated(parent, filename, downloadInfo.getId());
         downloadInfo.setLastModified(lastModified);
-        PersistUtil.persistDownloadInfoQuietly(
-                downloadManager.daoSession,
-                downloadInfo,
-                null
-        );
+        persist(null);
         downloadManager.onDownloadUpdateInfo(downloadInfo);
         if (totalSize <= 0 || !resumable) {
             downloadThreadCount = 1;
@@ -284,42 +332,47 @@ public class DownloadTask {
         return is;
     }
 
+    /**
+     * @return the whole body if it has at most {@link #SMALL_FILE_SIZE} bytes,
+     * otherwise its first {@code SMALL_FILE_SIZE + 1} bytes
+     */
+    private static byte[] readHead(InputStream is, long totalSize) throws IOException {
+        byte[] head = new byte[totalSize >= 0 ? (int) totalSize : SMALL_FILE_SIZE + 1];
+        int len = 0, read;
+        while (len < head.length && (read = is.read(head, len, head.length - len)) != -1) {
+            len += read;
+        }
+        if (len == head.length) {
+            return head;
+        }
+        if (totalSize >= 0) {
+            throw new EOFException("expect " + totalSize + " bytes but read " + len);
+        }
+        return Arrays.copyOf(head, len);
+    }
+
     // resume or start
     boolean start() {
         try {
             stateLock.lock();
-            if (runLock.tryLock()) {
+            if (runPermit.tryAcquire()) {
                 try {
                     if (restart) {
                         if (state != RUNNING && state != STOPPING && state != CANCELED) {
                             this.state = PENDING;
                             stateChange();
-                            DownloadExecutors.io.execute(() -> {
-                                try {
-                                    runLock.lock();
-                                    this.execute();
-                                } finally {
-                                    runLock.unlock();
-                                }
-                            });
+                            DownloadExecutors.io.execute(this::run);
                             return true;
                         }
                     } else if (state != RUNNING && state != STOPPING && state != CANCELED && state != FINISH) {
                         state = PENDING;
                         stateChange();
-                        DownloadExecutors.io.execute(() -> {
-                            try {
-                                runLock.lock();
-                                this.execute();
-                            } finally {
-                                runLock.unlock();
-                            }
-                        });
+                        DownloadExecutors.io.execute(this::run);
                         return true;
                     }
 
                 } finally {
-                    runLock.unlock();
+                    runPermit.release();
                 }
             }
             return false;
@@ -328,8 +381,24 @@ public class DownloadTask {
         }
     }
 
+    private void run() {
+        runPermit.acquireUninterruptibly();
+        boolean rangesStarted = false;
+        try {
+            rangesStarted = execute();
+        } finally {
+            // otherwise released by the last range thread
+            if (!rangesStarted) {
+                runPermit.release();
+            }
+        }
+    }
+
+    /**
+     * @return true if range threads have been started; they end this run by {@link #finishRun()}
+     */
     @WorkerThread
-    private void execute() {
+    private boolean execute() {
         Logger.d(TAG, "execute: " + downloadInfo.getUrl());
 
         try {
@@ -339,7 +408,7 @@ public class DownloadTask {
                 stateChange();
                 downloadManager.onDownloadConnecting(downloadInfo.getId());
             } else if (state == WAITING || handleStopping()) {
-                return;
+                return false;
             } else {
                 Logger.e(TAG, "try to preparing but get a wrong state, " +
                         "state = " + state + "; task is:\n" + downloadInfo);
@@ -351,11 +420,20 @@ public class DownloadTask {
         // 如果是从暂停或者错误中恢复，不需要再重试
         if ((!resuming || writeToDiskRunnables == null || downloadRunnables == null) && !initDownloadInfo()) {
             handleStopping();
-            return;
+            return false;
         }
         resuming = false;
 
-        semaphore = new Semaphore(-1);
+        if (smallFileBody != null) {
+            finishSmallFile();
+            return false;
+        }
+
+        for (int i = 0; i < downloadRunnables.length; i++) {
+            downloadRunnables[i].downloadBuffer.reset();
+            // a reader may be ahead of its writer if a write failed; read again what is not in the file
+            downloadRunnables[i].threadDownloadedSize = writeToDiskRunnables[i].writtenSize;
+        }
 
         Set<Integer> needRequestId = new HashSet<>();
         for (int i = 0; i < downloadRunnables.length; i++) {
@@ -388,18 +466,20 @@ public class DownloadTask {
             stateLock.lock();
             if (state != CONNECTING) {
                 handleStopping();
-                return;
+                return false;
             }
             state = RUNNING;
             stateChange();
             downloadManager.onDownloadStart(downloadInfo);
+            downloadManager.progressSampler().add(progressSource);
+            stats().onRunStart();
             needRequestId.clear();
 
             startDownloadLatch = new CountDownLatch(1);
             for (DownloadRunnable downloadRunnable : downloadRunnables) {
                 if (downloadRunnable.threadDownloadedSize < downloadRunnable.contentLen || downloadRunnable.contentLen < 0) {
                     needRequestId.add(downloadRunnable.id);
-                    Thread t = new Thread(downloadRunnable, "Task#" + downloadInfo.getId() + "-Download-" + downloadRunnable.id);
+                    Thread t = DownloadExecutors.threads.newThread(downloadRunnable, "Task#" + downloadInfo.getId() + "-Download-" + downloadRunnable.id);
                     threads.add(t);
                     t.start();
                 }
@@ -407,8 +487,7 @@ public class DownloadTask {
 
 
             for (Integer id : needRequestId) {
-                Thread t = new Thread(writeToDiskRunnables[id], "Task#" + downloadInfo.getId() + "-Write-" + id);
-                threads.add(t);
+                Thread t = DownloadExecutors.threads.newThread(writeToDiskRunnables[id], "Task#" + downloadInfo.getId() + "-Write-" + id);
                 t.start();
             }
         } finally {
@@ -418,12 +497,28 @@ public class DownloadTask {
 
         leftActiveThreadCount.set(needRequestId.size() * 2);
         startDownloadLatch.countDown();
+        if (needRequestId.isEmpty()) {
+            // every range has been downloaded
+            finishRun();
+        }
+        return true;
+    }
 
-        new ProgressWatcher().run();
-
+    /**
+     * Called by the last range thread to exit: rename the file if everything is downloaded,
+     * or complete the stop, then allow the next run.
+     */
+    private void finishRun() {
+        downloadManager.progressSampler().remove(progressSource);
+        stats().onRunEnd();
         try {
             stateLock.lock();
+            if (!deleted.get()) {
+                updateThreadInfos();
+                persist(downloadThreadInfos);
+            }
             if (!deleted.get() && (state == RUNNING || downloadSize.get() == downloadInfo.getTotalSize())) {
+                Lock fileLock = downloadManager.filenameReservations().lockOf(downloadFile.getParentFile());
                 try {
                     fileLock.lock();
                     File targetFile = new File(downloadInfo.getPath(), downloadInfo.getFilename());
@@ -449,6 +544,94 @@ public class DownloadTask {
                 Logger.e(TAG, "Task#" + downloadInfo.getId() + " has a wrong state: " + state +
                         "; task is\n" + downloadInfo);
             }
+        } finally {
+            stateLock.unlock();
+            runPermit.release();
+        }
+    }
+
+    /**
+     * Writes the body read by the pivot request to the tmp file on the current thread and renames it,
+     * with the states and callbacks of a ranged download but no range rows, buffers, threads or
+     * progress sampling; the task is persisted once, with its final state.
+     */
+    @WorkerThread
+    private void finishSmallFile() {
+        byte[] body = smallFileBody;
+        smallFileBody = null;
+        try {
+            stateLock.lock();
+            if (deleted.get() || state != CONNECTING) {
+                handleStopping();
+                return;
+            }
+            state = RUNNING;
+            // recovered as CONNECTING is, so not persisted
+            stateChange(false);
+            downloadManager.onDownloadStart(downloadInfo);
+        } finally {
+            stateLock.unlock();
+        }
+
+        File parent = downloadFile.getParentFile();
+        String filename = downloadInfo.getFilename();
+        FilenameReservations filenameReservations = downloadManager.filenameReservations();
+        stats().onRunStart();
+        try (FileOutputStream out = new FileOutputStream(downloadFile)) {
+            out.write(body);
+            if (downloadManager.groupCommitFlusher().forceOnClose() && !deleted.get()) {
+                long start = System.nanoTime();
+                try {
+                    out.getFD().sync();
+                } finally {
+                    diskVolume().recordForce(System.nanoTime() - start);
+                }
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot write " + downloadFile.getAbsolutePath(), e);
+            if (downloadFile.exists() && !downloadFile.delete()) {
+                Logger.e(TAG, "cannot delete " + downloadFile.getAbsolutePath());
+            }
+            filenameReservations.release(parent, filename);
+            reportError(DownloadError.ERROR_WRITE_FILE);
+            handleStopping();
+            return;
+        } finally {
+            stats().onRunEnd();
+        }
+        stats().pivot.recordBytes(body.length);
+        downloadSize.set(body.length);
+        filenameReservations.onCreated(parent, filename, downloadInfo.getId());
+
+        try {
+            stateLock.lock();
+            // paused, canceled or deleted while writing: nothing to resume from
+            if (deleted.get() || state != RUNNING) {
+                if (downloadFile.exists() && !downloadFile.delete()) {
+                    Logger.e(TAG, "cannot delete " + downloadFile.getAbsolutePath());
+                }
+                filenameReservations.release(parent, filename);
+                handleStopping();
+                return;
+            }
+            Lock fileLock = filenameReservations.lockOf(parent);
+            try {
+                fileLock.lock();
+                File targetFile = new File(parent, filename);
+                if (!downloadFile.renameTo(targetFile) && !(targetFile.delete() && downloadFile.renameTo(targetFile))) {
+                    reportError(DownloadError.ERROR_WRITE_FILE);
+                    Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot rename file "
+                            + downloadFile.getAbsolutePath() + " to " + targetFile.getAbsolutePath());
+                    return;
+                }
+            } finally {
+                fileLock.unlock();
+            }
+            downloadInfo.setDownloadedSize(body.length);
+            state = FINISH;
+            downloadInfo.setFinishedTime(new Date());
+            stateChange();
+            downloadManager.onDownloadFinished(downloadInfo);
         } finally {
             stateLock.unlock();
         }
@@ -480,14 +663,14 @@ public class DownloadTask {
                     state = CANCELED;
                     stateChange();
                     downloadManager.onDownloadCanceled(downloadInfo.getId());
-                    try {
-                        fileLock.lock();
-                        if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
+                    if (downloadFile != null) {
+                        File parent = downloadFile.getParentFile();
+                        if (downloadFile.exists() && !downloadFile.delete()) {
                             Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot deleted download tmp file "
                                     + downloadFile.getAbsolutePath() + " when canceled.");
+                        } else {
+                            downloadManager.filenameReservations().release(parent, downloadInfo.getFilename());
                         }
-                    } finally {
-                        fileLock.unlock();
                     }
                     return true;
             }
@@ -509,18 +692,33 @@ public class DownloadTask {
 
     @WorkerThread
     private void stateChange() {
+        stateChange(true);
+    }
+
+    @WorkerThread
+    private void stateChange(boolean persist) {
         if (downloadInfo != null && downloadInfo.getDownloadItemState() != state) {
             downloadInfo.setDownloadItemState(state);
+            trace().instant(TraceRecorder.STATE, id(), TraceRecorder.LANE_TASK, state);
             if (!deleted.get()) {
-                PersistUtil.persistDownloadInfoQuietly(
-                        downloadManager.daoSession,
-                        downloadInfo,
-                        null
-                );
+                downloadManager.onTaskChanged(downloadInfo);
+                if (persist) {
+                    persist(null);
+                }
             }
         }
     }
 
+    private void persist(List<DownloadThreadInfo> downloadThreadInfos) {
+        long start = System.nanoTime();
+        try {
+            downloadManager.store().persist(downloadInfo, downloadThreadInfos);
+        } catch (Exception e) {
+            Logger.e(TAG, "cannot persist downloadInfo", e);
+        }
+        trace().span(TraceRecorder.PERSIST, id(), TraceRecorder.LANE_TASK, start, 0);
+    }
+
     // return if state is waiting
     boolean toWait(boolean restart) {
         try {
@@ -528,7 +726,7 @@ public class DownloadTask {
             if (state == WAITING) {
                 return true;
             }
-            if (runLock.tryLock()) {
+            if (runPermit.tryAcquire()) {
                 try {
                     if (state == PENDING || state == PAUSED || state == ERROR
                             || state == FATAL_ERROR || (state == FINISH && restart)) {
@@ -538,9 +736,10 @@ public class DownloadTask {
                             resuming = false;
                             // restart time
                             downloadInfo.getCreatedTime().setTime(System.currentTimeMillis());
+                            stats().recordWasted(downloadInfo.getDownloadedSize());
                             downloadInfo.setDownloadedSize(0);
                             DownloadExecutors.io.execute(() -> {
-                                PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>(0));
+                                persist(Collections.emptyList());
                                 PersistUtil.deleteFile(downloadInfo, true);
                                 stateChange();
                             });
@@ -549,7 +748,7 @@ public class DownloadTask {
                         }
                     }
                 } finally {
-                    runLock.unlock();
+                    runPermit.release();
                 }
 
                 return true;
@@ -579,12 +778,15 @@ public class DownloadTask {
             if (!restart) {
                 List<DownloadThreadInfo> downloadThreadInfoList = downloadInfo.getDownloadThreadInfos();
                 if (!downloadThreadInfoList.isEmpty()) {
-                    for (DownloadThreadInfo downloadThreadInfo : downloadThreadInfoList) {
-                        downloadThreadInfos.put(downloadThreadInfo.getTid(), downloadThreadInfo);
-                    }
+                    downloadThreadInfos.addAll(downloadThreadInfoList);
+                    Collections.sort(downloadThreadInfos, (o1, o2) -> Integer.compare(o1.getTid(), o2.getTid()));
                     long tmp = 0;
                     for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
-                        DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.valueAt(i);
+                        DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(i);
+                        if (downloadThreadInfo.getTid() != i) {
+                            // will be caught...
+                            throw new IllegalStateException("tids of downloadThreadList are not 0.." + (s - 1));
+                        }
                         if (downloadThreadInfo.getTotalSize() != -1) {
                             tmp += downloadThreadInfo.getDownloadedSize();
                         } else {
@@ -630,17 +832,26 @@ public class DownloadTask {
             if (is == null) {
                 return false;
             }
+            if (smallFileBody != null) {
+                return true;
+            }
 
             long totalSize = downloadInfo.getTotalSize();
             if (totalSize == -1 || !downloadInfo.getResumable()) {
                 // cannot resume
                 // downloadTreadCount == 1
-                downloadThreadInfos.put(0, new DownloadThreadInfo(
+                downloadThreadInfos.add(new DownloadThreadInfo(
                         null, 0, 0,
                         0, -1, downloadInfo.getId()
                 ));
             } else {
-                long downloadLen = totalSize / downloadThreadCount;
+                // keep every range boundary on a filesystem block
+                long blockSize = downloadManager.blockSize();
+                downloadThreadCount = (int) Math.max(1, Math.min(downloadThreadCount, totalSize / blockSize));
+                long downloadLen = totalSize / downloadThreadCount / blockSize * blockSize;
+                if (downloadLen <= 0) {
+                    downloadLen = totalSize;
+                }
                 long lenSum = 0, last;
                 for (int i = 0; i < downloadThreadCount; i++) {
                     last = lenSum;
@@ -649,7 +860,7 @@ public class DownloadTask {
                     } else {
                         lenSum = lenSum + downloadLen;
                     }
-                    downloadThreadInfos.put(i, new DownloadThreadInfo(
+                    downloadThreadInfos.add(new DownloadThreadInfo(
                             null, i, i * downloadLen,
                             0, lenSum - last, downloadInfo.getId()));
                 }
@@ -670,12 +881,13 @@ public class DownloadTask {
             writeToDiskRunnables[i] = new WriteToDiskRunnable(
                     downloadThreadInfo.getStartPosition(),
                     downloadThreadInfo.getTotalSize(),
+                    downloadThreadInfo.getDownloadedSize(),
                     downloadThreadInfo.getTid(),
                     downloadBuffer);
         }
         downloadRunnables[0].inputStream = is;
         if (!deleted.get()) {
-            PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, downloadThreadInfos);
+            persist(downloadThreadInfos);
         }
         return true;
     }
@@ -692,9 +904,6 @@ public class DownloadTask {
         } else if (bufferSize > MAX_BUFFER) {
             bufferSize = MAX_BUFFER;
         }
-
-        System.out.println("buffer size = " + bufferSize + "B");
-
         return (int) bufferSize;
     }
 
@@ -708,6 +917,7 @@ public class DownloadTask {
             if (downloadRunnables != null) {
                 for (DownloadRunnable downloadRunnable : downloadRunnables) {
                     downloadRunnable.cancelRequest();
+                    downloadRunnable.downloadBuffer.stop();
                 }
             }
 
@@ -725,54 +935,127 @@ public class DownloadTask {
         }
     }
 
-    void pause() {
+    /**
+     * @return false if the state of the task does not change: already paused, canceled or finished,
+     * or stopping for another reason
+     */
+    boolean pause() {
         try {
             stateLock.lock();
-            if (runLock.tryLock()) {
+            if (runPermit.tryAcquire()) {
                 try {
-                    if (state == PAUSED || state == CANCELED) {
-                        return;
+                    if (state == PAUSED || state == CANCELED || state == FINISH) {
+                        return false;
                     }
                     state = PAUSED;
                     stateChange();
                     downloadManager.onDownloadPaused(downloadInfo.getId());
+                    return true;
                 } finally {
-                    runLock.unlock();
+                    runPermit.release();
                 }
             } else {
                 if (state != RUNNING && state != CONNECTING) {
-                    return;
+                    return false;
                 }
                 state = STOPPING;
                 targetState = PAUSED;
                 stateChange();
                 interruptBlocking();
                 downloadManager.onDownloadStopping(downloadInfo.getId());
+                return true;
             }
         } finally {
             stateLock.unlock();
         }
     }
 
-    void cancel() {
+    /**
+     * @return false if the task is already canceled
+     */
+    boolean cancel() {
         try {
             stateLock.lock();
-            if (state != CANCELED) {
-                targetState = CANCELED;
-                state = STOPPING;
-                interruptBlocking();
-                stateChange();
-                downloadManager.onDownloadStopping(downloadInfo.getId());
+            if (state == CANCELED) {
+                return false;
             }
+            targetState = CANCELED;
+            state = STOPPING;
+            interruptBlocking();
+            stateChange();
+            downloadManager.onDownloadStopping(downloadInfo.getId());
+            return true;
         } finally {
             stateLock.unlock();
         }
     }
 
-    // this download task will be removed
-    void delete(boolean deleteFile) {
+    /**
+     * Finishes a task that followed another task of the same url, with a link to or a copy of the
+     * file that one downloaded, instead of downloading it again.
+     *
+     * @return false if the task no longer waits for it, or the file cannot be copied
+     */
+    @WorkerThread
+    boolean finishFrom(DownloadInfo leaderInfo) {
+        if (deleted.get() || state != WAITING) {
+            return false;
+        }
+        File parent = new File(downloadInfo.getPath());
+        String filename = downloadInfo.getFilename() != null ? downloadInfo.getFilename() : leaderInfo.getFilename();
+        FilenameReservations filenameReservations = downloadManager.filenameReservations();
+        filename = filenameReservations.reserve(parent, filename, downloadInfo.getId());
+        File targetFile = new File(parent, filename);
+        try {
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("cannot create directory " + parent.getAbsolutePath());
+            }
+            PersistUtil.linkOrCopy(new File(leaderInfo.getPath(), leaderInfo.getFilename()), targetFile);
+        } catch (IOException e) {
+            Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot copy the file of task#" + leaderInfo.getId(), e);
+            filenameReservations.release(parent, filename);
+            return false;
+        }
+        filenameReservations.onCreated(parent, filename, downloadInfo.getId());
+
+        try {
+            stateLock.lock();
+            // paused, canceled or deleted while copying
+            if (deleted.get() || state != WAITING) {
+                if (!targetFile.delete()) {
+                    Logger.e(TAG, "cannot delete " + targetFile.getAbsolutePath());
+                }
+                filenameReservations.release(parent, filename);
+                return false;
+            }
+            boolean renamed = !filename.equals(downloadInfo.getFilename());
+            downloadInfo.setFilename(filename);
+            downloadInfo.setResumable(leaderInfo.getResumable());
+            downloadInfo.setLastModified(leaderInfo.getLastModified());
+            downloadInfo.setTotalSize(leaderInfo.getTotalSize());
+            downloadInfo.setDownloadedSize(leaderInfo.getTotalSize());
+            if (renamed) {
+                downloadManager.onDownloadUpdateInfo(downloadInfo);
+            }
+            state = FINISH;
+            downloadInfo.setFinishedTime(new Date());
+            stateChange();
+            downloadManager.onDownloadFinished(downloadInfo);
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the task for good and deletes its files, but not its record: the caller deletes that
+     * on io, with the records of other tasks deleted at the same time.
+     *
+     * @return false if the task is already deleted
+     */
+    boolean deleteWithoutRecord(boolean deleteFile) {
         if (!deleted.compareAndSet(false, true)) {
-            return;
+            return false;
         }
         try {
             interruptBlocking();
@@ -780,8 +1063,12 @@ public class DownloadTask {
             Logger.e("DownloadTask", "error when stop task#" + downloadInfo.getId(), e);
         } finally {
             PersistUtil.deleteFile(downloadInfo, deleteFile);
-            PersistUtil.deleteDownloadInfo(downloadManager.daoSession, downloadInfo);
+            downloadManager.downloadStatsCollector().remove(downloadInfo.getId());
+            if (downloadInfo.getPath() != null && downloadInfo.getFilename() != null) {
+                downloadManager.filenameReservations().release(new File(downloadInfo.getPath()), downloadInfo.getFilename());
+            }
         }
+        return true;
     }
 
     private void reportError(int code) {
@@ -800,10 +1087,11 @@ public class DownloadTask {
             downloadInfo.setErrorCode(code);
             if (fatal) {
                 state = FATAL_ERROR;
+                stats().recordWasted(downloadSize.get());
                 if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
                     Logger.e(TAG, "cannot deleted " + downloadFile.getAbsolutePath() + " when fatal error");
                 }
-                PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>());
+                persist(Collections.emptyList());
             } else {
                 state = ERROR;
                 preparedForResuming();
@@ -858,23 +1146,92 @@ public class DownloadTask {
     public @interface DownloadState {
     }
 
-    private boolean checkEnd() {
+    boolean markDirty() {
+        return dirty.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by {@link GroupCommitFlusher}.
+     * Force the bytes written so far and, if checkpoint is true, persist a progress
+     * checkpoint that only covers the forced bytes.
+     */
+    void commit(boolean checkpoint) {
+        dirty.set(false);
+        WriteToDiskRunnable[] writeToDiskRunnables = this.writeToDiskRunnables;
+        if (writeToDiskRunnables == null || deleted.get()) {
+            return;
+        }
+        long[] durableSizes = new long[writeToDiskRunnables.length];
+        for (int i = 0; i < writeToDiskRunnables.length; i++) {
+            durableSizes[i] = writeToDiskRunnables[i].sync();
+        }
+        if (!checkpoint) {
+            return;
+        }
         try {
             stateLock.lock();
-            boolean result = leftActiveThreadCount.get() <= 0 || state != RUNNING;
-            if (result && !deleted.get()) {
-                PersistUtil.persistDownloadInfoQuietly(
-                        downloadManager.daoSession,
-                        downloadInfo,
-                        downloadThreadInfos
-                );
-            }
-            return result;
+            if (state != RUNNING || deleted.get() || writeToDiskRunnables != this.writeToDiskRunnables) {
+                return;
+            }
+            long total = 0;
+            for (int i = 0; i < writeToDiskRunnables.length; i++) {
+                DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(writeToDiskRunnables[i].id);
+                if (durableSizes[i] > downloadThreadInfo.getDownloadedSize()) {
+                    downloadThreadInfo.setDownloadedSize(durableSizes[i]);
+                }
+                total += downloadThreadInfo.getDownloadedSize();
+            }
+            downloadInfo.setDownloadedSize(total);
+            persist(downloadThreadInfos);
         } finally {
             stateLock.unlock();
         }
     }
 
+    /**
+     * Copy the sizes reached by writers into {@link #downloadThreadInfos},
+     * without any guarantee that they are on disk.
+     */
+    private void updateThreadInfos() {
+        WriteToDiskRunnable[] writeToDiskRunnables = this.writeToDiskRunnables;
+        if (writeToDiskRunnables == null) {
+            return;
+        }
+        for (WriteToDiskRunnable writeToDiskRunnable : writeToDiskRunnables) {
+            writeToDiskRunnable.updateThreadInfo();
+        }
+    }
+
+    /**
+     * Called by {@link ProgressSampler} when checkpoints are not left to {@link GroupCommitFlusher}.
+     */
+    void persistProgress() {
+        try {
+            stateLock.lock();
+            // like commit(true): a task deleted, stopped or finished since the sample keeps its own record
+            if (state != RUNNING || deleted.get()) {
+                return;
+            }
+            updateThreadInfos();
+            downloadInfo.setDownloadedSize(downloadSize.get());
+            persist(downloadThreadInfos);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    long id() {
+        return downloadInfo.getId();
+    }
+
+    long downloadedSize() {
+        return downloadSize.get();
+    }
+
+    long totalSize() {
+        return downloadInfo.getTotalSize();
+    }
+
     private class DownloadRunnable implements Runnable {
         private long startPos;
         private long contentLen;
@@ -886,7 +1243,9 @@ public class DownloadTask {
          * @see DownloadThreadInfo#getTid()
          */
         private final int id;
+        private final RangeRecorder recorder;
         private InputStream inputStream;
+        private boolean awaitingFirstByte = true;
 
         DownloadRunnable(long startPos, long threadDownloadedSize, long contentLen, DownloadBuffer downloadBuffer, int id) {
             this.startPos = startPos;
@@ -894,6 +1253,7 @@ public class DownloadTask {
             this.contentLen = contentLen;
             this.downloadBuffer = downloadBuffer;
             this.id = id;
+            this.recorder = stats().range(id);
         }
 
         private void cancelRequest() {
@@ -918,9 +1278,12 @@ public class DownloadTask {
                     }
                 }
                 innerRun();
+                trace().instant(TraceRecorder.RANGE_END, id(), TraceRecorder.readerLane(id), threadDownloadedSize);
             } finally {
-                leftActiveThreadCount.decrementAndGet();
                 closeInputStream();
+                if (leftActiveThreadCount.decrementAndGet() == 0) {
+                    finishRun();
+                }
             }
         }
 
@@ -960,15 +1323,18 @@ public class DownloadTask {
                     request = builder.build();
                 } else {
                     startPos = 0;
+                    recorder.recordWasted(threadDownloadedSize);
                     threadDownloadedSize = 0;
                     downloadSize.set(0);
                     request = baseRequest;
                 }
+                request = request.newBuilder().tag(RangeRecorder.class, recorder).build();
 
                 boolean success = false;
                 int retryCount = this.retryCount;
                 ResponseBody body = null;
                 do {
+                    long connectStart = System.nanoTime();
                     try {
                         try {
                             stateLock.lock();
@@ -982,9 +1348,13 @@ public class DownloadTask {
                             stateLock.unlock();
                         }
                         Response response = call.execute();
+                        trace().span(TraceRecorder.CONNECT, id(), TraceRecorder.readerLane(id),
+                                connectStart, response.isSuccessful() ? 1 : 0);
 
-                        if (!response.isSuccessful() || ((body = response.body()) == null))
+                        if (!response.isSuccessful() || ((body = response.body()) == null)) {
+                            recorder.recordRetry();
                             continue;
+                        }
                         MediaType mediaType = body.contentType();
                         boolean checkPart = mediaType == null;
                         if (mediaType != null) {
@@ -998,16 +1368,21 @@ public class DownloadTask {
                         }
                         retryCount = 0;
                         success = true;
+                        awaitingFirstByte = true;
                     } catch (IOException e) {
+                        trace().span(TraceRecorder.CONNECT, id(), TraceRecorder.readerLane(id), connectStart, 0);
                         try {
                             stateLock.lock();
-                            if (deleted.get() || (state == RUNNING || state == CONNECTING)) {
+                            if (deleted.get() || (state != RUNNING && state != CONNECTING)) {
                                 return;
                             }
                         } finally {
                             stateLock.unlock();
                         }
-                        Logger.e("DownloadTask", "Connect error! retry=" + retryCount, e);
+                        recorder.recordRetry();
+                        if (Logger.isEnabled()) {
+                            Logger.e(TAG, "Connect error! retry=" + retryCount, e);
+                        }
                     }
                 } while (retryCount-- > 0 && !deleted.get() && (state == RUNNING || state == CONNECTING));
 
@@ -1016,6 +1391,8 @@ public class DownloadTask {
                     return;
                 }
 
+                // the stream a retry replaces
+                closeInputStream();
                 inputStream = Objects.requireNonNull(body).byteStream();
             }
 
@@ -1028,14 +1405,14 @@ public class DownloadTask {
             Segment segment;
             while (state == RUNNING && !deleted.get()) {
                 try {
-                    segment = downloadBuffer.availableWriteSegment(bufferTimeout);
+                    segment = SegmentPipeline.awaitFree(downloadBuffer, recorder, trace(), id(), id);
                 } catch (InterruptedException e) {
                     continue;
                 }
 
-                // timeout
+                // stopped
                 if (segment == null) {
-                    continue;
+                    break;
                 }
 
                 //-----------------------segment must return to buffer!--------------------------//
@@ -1052,7 +1429,7 @@ public class DownloadTask {
 
                         if (left > 0) {
                             long start = System.nanoTime();
-                            readSize = is.read(segment.buffer, 0, Math.min(segment.buffer.length, (int) left));
+                            readSize = SegmentPipeline.read(is, segment, left);
 
                             long targetBps = downloadManager.singleTaskSpeedLimit();
                             if (targetBps > 0) {
@@ -1067,14 +1444,16 @@ public class DownloadTask {
                             }
                         }
                     }
-                    segment.startPos = startPos + threadDownloadedSize;
-                    segment.tid = this.id;
-                    segment.readSize = readSize;
+                    SegmentPipeline.publish(downloadBuffer, recorder, segment,
+                            startPos + threadDownloadedSize, this.id, readSize);
+                    enqueueBuffer = true;
                     if (readSize > 0) {
-                        threadDownloadedSize += segment.readSize;
+                        threadDownloadedSize += readSize;
+                        if (awaitingFirstByte) {
+                            awaitingFirstByte = false;
+                            trace().instant(TraceRecorder.FIRST_BYTE, id(), TraceRecorder.readerLane(id), 0);
+                        }
                     }
-                    downloadBuffer.enqueueReadSegment(segment);
-                    enqueueBuffer = true;
                 } catch (IOException e) {
                     try {
                         stateLock.lock();
@@ -1085,11 +1464,14 @@ public class DownloadTask {
                             }
                             continue;
                         } else if (state == RUNNING) {
-                            Logger.e("DownloadTask", "Error! Try to retry(" + retryCount + ")...");
+                            recorder.recordRetry();
+                            if (Logger.isEnabled()) {
+                                Logger.e(TAG, "Error! Try to retry(" + retryCount + ")...");
+                            }
                             connect();
                             is = inputStream;
-                            if (state == RUNNING) {
-                                Logger.d("DownloadTask", "retry(" + retryCount + ") connect successfully!");
+                            if (state == RUNNING && Logger.isEnabled()) {
+                                Logger.d(TAG, "retry(" + retryCount + ") connect successfully!");
                             }
                             continue;
                         }
@@ -1118,12 +1500,45 @@ public class DownloadTask {
         private long contentLen;
         private final int retryCount = 2;
         private final DownloadBuffer downloadBuffer;
+        private final RangeRecorder recorder;
+        // bytes of this range handed to the file, maybe not on disk yet
+        private volatile long writtenSize;
+        private volatile CoalescingFileWriter writer;
 
-        WriteToDiskRunnable(long startPos, long contentLen, int id, DownloadBuffer downloadBuffer) {
+        WriteToDiskRunnable(long startPos, long contentLen, long downloadedSize, int id, DownloadBuffer downloadBuffer) {
             this.startPos = startPos;
             this.contentLen = contentLen;
+            this.writtenSize = downloadedSize;
             this.id = id;
             this.downloadBuffer = downloadBuffer;
+            this.recorder = stats().range(id);
+        }
+
+        /**
+         * @return the written size that is on disk after this call, or -1 if nothing is open
+         */
+        private long sync() {
+            CoalescingFileWriter writer = this.writer;
+            // read before force: later writes are not covered
+            long size = writtenSize;
+            if (writer == null) {
+                return -1;
+            }
+            try {
+                force(writer);
+            } catch (IOException e) {
+                // closed by writer thread, which forces by itself before closing
+                return -1;
+            }
+            return size;
+        }
+
+        private void updateThreadInfo() {
+            // ranges are cleared when a restart connects
+            DownloadThreadInfo downloadThreadInfo = id < downloadThreadInfos.size() ? downloadThreadInfos.get(id) : null;
+            if (downloadThreadInfo != null && writtenSize > downloadThreadInfo.getDownloadedSize()) {
+                downloadThreadInfo.setDownloadedSize(writtenSize);
+            }
         }
 
         @Override
@@ -1138,7 +1553,9 @@ public class DownloadTask {
                 }
                 innerRun();
             } finally {
-                leftActiveThreadCount.decrementAndGet();
+                if (leftActiveThreadCount.decrementAndGet() == 0) {
+                    finishRun();
+                }
             }
         }
 
@@ -1148,12 +1565,17 @@ public class DownloadTask {
                 return;
             }
             int retryCount = this.retryCount;
-            RandomAccessFile raf = null;
+            CoalescingFileWriter writer = null;
+            int blockSize = downloadManager.blockSize();
+            int coalesceSize = MAX_WRITE_COALESCE;
+            if (contentLen > 0 && contentLen < coalesceSize) {
+                coalesceSize = (int) contentLen;
+            }
 
             while (!deleted.get()) {
                 try {
-                    raf = new RandomAccessFile(downloadFile, "rw");
-                    raf.seek(startPos + downloadThreadInfo.getDownloadedSize());
+                    writer = new CoalescingFileWriter(downloadFile,
+                            startPos + downloadThreadInfo.getDownloadedSize(), blockSize, coalesceSize);
                     break;
                 } catch (IOException e) {
                     try {
@@ -1173,168 +1595,112 @@ public class DownloadTask {
                 }
             }
 
+            if (writer == null) {
+                return;
+            }
+
+            this.writer = writer;
+            DiskVolume volume = diskVolume();
+            GroupCommitFlusher flusher = downloadManager.groupCommitFlusher();
+            try {
+                writeLoop(writer, volume);
+                if (flusher.forceOnClose() && !deleted.get()) {
+                    force(writer);
+                }
+            } catch (IOException e) {
+                handleWriteError(e);
+            } finally {
+                this.writer = null;
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // quietly
+                }
+                updateThreadInfo();
+                if (Logger.isEnabled()) {
+                    Logger.d(TAG, "Task#" + downloadInfo.getId() + "-Write-" + id
+                            + " write sizes before coalescing: " + writer.incoming
+                            + "; after: " + writer.written);
+                }
+            }
+        }
+
+        private void force(CoalescingFileWriter writer) throws IOException {
+            long start = System.nanoTime();
+            try {
+                writer.force();
+            } finally {
+                diskVolume().recordForce(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Writes until the end of the range or the STOP pill: segments read before a stop are still
+         * written, since the reader has counted them.
+         */
+        private void writeLoop(CoalescingFileWriter writer, DiskVolume volume) {
             Segment segment;
-            while ((state == RUNNING) && !deleted.get() && raf != null) {
+            while (!deleted.get()) {
                 try {
-                    segment = downloadBuffer.availableReadSegment(bufferTimeout);
+                    segment = SegmentPipeline.awaitRead(downloadBuffer, recorder, trace(), id(), id);
                 } catch (InterruptedException e) {
                     continue;
                 }
 
-                // timeout
+                // stopped
                 if (segment == null) {
-                    continue;
+                    break;
                 }
 
                 //-----------------------segment must return to buffer!--------------------------//
 
-                boolean enqueueBuffer = false;
                 try {
                     int writeSize = segment.readSize;
                     if (writeSize > 0 && !deleted.get()) {
                         try {
-                            raf.write(segment.buffer, 0, writeSize);
-                            downloadSize.addAndGet(writeSize);
-                            // inform watcher to update progress
-                            semaphore.release();
-                            downloadBuffer.enqueueWriteSegment(segment);
-                            enqueueBuffer = true;
-                            long downloadedSize = downloadThreadInfo.getDownloadedSize();
-                            downloadThreadInfo.setDownloadedSize(downloadedSize + writeSize);
+                            onWritten(SegmentPipeline.write(writer, volume, recorder, segment));
                         } catch (IOException e) {
-                            try {
-                                stateLock.lock();
-                                if (state == RUNNING) {
-                                    reportError(DownloadError.ERROR_DOWNLOAD_FAIL);
-                                    if (BuildConfig.DEBUG) {
-                                        e.printStackTrace();
-                                    }
-                                    return;
-                                }
-                            } finally {
-                                stateLock.unlock();
-                            }
+                            handleWriteError(e);
+                            return;
                         }
                     } else {
                         break;
                     }
                 } finally {
-                    if (!enqueueBuffer) {
-                        downloadBuffer.enqueueWriteSegment(segment);
-                    }
+                    downloadBuffer.enqueueWriteSegment(segment);
                 }
             }
-        }
-    }
-
-    private class ProgressWatcher implements Runnable {
-        // Persistence of vision: 1/24 second
-        private final long minWatchInterval = 42;
-        private long watchInterval = 100;
-        // 1s max
-        private final long maxWatchInterval = 1000;
-        private long lastDownloadSize;
-        private long lastTimeNano;
-        private double lastBps;
-        private int skipTime = 0;
-        private final int maxSkipTime = 3;
-        private long lastDeltaSize;
-        private long lastDeltaTime;
 
-        @Override
-        public void run() {
-            lastTimeNano = System.nanoTime();
-            lastBps = 0;
-            lastDownloadSize = downloadSize.get();
-            while (true) {
-                if (checkEnd()) {
-                    return;
-                }
-
-                boolean acquire = false;
-
-                boolean interrupted = false;
+            // end of range or stopping: keep what has been downloaded
+            if (!deleted.get()) {
                 try {
-                    acquire = semaphore.tryAcquire(1, watchInterval, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    if (checkEnd()) {
-                        return;
-                    }
-                    interrupted = true;
-                }
-
-                long current = downloadSize.get();
-                long downloaded = current - lastDownloadSize;
-
-                if (downloaded > 0 && !deleted.get()) {
-                    downloadInfo.setDownloadedSize(current);
-                    PersistUtil.persistDownloadInfoQuietly(
-                            downloadManager.daoSession,
-                            downloadInfo,
-                            downloadThreadInfos
-                    );
-                }
-
-                if (interrupted) {
-                    continue;
-                }
-
-                long time = System.nanoTime();
-                long deltaTime = time - lastTimeNano;
-                if (deltaTime < watchInterval * 1000000) {
-                    watchInterval = Math.max(watchInterval - minWatchInterval, minWatchInterval);
-                }
-
-                if (checkEnd()) {
-                    return;
+                    onWritten(SegmentPipeline.flush(writer, volume, recorder));
+                } catch (IOException e) {
+                    handleWriteError(e);
                 }
+            }
+        }
 
-                // try to avoid 0B/s...
-                // git it more time to do it
-                if (downloaded < 1 && watchInterval < maxWatchInterval) {
-                    if (!acquire) {
-                        watchInterval = Math.min(watchInterval * 2, maxWatchInterval);
-                    }
-                    continue;
-                }
+        private void onWritten(int size) {
+            if (size <= 0) {
+                return;
+            }
+            writtenSize += size;
+            downloadSize.addAndGet(size);
+            downloadManager.groupCommitFlusher().markDirty(DownloadTask.this);
+        }
 
-                double bps = downloaded / (deltaTime / 1e9);
-                if (bps > lastBps * 1.05) {
-                    if (skipTime < maxSkipTime) {
-                        watchInterval = Math.max(minWatchInterval, watchInterval - minWatchInterval);
-                        skipTime++;
-                        continue;
-                    } else {
-                        long tmpDownloaded = downloaded;
-                        long tmpTime = deltaTime;
-                        downloaded += lastDeltaSize;
-                        deltaTime += lastDeltaTime;
-                        lastDeltaSize = tmpDownloaded;
-                        lastDeltaTime = tmpTime;
-                        bps = downloaded / (deltaTime / 1e9);
-                    }
-                } else if (lastBps > bps * 1.05) {
-                    if (skipTime < maxSkipTime) {
-                        watchInterval = Math.min(maxWatchInterval, watchInterval + minWatchInterval);
-                        skipTime++;
-                        continue;
-                    } else {
-                        long tmpDownloaded = downloaded;
-                        long tmpTime = deltaTime;
-                        downloaded += lastDeltaSize;
-                        deltaTime += lastDeltaTime;
-                        lastDeltaSize = tmpDownloaded;
-                        lastDeltaTime = tmpTime;
+        private void handleWriteError(IOException e) {
+            try {
+                stateLock.lock();
+                if (state == RUNNING) {
+                    reportError(DownloadError.ERROR_DOWNLOAD_FAIL);
+                    if (BuildConfig.DEBUG) {
+                        e.printStackTrace();
                     }
                 }
-
-                downloadManager.onDownloadProgressUpdate(downloadInfo.getId(), downloadInfo.getTotalSize(), current, bps);
-                lastDownloadSize = current;
-                lastTimeNano = time;
-                lastBps = bps;
-                skipTime = 0;
-                lastDeltaSize = downloaded;
-                lastDeltaTime = deltaTime;
+            } finally {
+                stateLock.unlock();
             }
         }
     }
@@ -0,0 +1,201 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.db.DaoSession;
+import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.db.DownloadInfoDao;
+import com.lyc.downloader.db.DownloadThreadInfo;
+import com.lyc.downloader.db.DownloadThreadInfoDao;
+import com.lyc.downloader.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DownloadStore} on the greenDAO tables of {@link DownloadInfo} and {@link DownloadThreadInfo}.
+ */
+class GreenDaoDownloadStore implements DownloadStore<DownloadInfo, DownloadThreadInfo> {
+    private static final String TAG = "GreenDaoDownloadStore";
+    // database write transactions since process start, for load tests
+    private static final AtomicLong writeCount = new AtomicLong();
+    // ids bound in one IN (...), well under SQLITE_MAX_VARIABLE_NUMBER
+    private static final int MAX_IN_IDS = 500;
+
+    private static final Comparator<DownloadThreadInfo> THREAD_INFO_COMPARATOR = (o1, o2) -> {
+        if (o1 == null) {
+            return o2 == null ? 0 : -1;
+        }
+
+        if (o2 == null) {
+            return 1;
+        }
+
+        Long id1 = o1.getId();
+        Long id2 = o2.getId();
+        if (id1 == null) {
+            return id2 == null ? 0 : -1;
+        }
+
+        if (id2 == null) {
+            return 1;
+        }
+
+        return Long.compare(id1, id2);
+    };
+
+    private final DaoSession daoSession;
+
+    GreenDaoDownloadStore(DaoSession daoSession) {
+        this.daoSession = daoSession;
+    }
+
+    static long writeCount() {
+        return writeCount.get();
+    }
+
+    @Override
+    public Long persist(DownloadInfo downloadInfo, List<DownloadThreadInfo> downloadThreadInfos) throws Exception {
+        if (downloadInfo == null) {
+            return null;
+        }
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        DownloadThreadInfoDao downloadThreadInfoDao = daoSession.getDownloadThreadInfoDao();
+        writeCount.incrementAndGet();
+        return daoSession.callInTx(() -> {
+            downloadInfoDao.save(downloadInfo);
+            Long infoId = downloadInfo.getId();
+            if (infoId == null) {
+                return null;
+            }
+
+            if (downloadThreadInfos != null) {
+                downloadInfo.resetDownloadThreadInfos();
+                List<DownloadThreadInfo> oldDownloadThreadInfos = downloadInfo.getDownloadThreadInfos();
+                boolean needDelete = oldDownloadThreadInfos.size() != downloadThreadInfos.size();
+                if (!needDelete) {
+                    Collections.sort(oldDownloadThreadInfos, THREAD_INFO_COMPARATOR);
+
+                    for (int i = 0, s = oldDownloadThreadInfos.size(); i < s; i++) {
+                        if (!Objects.equals(downloadThreadInfos.get(i).getId(), oldDownloadThreadInfos.get(i).getId())) {
+                            needDelete = true;
+                            break;
+                        }
+                    }
+                }
+                if (needDelete) {
+                    for (DownloadThreadInfo oldDownloadThreadInfo : oldDownloadThreadInfos) {
+                        downloadThreadInfoDao.delete(oldDownloadThreadInfo);
+                    }
+                }
+                for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
+                    DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(i);
+                    downloadThreadInfo.setDownloadInfoId(infoId);
+                    downloadThreadInfoDao.save(downloadThreadInfo);
+                }
+            }
+            return infoId;
+        });
+    }
+
+    @Override
+    public void insert(List<DownloadInfo> downloadInfoList) throws Exception {
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        writeCount.incrementAndGet();
+        daoSession.callInTx(() -> {
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                downloadInfoDao.insert(downloadInfo);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public DownloadInfo load(long id) {
+        return daoSession.getDownloadInfoDao().load(id);
+    }
+
+    @Override
+    public List<DownloadInfo> load(long[] ids, int count) {
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(count);
+        for (int from = 0; from < count; from += MAX_IN_IDS) {
+            downloadInfoList.addAll(daoSession.getDownloadInfoDao().queryBuilder()
+                    .where(DownloadInfoDao.Properties.Id.in(idChunk(ids, from, count)))
+                    .list());
+        }
+        return downloadInfoList;
+    }
+
+    @Override
+    public void delete(DownloadInfo downloadInfo) {
+        if (downloadInfo == null || downloadInfo.getId() == null) {
+            return;
+        }
+
+        downloadInfo.resetDownloadThreadInfos();
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        DownloadThreadInfoDao downloadThreadInfoDao = daoSession.getDownloadThreadInfoDao();
+        try {
+            writeCount.incrementAndGet();
+            daoSession.callInTx(() -> {
+                downloadInfoDao.delete(downloadInfo);
+                downloadThreadInfoDao.queryBuilder()
+                        .where(DownloadThreadInfoDao.Properties.DownloadInfoId.eq(downloadInfo.getId()))
+                        .buildDelete()
+                        .executeDeleteWithoutDetachingEntities();
+                return null;
+            });
+        } catch (Exception e) {
+            Logger.e(TAG, "cannot delete downloadInfo", e);
+        }
+    }
+
+    @Override
+    public void delete(List<DownloadInfo> downloadInfoList) {
+        if (downloadInfoList.isEmpty()) {
+            return;
+        }
+        int count = downloadInfoList.size();
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            DownloadInfo downloadInfo = downloadInfoList.get(i);
+            downloadInfo.resetDownloadThreadInfos();
+            ids[i] = downloadInfo.getId();
+        }
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        DownloadThreadInfoDao downloadThreadInfoDao = daoSession.getDownloadThreadInfoDao();
+        try {
+            writeCount.incrementAndGet();
+            daoSession.callInTx(() -> {
+                for (int from = 0; from < count; from += MAX_IN_IDS) {
+                    List<Long> chunk = idChunk(ids, from, count);
+                    downloadInfoDao.queryBuilder()
+                            .where(DownloadInfoDao.Properties.Id.in(chunk))
+                            .buildDelete()
+                            .executeDeleteWithoutDetachingEntities();
+                    downloadThreadInfoDao.queryBuilder()
+                            .where(DownloadThreadInfoDao.Properties.DownloadInfoId.in(chunk))
+                            .buildDelete()
+                            .executeDeleteWithoutDetachingEntities();
+                }
+                return null;
+            });
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                downloadInfoDao.detach(downloadInfo);
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "cannot delete downloadInfos", e);
+        }
+    }
+
+    private static List<Long> idChunk(long[] ids, int from, int count) {
+        int to = Math.min(count, from + MAX_IN_IDS);
+        List<Long> chunk = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            chunk.add(ids[i]);
+        }
+        return chunk;
+    }
+}
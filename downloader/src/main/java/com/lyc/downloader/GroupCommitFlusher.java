@@ -0,0 +1,81 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.Configuration.DurabilityPolicy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.lyc.downloader.Configuration.DURABILITY_BEFORE_CHECKPOINT;
+import static com.lyc.downloader.Configuration.DURABILITY_NONE;
+
+/**
+ * Forces the files of every dirty {@link DownloadTask} once per interval, in one pass.
+ * With {@link Configuration#DURABILITY_BEFORE_CHECKPOINT} each task writes its progress
+ * checkpoint right after its files are forced, so the database only claims bytes on disk.
+ */
+class GroupCommitFlusher {
+    @DurabilityPolicy
+    private final int policy;
+    private final long intervalMillis;
+    private final Queue<DownloadTask> dirtyTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    GroupCommitFlusher(@DurabilityPolicy int policy, long intervalMillis) {
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * if true, writers force their file before they exit
+     */
+    boolean forceOnClose() {
+        return policy != DURABILITY_NONE;
+    }
+
+    /**
+     * if true, progress checkpoints are only written by this flusher while a task is running
+     */
+    boolean checkpointAfterForce() {
+        return policy == DURABILITY_BEFORE_CHECKPOINT;
+    }
+
+    void markDirty(DownloadTask downloadTask) {
+        if (policy == DURABILITY_NONE) {
+            return;
+        }
+        if (downloadTask.markDirty()) {
+            dirtyTasks.offer(downloadTask);
+            startIfNeeded();
+        }
+    }
+
+    private void startIfNeeded() {
+        if (started.compareAndSet(false, true)) {
+            DownloadExecutors.scheduler.scheduleWithFixedDelay(() -> {
+                if (!dirtyTasks.isEmpty() && flushing.compareAndSet(false, true)) {
+                    // fsync may block for long; never do it on the scheduler thread
+                    DownloadExecutors.io.execute(this::flushDirtyTasks);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushDirtyTasks() {
+        try {
+            boolean checkpoint = checkpointAfterForce();
+            // tasks marked dirty again during this pass wait for the next one
+            for (int i = dirtyTasks.size(); i > 0; i--) {
+                DownloadTask downloadTask = dirtyTasks.poll();
+                if (downloadTask == null) {
+                    break;
+                }
+                downloadTask.commit(checkpoint);
+            }
+        } finally {
+            flushing.set(false);
+        }
+    }
+}
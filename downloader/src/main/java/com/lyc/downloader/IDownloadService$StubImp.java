@@ -33,11 +33,41 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
         downloadManager.setDownloadTasksChangeCallback(null);
     }
 
+    @Override
+    public DownloadConfig registerConfigCallback(IConfigCallback callback) {
+        return downloadManager.setConfigCallback(callback);
+    }
+
+    @Override
+    public void unregisterConfigCallback() {
+        downloadManager.setConfigCallback(null);
+    }
+
     @Override
     public void submit(String url, String path, String filename, ISubmitCallback callback) {
         downloadManager.submit(url, path, filename, callback);
     }
 
+    @Override
+    public void submitBatch(List<SubmitRequest> requests, IBatchSubmitCallback callback) {
+        downloadManager.submitBatch(requests, callback);
+    }
+
+    @Override
+    public boolean exportTrace(String path) {
+        return downloadManager.exportTrace(path);
+    }
+
+    @Override
+    public DownloadStats queryDownloadStats(long id) {
+        return downloadManager.queryDownloadStats(id);
+    }
+
+    @Override
+    public DownloadStats queryAggregateDownloadStats() {
+        return downloadManager.queryAggregateDownloadStats();
+    }
+
     @Override
     public DownloadInfo queryDownloadInfo(long id) {
         return downloadManager.queryDownloadInfo(id);
@@ -58,6 +88,16 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
         return downloadManager.queryFinishedDownloadInfoList();
     }
 
+    @Override
+    public DownloadPage queryDownloadPage(DownloadQuery query) {
+        return downloadManager.queryDownloadPage(query);
+    }
+
+    @Override
+    public TaskChanges pullTaskChanges(long epoch, long version) {
+        return downloadManager.pullTaskChanges(epoch, version);
+    }
+
     @Override
     public void startAll() {
         downloadManager.startAll();
@@ -137,4 +177,74 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
     public void setSendMessageIntervalNanos(long time) {
         downloadManager.setSendMessageIntervalNanos(time);
     }
+
+    @Override
+    public void startOrResumeAsync(long requestId, long id, boolean restart, ICommandCallback callback) {
+        downloadManager.startOrResume(id, restart, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void pauseAsync(long requestId, long id, ICommandCallback callback) {
+        downloadManager.pause(id, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void cancelAsync(long requestId, long id, ICommandCallback callback) {
+        downloadManager.cancel(id, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void deleteAsync(long requestId, long id, boolean deleteFile, ICommandCallback callback) {
+        downloadManager.delete(id, deleteFile, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void startAllAsync(long requestId, ICommandCallback callback) {
+        downloadManager.startAll(CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void pauseAllAsync(long requestId, ICommandCallback callback) {
+        downloadManager.pauseAll(CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void setMaxRunningTaskAsync(long requestId, int count, ICommandCallback callback) {
+        downloadManager.setMaxRunningTask(count, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void setSpeedLimitAsync(long requestId, long speedLimit, ICommandCallback callback) {
+        downloadManager.setSpeedLimit(speedLimit, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void setAllowDownloadAsync(long requestId, boolean allowDownload, ICommandCallback callback) {
+        downloadManager.setAllowDownload(allowDownload, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void setAvoidFrameDropAsync(long requestId, boolean avoidFrameDrop, ICommandCallback callback) {
+        downloadManager.setAvoidFrameDrop(avoidFrameDrop, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void setSendMessageIntervalNanosAsync(long requestId, long time, ICommandCallback callback) {
+        downloadManager.setSendMessageIntervalNanos(time, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void startOrResumeBatchAsync(long requestId, long[] ids, boolean restart, ICommandCallback callback) {
+        downloadManager.startOrResume(ids, restart, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void pauseBatchAsync(long requestId, long[] ids, ICommandCallback callback) {
+        downloadManager.pause(ids, CommandReply.of(requestId, callback));
+    }
+
+    @Override
+    public void deleteBatchAsync(long requestId, long[] ids, boolean deleteFile, ICommandCallback callback) {
+        downloadManager.delete(ids, deleteFile, CommandReply.of(requestId, callback));
+    }
 }
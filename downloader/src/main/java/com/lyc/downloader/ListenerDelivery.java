@@ -0,0 +1,254 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.utils.LongHashMap;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A registered {@link DownloadListener} with the executor and the delivery policy its callbacks go through.
+ * Callbacks are queued as recycled {@link Event}s and run on the executor in submission order, in batches of
+ * what is queued when a batch starts, so dispatching allocates nothing per callback once the pool is warm.
+ * With {@link YCDownloader#DELIVER_LATEST_PROGRESS} a progress update replaces a queued one of the same task;
+ * any other callback of the task ends that, so nothing is reordered around it.
+ * <p>
+ * Equal to any other delivery of the same listener, so that a listener is registered once per id
+ * and unregistered without its executor.
+ */
+class ListenerDelivery {
+    static final int CONNECTING = 0;
+    static final int PROGRESS = 1;
+    static final int UPDATE_INFO = 2;
+    static final int ERROR = 3;
+    static final int START = 4;
+    static final int STOPPING = 5;
+    static final int PAUSED = 6;
+    static final int WAITING = 7;
+    static final int CANCELED = 8;
+    static final int FINISHED = 9;
+    // recycled events kept after a burst
+    private static final int MAX_POOLED_EVENTS = 64;
+
+    final DownloadListener listener;
+    private final Runnable drain = this::drain;
+    // guarded by this
+    private Executor executor;
+    private boolean conflateProgress;
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    // queued progress events that may still be replaced
+    private final LongHashMap<Event> conflatable = new LongHashMap<>();
+    private final ArrayDeque<Event> pool = new ArrayDeque<>();
+    private boolean scheduled;
+
+    /**
+     * @param executor null for main thread
+     * @param delivery {@link YCDownloader#DELIVER_ALL} or {@link YCDownloader#DELIVER_LATEST_PROGRESS}
+     */
+    ListenerDelivery(DownloadListener listener, Executor executor, int delivery) {
+        this.listener = listener;
+        update(executor, delivery);
+    }
+
+    /**
+     * Callbacks queued from now on go through the executor and the policy of the latest registration.
+     *
+     * @see #ListenerDelivery(DownloadListener, Executor, int)
+     */
+    synchronized void update(Executor executor, int delivery) {
+        this.executor = executor == null ? AndroidExecutors.main : executor;
+        conflateProgress = delivery == YCDownloader.DELIVER_LATEST_PROGRESS;
+        if (!conflateProgress) {
+            conflatable.clear();
+        }
+    }
+
+    /**
+     * @param type any but {@link #PROGRESS} and {@link #ERROR}
+     */
+    void deliver(int type, long id, DownloadInfo downloadInfo) {
+        Executor executor;
+        synchronized (this) {
+            Event event = obtain(type, id);
+            event.downloadInfo = downloadInfo;
+            executor = enqueue(event);
+        }
+        if (executor != null) {
+            executor.execute(drain);
+        }
+    }
+
+    void deliverError(long id, int code, boolean fatal) {
+        Executor executor;
+        synchronized (this) {
+            Event event = obtain(ERROR, id);
+            event.code = code;
+            event.fatal = fatal;
+            executor = enqueue(event);
+        }
+        if (executor != null) {
+            executor.execute(drain);
+        }
+    }
+
+    void deliverProgress(long id, long total, long cur, double bps, long etaMillis) {
+        Executor executor;
+        synchronized (this) {
+            Event event = conflateProgress ? conflatable.get(id) : null;
+            if (event != null) {
+                event.setProgress(total, cur, bps, etaMillis);
+                return;
+            }
+            event = obtain(PROGRESS, id);
+            event.setProgress(total, cur, bps, etaMillis);
+            if (conflateProgress) {
+                conflatable.put(id, event);
+            }
+            queue.offerLast(event);
+            executor = schedule();
+        }
+        if (executor != null) {
+            executor.execute(drain);
+        }
+    }
+
+    // guarded by this
+    private Event obtain(int type, long id) {
+        Event event = pool.pollFirst();
+        if (event == null) {
+            event = new Event();
+        }
+        event.type = type;
+        event.id = id;
+        return event;
+    }
+
+    // guarded by this
+    private void recycle(Event event) {
+        if (pool.size() < MAX_POOLED_EVENTS) {
+            event.downloadInfo = null;
+            pool.offerFirst(event);
+        }
+    }
+
+    // guarded by this; null if a drain is already scheduled
+    private Executor enqueue(Event event) {
+        conflatable.remove(event.id);
+        queue.offerLast(event);
+        return schedule();
+    }
+
+    // guarded by this
+    private Executor schedule() {
+        if (scheduled) {
+            return null;
+        }
+        scheduled = true;
+        return executor;
+    }
+
+    private void drain() {
+        int count;
+        synchronized (this) {
+            count = queue.size();
+        }
+        Event event = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                synchronized (this) {
+                    if (event != null) {
+                        recycle(event);
+                    }
+                    event = queue.pollFirst();
+                    if (conflatable.get(event.id) == event) {
+                        conflatable.remove(event.id);
+                    }
+                }
+                // out of the queue: nothing changes it while it runs
+                event.run(listener);
+            }
+        } finally {
+            // also when a callback threw: the rest still runs, in a later batch
+            Executor executor;
+            synchronized (this) {
+                if (event != null) {
+                    recycle(event);
+                }
+                executor = queue.isEmpty() ? null : this.executor;
+                scheduled = executor != null;
+            }
+            if (executor != null) {
+                executor.execute(drain);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ListenerDelivery && ((ListenerDelivery) o).listener.equals(listener);
+    }
+
+    @Override
+    public int hashCode() {
+        return listener.hashCode();
+    }
+
+    /**
+     * One queued callback; the fields its type does not use are stale.
+     */
+    private static class Event {
+        int type;
+        long id;
+        DownloadInfo downloadInfo;
+        long total;
+        long cur;
+        double bps;
+        long etaMillis;
+        int code;
+        boolean fatal;
+
+        void setProgress(long total, long cur, double bps, long etaMillis) {
+            this.total = total;
+            this.cur = cur;
+            this.bps = bps;
+            this.etaMillis = etaMillis;
+        }
+
+        void run(DownloadListener listener) {
+            switch (type) {
+                case CONNECTING:
+                    listener.onDownloadConnecting(id);
+                    break;
+                case PROGRESS:
+                    listener.onDownloadProgressUpdate(id, total, cur, bps, etaMillis);
+                    break;
+                case UPDATE_INFO:
+                    listener.onDownloadUpdateInfo(downloadInfo);
+                    break;
+                case ERROR:
+                    listener.onDownloadError(id, code, fatal);
+                    break;
+                case START:
+                    listener.onDownloadStart(downloadInfo);
+                    break;
+                case STOPPING:
+                    listener.onDownloadStopping(id);
+                    break;
+                case PAUSED:
+                    listener.onDownloadPaused(id);
+                    break;
+                case WAITING:
+                    listener.onDownloadTaskWait(id);
+                    break;
+                case CANCELED:
+                    listener.onDownloadCanceled(id);
+                    break;
+                case FINISHED:
+                    listener.onDownloadFinished(downloadInfo);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown callback: " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.DownloadStatsCollector.RangeRecorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Per-segment steps of the reader and writer threads of one range in {@link DownloadTask}.
+ * They run for every segment of every download, so none of them allocates.
+ */
+final class SegmentPipeline {
+    private SegmentPipeline() {
+    }
+
+    /**
+     * Waits for a free segment to read into.
+     *
+     * @return null if the buffer is stopped
+     */
+    static Segment awaitFree(DownloadBuffer buffer, RangeRecorder recorder, TraceRecorder trace,
+                             long taskId, int tid) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        try {
+            return buffer.availableWriteSegment();
+        } finally {
+            recorder.recordReaderWait(System.nanoTime() - waitStart);
+            trace.stall(taskId, TraceRecorder.readerLane(tid), waitStart);
+        }
+    }
+
+    /**
+     * @param left bytes left in the range
+     */
+    static int read(InputStream is, Segment segment, long left) throws IOException {
+        return is.read(segment.buffer, 0, (int) Math.min(segment.buffer.length, left));
+    }
+
+    /**
+     * Hands a segment to the writer; a readSize of 0 or less tells it that the range ends.
+     */
+    static void publish(DownloadBuffer buffer, RangeRecorder recorder, Segment segment,
+                        long startPos, int tid, int readSize) {
+        segment.startPos = startPos;
+        segment.tid = tid;
+        segment.readSize = readSize;
+        if (readSize > 0) {
+            recorder.recordBytes(readSize);
+        }
+        buffer.enqueueReadSegment(segment);
+    }
+
+    /**
+     * Waits for a read segment to write.
+     *
+     * @return null if the buffer is stopped
+     */
+    static Segment awaitRead(DownloadBuffer buffer, RangeRecorder recorder, TraceRecorder trace,
+                             long taskId, int tid) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        try {
+            return buffer.availableReadSegment();
+        } finally {
+            recorder.recordWriterWait(System.nanoTime() - waitStart);
+            trace.stall(taskId, TraceRecorder.writerLane(tid), waitStart);
+        }
+    }
+
+    /**
+     * Writes the bytes of a read segment. Only writes that reach the file take a slot of the
+     * volume's writer budget.
+     *
+     * @return bytes written to the file by this call
+     */
+    static int write(CoalescingFileWriter writer, DiskVolume volume, RangeRecorder recorder,
+                     Segment segment) throws IOException {
+        int size = segment.readSize;
+        volume.recordIngress(size);
+        if (!writer.willWrite(size)) {
+            return writer.write(segment.buffer, 0, size);
+        }
+        volume.beginWrite();
+        long start = System.nanoTime();
+        int written = 0;
+        try {
+            written = writer.write(segment.buffer, 0, size);
+            return written;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            volume.endWrite(written, elapsed);
+            recorder.recordDiskWrite(elapsed);
+        }
+    }
+
+    /**
+     * @return bytes written to the file by this call
+     */
+    static int flush(CoalescingFileWriter writer, DiskVolume volume, RangeRecorder recorder) throws IOException {
+        volume.beginWrite();
+        long start = System.nanoTime();
+        int written = 0;
+        try {
+            written = writer.flush();
+            return written;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            volume.endWrite(written, elapsed);
+            recorder.recordDiskWrite(elapsed);
+        }
+    }
+}
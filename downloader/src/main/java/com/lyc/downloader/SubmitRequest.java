@@ -0,0 +1,79 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A task to create by {@link YCDownloader#submitBatch(java.util.List, BatchSubmitListener)};
+ * the arguments are those of {@link YCDownloader#submit(String, String, String, SubmitListener)}.
+ */
+public class SubmitRequest implements Parcelable {
+    public static final Creator<SubmitRequest> CREATOR = new Creator<SubmitRequest>() {
+        @Override
+        public SubmitRequest createFromParcel(Parcel in) {
+            return new SubmitRequest(in);
+        }
+
+        @Override
+        public SubmitRequest[] newArray(int size) {
+            return new SubmitRequest[size];
+        }
+    };
+
+    private final String url;
+    private final String path;
+    private final String filename;
+
+    /**
+     * @param url      Download url, only HTTP or HTTPS supported for now.
+     * @param path     Parent directory to save the downloaded file
+     * @param filename Downloaded filename, nullable.
+     */
+    public SubmitRequest(String url, String path, String filename) {
+        if (path == null) {
+            throw new NullPointerException("path cannot be null");
+        }
+        this.url = url;
+        this.path = path;
+        this.filename = filename;
+    }
+
+    protected SubmitRequest(Parcel in) {
+        url = in.readString();
+        path = in.readString();
+        filename = in.readString();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(url);
+        dest.writeString(path);
+        dest.writeString(filename);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SubmitRequest{" +
+                "url='" + url + '\'' +
+                ", path='" + path + '\'' +
+                ", filename='" + filename + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,78 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import com.lyc.downloader.db.DownloadInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the active task table since a client's version, pulled by {@link TaskMirror}.
+ */
+class TaskChanges implements Parcelable {
+    public static final Creator<TaskChanges> CREATOR = new Creator<TaskChanges>() {
+        @Override
+        public TaskChanges createFromParcel(Parcel in) {
+            return new TaskChanges(in);
+        }
+
+        @Override
+        public TaskChanges[] newArray(int size) {
+            return new TaskChanges[size];
+        }
+    };
+
+    final long epoch;
+    final long version;
+    // drop the table before applying
+    final boolean reset;
+    // added or changed
+    final List<DownloadInfo> downloadInfoList;
+    // finished, canceled or deleted
+    final long[] removedIds;
+
+    TaskChanges(TaskChangeLog.Changes<DownloadInfo> changes) {
+        epoch = changes.epoch;
+        version = changes.version;
+        reset = changes.reset;
+        downloadInfoList = new ArrayList<>(changes.changes.size());
+        int removedCount = 0;
+        for (TaskChangeLog.Change<DownloadInfo> change : changes.changes) {
+            if (change.removed) {
+                removedCount++;
+            } else {
+                downloadInfoList.add(change.value);
+            }
+        }
+        removedIds = new long[removedCount];
+        int i = 0;
+        for (TaskChangeLog.Change<DownloadInfo> change : changes.changes) {
+            if (change.removed) {
+                removedIds[i++] = change.id;
+            }
+        }
+    }
+
+    protected TaskChanges(Parcel in) {
+        epoch = in.readLong();
+        version = in.readLong();
+        reset = in.readByte() != 0;
+        downloadInfoList = in.createTypedArrayList(DownloadInfo.CREATOR);
+        removedIds = in.createLongArray();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(epoch);
+        dest.writeLong(version);
+        dest.writeByte((byte) (reset ? 1 : 0));
+        dest.writeTypedList(downloadInfoList);
+        dest.writeLongArray(removedIds);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.utils.LongHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Client side copy of the active task table of the service, so that {@link BaseServiceManager}
+ * answers queries of active tasks from memory. It pulls {@link TaskChanges} since its version
+ * whenever a callback tells that a task changed, and applies progress callbacks in place.
+ * Until the first pull after a connection, queries go to the service.
+ */
+class TaskMirror {
+    private final LongHashMap<DownloadInfo> infoTable = new LongHashMap<>();
+    // asks for a pull; pulls are serialized by the caller
+    private final Runnable syncRequest;
+    private long epoch;
+    private long version;
+    private boolean synced;
+
+    TaskMirror(Runnable syncRequest) {
+        this.syncRequest = syncRequest;
+    }
+
+    void onTaskChanged() {
+        syncRequest.run();
+    }
+
+    synchronized void onProgress(long id, long total, long cur) {
+        DownloadInfo downloadInfo = infoTable.get(id);
+        if (downloadInfo != null) {
+            downloadInfo.setTotalSize(total);
+            downloadInfo.setDownloadedSize(cur);
+        }
+    }
+
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized void apply(TaskChanges changes) {
+        if (changes.reset) {
+            infoTable.clear();
+        } else if (changes.epoch != epoch || changes.version < version) {
+            // raced with an older pull
+            return;
+        }
+        for (DownloadInfo downloadInfo : changes.downloadInfoList) {
+            // the service may hand out its own objects in process
+            infoTable.put(downloadInfo.getId(), copyOf(downloadInfo));
+        }
+        for (long id : changes.removedIds) {
+            infoTable.remove(id);
+        }
+        epoch = changes.epoch;
+        version = changes.version;
+        synced = true;
+    }
+
+    /**
+     * The service is gone: answer nothing until the next pull, which keeps the version, so that
+     * a service that is still alive only sends what changed meanwhile.
+     */
+    synchronized void invalidate() {
+        synced = false;
+    }
+
+    synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return a copy, or null if the task is not active or the mirror is not synced
+     */
+    synchronized DownloadInfo queryDownloadInfo(long id) {
+        if (!synced) {
+            return null;
+        }
+        DownloadInfo downloadInfo = infoTable.get(id);
+        return downloadInfo == null ? null : copyOf(downloadInfo);
+    }
+
+    /**
+     * @return copies sorted like {@link DownloadManager#queryActiveDownloadInfoList()}, or null if not synced
+     */
+    synchronized List<DownloadInfo> queryActiveDownloadInfoList() {
+        if (!synced) {
+            return null;
+        }
+        int size = infoTable.size();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            downloadInfoList.add(copyOf(infoTable.valueAt(i)));
+        }
+        Collections.sort(downloadInfoList, (o1, o2) -> o2.getCreatedTime().compareTo(o1.getCreatedTime()));
+        return downloadInfoList;
+    }
+
+    private static DownloadInfo copyOf(DownloadInfo downloadInfo) {
+        Date createdTime = downloadInfo.getCreatedTime();
+        Date finishedTime = downloadInfo.getFinishedTime();
+        return new DownloadInfo(downloadInfo.getId(), downloadInfo.getUrl(), downloadInfo.getPath(),
+                downloadInfo.getFilename(), downloadInfo.getResumable(), downloadInfo.getDownloadItemState(),
+                downloadInfo.getDownloadedSize(), downloadInfo.getTotalSize(), downloadInfo.getLastModified(),
+                createdTime == null ? null : new Date(createdTime.getTime()),
+                finishedTime == null ? null : new Date(finishedTime.getTime()),
+                downloadInfo.getErrorCode());
+    }
+}
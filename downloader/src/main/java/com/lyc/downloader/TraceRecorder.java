@@ -0,0 +1,380 @@
+package com.lyc.downloader;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.lyc.downloader.DownloadTask.CANCELED;
+import static com.lyc.downloader.DownloadTask.CONNECTING;
+import static com.lyc.downloader.DownloadTask.ERROR;
+import static com.lyc.downloader.DownloadTask.FATAL_ERROR;
+import static com.lyc.downloader.DownloadTask.FINISH;
+import static com.lyc.downloader.DownloadTask.PAUSED;
+import static com.lyc.downloader.DownloadTask.PENDING;
+import static com.lyc.downloader.DownloadTask.RUNNING;
+import static com.lyc.downloader.DownloadTask.STOPPING;
+import static com.lyc.downloader.DownloadTask.WAITING;
+
+/**
+ * Opt-in recorder of task lifecycle events, enabled by
+ * {@link Configuration.Builder#setTraceBufferSize(int)}.
+ * Events are fixed-size records in a lock-free ring buffer that keeps the latest ones;
+ * {@link #exportChromeTrace(Writer)} writes them in Chrome trace event format, which
+ * chrome://tracing and Perfetto open as one process per task and one track per range thread.
+ */
+class TraceRecorder {
+    // task state entered; arg: new state
+    static final int STATE = 0;
+    // span of a request until response headers; arg: 1 if succeeded
+    static final int CONNECT = 1;
+    // first bytes read after a connect
+    static final int FIRST_BYTE = 2;
+    // reader of a range exits; arg: bytes downloaded by the range
+    static final int RANGE_END = 3;
+    // span waiting for a buffer segment
+    static final int BUFFER_STALL = 4;
+    // span of a database write of the task
+    static final int PERSIST = 5;
+    // decision of DownloadManager#schedule; arg: SCHEDULE_*
+    static final int SCHEDULE = 6;
+
+    static final int SCHEDULE_START = 0;
+    static final int SCHEDULE_HELD_BY_VOLUME = 1;
+    static final int SCHEDULE_REQUEUE = 2;
+    static final int SCHEDULE_PREEMPT = 3;
+
+    // track of state spans and task level events
+    static final int LANE_TASK = 0;
+    // scheduler events are exported to their own process
+    static final int LANE_SCHEDULER = -1;
+
+    // shorter stalls are not worth a record
+    private static final long MIN_STALL_NANOS = 1000000;
+
+    static final TraceRecorder DISABLED = new TraceRecorder(0);
+
+    private final boolean enabled;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    // sequence + 1 of the record in each slot; 0 while it is being written
+    private final AtomicLongArray published;
+    private final int[] kinds;
+    private final int[] lanes;
+    private final long[] taskIds;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final long[] args;
+
+    /**
+     * @param capacity max events kept, rounded up to a power of 2; 0 disables recording
+     */
+    TraceRecorder(int capacity) {
+        enabled = capacity > 0;
+        int size = enabled ? Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1 : 0;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        kinds = new int[size];
+        lanes = new int[size];
+        taskIds = new long[size];
+        startNanos = new long[size];
+        durationNanos = new long[size];
+        args = new long[size];
+    }
+
+    static int readerLane(int tid) {
+        return 1 + tid * 2;
+    }
+
+    static int writerLane(int tid) {
+        return 2 + tid * 2;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void instant(int kind, long taskId, int lane, long arg) {
+        if (enabled) {
+            record(kind, taskId, lane, System.nanoTime(), -1, arg);
+        }
+    }
+
+    /**
+     * A span from start until now.
+     */
+    void span(int kind, long taskId, int lane, long start, long arg) {
+        if (enabled) {
+            record(kind, taskId, lane, start, System.nanoTime() - start, arg);
+        }
+    }
+
+    void stall(long taskId, int lane, long start) {
+        if (enabled) {
+            long duration = System.nanoTime() - start;
+            if (duration >= MIN_STALL_NANOS) {
+                record(BUFFER_STALL, taskId, lane, start, duration, 0);
+            }
+        }
+    }
+
+    private void record(int kind, long taskId, int lane, long start, long duration, long arg) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        published.set(slot, 0);
+        kinds[slot] = kind;
+        lanes[slot] = lane;
+        taskIds[slot] = taskId;
+        startNanos[slot] = start;
+        durationNanos[slot] = duration;
+        args[slot] = arg;
+        published.set(slot, sequence + 1);
+    }
+
+    /**
+     * Best effort copy of the buffer: records overwritten while copying are skipped.
+     */
+    List<Event> snapshot() {
+        if (!enabled) {
+            return new ArrayList<>(0);
+        }
+        long end = cursor.get();
+        long begin = Math.max(0, end - (mask + 1));
+        List<Event> events = new ArrayList<>((int) (end - begin));
+        for (long sequence = begin; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence + 1) {
+                continue;
+            }
+            Event event = new Event(kinds[slot], lanes[slot], taskIds[slot],
+                    startNanos[slot], durationNanos[slot], args[slot]);
+            if (published.get(slot) == sequence + 1) {
+                events.add(event);
+            }
+        }
+        Collections.sort(events, (o1, o2) -> Long.compare(o1.start, o2.start));
+        return events;
+    }
+
+    void exportChromeTrace(Writer writer) throws IOException {
+        List<Event> events = snapshot();
+        long base = events.isEmpty() ? 0 : events.get(0).start;
+        long last = base;
+        for (Event event : events) {
+            last = Math.max(last, event.duration > 0 ? event.start + event.duration : event.start);
+        }
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        JsonEvents out = new JsonEvents(writer, base);
+        out.metadata("process_name", 0, null, "DownloadManager");
+        out.metadata("thread_name", 0, 0, "schedule");
+
+        Set<Long> tasks = new HashSet<>();
+        Set<Long> lanes = new HashSet<>();
+        // open state span of every task
+        Map<Long, Event> states = new HashMap<>();
+        for (Event event : events) {
+            if (event.lane == LANE_SCHEDULER) {
+                out.begin(nameOf(event), "i", 0, 0, event.start);
+                out.arg("task", event.taskId);
+                out.arg("decision", scheduleDecisionName((int) event.arg));
+                out.end("t", -1);
+                continue;
+            }
+            if (tasks.add(event.taskId)) {
+                out.metadata("process_name", event.taskId, null, "Task#" + event.taskId);
+            }
+            if (lanes.add(event.taskId * 1024 + event.lane)) {
+                out.metadata("thread_name", event.taskId, event.lane, laneName(event.lane));
+            }
+            if (event.kind == STATE) {
+                Event previous = states.put(event.taskId, event);
+                if (previous != null) {
+                    out.state(previous, event.start);
+                }
+                continue;
+            }
+            out.begin(nameOf(event), event.duration < 0 ? "i" : "X", event.taskId, event.lane, event.start);
+            if (event.kind == CONNECT) {
+                out.arg("success", event.arg);
+            } else if (event.kind == RANGE_END) {
+                out.arg("bytes", event.arg);
+            }
+            out.end(event.duration < 0 ? "t" : null, event.duration);
+        }
+        for (Event state : states.values()) {
+            out.state(state, last);
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static String nameOf(Event event) {
+        switch (event.kind) {
+            case STATE:
+                return stateName((int) event.arg);
+            case CONNECT:
+                return "connect";
+            case FIRST_BYTE:
+                return "first byte";
+            case RANGE_END:
+                return "range end";
+            case BUFFER_STALL:
+                return "buffer stall";
+            case PERSIST:
+                return "persist";
+            case SCHEDULE:
+                return "schedule";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static String stateName(int state) {
+        switch (state) {
+            case PENDING:
+                return "PENDING";
+            case CONNECTING:
+                return "CONNECTING";
+            case RUNNING:
+                return "RUNNING";
+            case STOPPING:
+                return "STOPPING";
+            case PAUSED:
+                return "PAUSED";
+            case FINISH:
+                return "FINISH";
+            case WAITING:
+                return "WAITING";
+            case CANCELED:
+                return "CANCELED";
+            case ERROR:
+                return "ERROR";
+            case FATAL_ERROR:
+                return "FATAL_ERROR";
+            default:
+                return "STATE_" + state;
+        }
+    }
+
+    private static String scheduleDecisionName(int decision) {
+        switch (decision) {
+            case SCHEDULE_START:
+                return "start";
+            case SCHEDULE_HELD_BY_VOLUME:
+                return "held by volume";
+            case SCHEDULE_REQUEUE:
+                return "requeue";
+            case SCHEDULE_PREEMPT:
+                return "preempt";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static String laneName(int lane) {
+        if (lane == LANE_TASK) {
+            return "state";
+        }
+        return "range " + (lane - 1) / 2 + ((lane & 1) == 1 ? " read" : " write");
+    }
+
+    static class Event {
+        final int kind;
+        final int lane;
+        final long taskId;
+        final long start;
+        // -1 for instant events
+        final long duration;
+        final long arg;
+
+        Event(int kind, int lane, long taskId, long start, long duration, long arg) {
+            this.kind = kind;
+            this.lane = lane;
+            this.taskId = taskId;
+            this.start = start;
+            this.duration = duration;
+            this.arg = arg;
+        }
+    }
+
+    /**
+     * Writes trace events one by one; names never need escaping.
+     */
+    private static class JsonEvents {
+        private final Writer writer;
+        private final long base;
+        private boolean first = true;
+        private boolean firstArg;
+
+        JsonEvents(Writer writer, long base) {
+            this.writer = writer;
+            this.base = base;
+        }
+
+        void metadata(String name, long pid, Integer tid, String value) throws IOException {
+            separate();
+            writer.write("{\"name\":\"" + name + "\",\"ph\":\"M\",\"pid\":" + pid);
+            if (tid != null) {
+                writer.write(",\"tid\":" + tid);
+            }
+            writer.write(",\"args\":{\"name\":\"" + value + "\"}}");
+        }
+
+        void state(Event state, long endNanos) throws IOException {
+            begin(nameOf(state), "X", state.taskId, LANE_TASK, state.start);
+            end(null, Math.max(endNanos - state.start, 0));
+        }
+
+        void begin(String name, String phase, long pid, int tid, long start) throws IOException {
+            separate();
+            writer.write("{\"name\":\"" + name + "\",\"ph\":\"" + phase + "\",\"pid\":" + pid
+                    + ",\"tid\":" + tid + ",\"ts\":" + micros(start - base) + ",\"args\":{");
+            firstArg = true;
+        }
+
+        void arg(String key, Object value) throws IOException {
+            if (!firstArg) {
+                writer.write(',');
+            }
+            firstArg = false;
+            writer.write('"' + key + "\":");
+            writer.write(value instanceof String ? '"' + (String) value + '"' : String.valueOf(value));
+        }
+
+        /**
+         * @param scope scope of an instant event, or null
+         * @param duration duration of a complete event, or -1
+         */
+        void end(String scope, long duration) throws IOException {
+            writer.write('}');
+            if (duration >= 0) {
+                writer.write(",\"dur\":" + micros(duration));
+            }
+            if (scope != null) {
+                writer.write(",\"s\":\"" + scope + '"');
+            }
+            writer.write('}');
+        }
+
+        private void separate() throws IOException {
+            if (!first) {
+                writer.write(",\n");
+            }
+            first = false;
+        }
+
+        // trace timestamps are in microseconds
+        private static String micros(long nanos) {
+            long fraction = nanos % 1000;
+            return nanos / 1000 + (fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".") + fraction;
+        }
+    }
+}
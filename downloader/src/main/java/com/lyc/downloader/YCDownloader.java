@@ -11,10 +11,13 @@ import android.util.Log;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.utils.AndroidLogSink;
 import com.lyc.downloader.utils.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -27,17 +30,30 @@ import java.util.concurrent.TimeUnit;
  * However, all the get/isXX methods are executed in main thread immediately, witch means they won't wait for connection
  * to the service.
  * If you want to get the right value immediately, call them in {@link YCDownloader#postOnConnection(Runnable)}
- * All listener methods are guarded to call in main thread
+ * All listener methods are guarded to call in main thread, unless registered with an executor
  * @see DownloadListener
  * @see DownloadTasksChangeListener
  */
 public abstract class YCDownloader {
+    /**
+     * A listener gets every callback.
+     */
+    public static final int DELIVER_ALL = 0;
+    /**
+     * Progress updates of a task that the listener has not got yet are replaced by the latest one;
+     * other callbacks are all delivered, in order.
+     */
+    public static final int DELIVER_LATEST_PROGRESS = 1;
     private static BaseServiceManager serviceManager;
     private static boolean installed;
     static String serverProcessName;
 
     private static final String TAG = "YCDownloader";
 
+    static {
+        AndroidLogSink.installIfDebug();
+    }
+
     private static void checkInstall() {
         if (!installed) {
             throw new IllegalStateException("Cannot access to YCDownloader! Did you forget to install it first?");
@@ -191,6 +207,33 @@ public abstract class YCDownloader {
         serviceManager.registerDownloadListener(ids, downloadListener);
     }
 
+    /**
+     * register download listener whose callbacks run on the executor instead of main thread.
+     * Registering the same listener again replaces its executor and delivery for all of its ids.
+     *
+     * @param executor runs the callbacks of the listener; should run them in order, e.g. on a single thread.
+     *                 null for main thread
+     * @param delivery {@link #DELIVER_ALL}, or {@link #DELIVER_LATEST_PROGRESS} for a listener
+     *                 that may fall behind the progress updates
+     */
+    public static void registerDownloadListener(DownloadListener downloadListener, Executor executor, int delivery) {
+        serviceManager.registerDownloadListener((Long) null, downloadListener, executor, delivery);
+    }
+
+    /**
+     * @see #registerDownloadListener(DownloadListener, Executor, int)
+     */
+    public static void registerDownloadListener(long id, DownloadListener downloadListener, Executor executor, int delivery) {
+        serviceManager.registerDownloadListener(id, downloadListener, executor, delivery);
+    }
+
+    /**
+     * @see #registerDownloadListener(DownloadListener, Executor, int)
+     */
+    public static void registerDownloadListener(Set<Long> ids, DownloadListener downloadListener, Executor executor, int delivery) {
+        serviceManager.registerDownloadListener(ids, downloadListener, executor, delivery);
+    }
+
 
     /**
      * unregister download listener for all tasks
@@ -225,6 +268,14 @@ public abstract class YCDownloader {
         serviceManager.startOrResume(id, restart);
     }
 
+    /**
+     * @param callback told whether the task was started, in main thread
+     * @see #startOrResume(long, boolean)
+     */
+    public static void startOrResume(long id, boolean restart, CommandCallback callback) {
+        serviceManager.startOrResume(id, restart, callback);
+    }
+
     /**
      * pause the task is it's running
      *
@@ -234,6 +285,14 @@ public abstract class YCDownloader {
         serviceManager.pause(id);
     }
 
+    /**
+     * @param callback told whether the task was running and is being paused, in main thread
+     * @see #pause(long)
+     */
+    public static void pause(long id, CommandCallback callback) {
+        serviceManager.pause(id, callback);
+    }
+
     /**
      * start all tasks that are not in running or preparing state
      */
@@ -256,6 +315,14 @@ public abstract class YCDownloader {
         serviceManager.cancel(id);
     }
 
+    /**
+     * @param callback told whether the task was found and is being cancelled, false if it already was, in main thread
+     * @see #cancel(long)
+     */
+    public static void cancel(long id, CommandCallback callback) {
+        serviceManager.cancel(id, callback);
+    }
+
     /**
      * submit a task to downloader service
      *
@@ -269,16 +336,83 @@ public abstract class YCDownloader {
         serviceManager.submit(url, path, filename, new ISubmitCallback.Stub() {
             @Override
             public void submitSuccess(DownloadInfo downloadInfo) {
-                DownloadExecutors.androidMain.execute(() -> listener.submitSuccess(downloadInfo));
+                AndroidExecutors.main.execute(() -> listener.submitSuccess(downloadInfo));
             }
 
             @Override
             public void submitFail(String reason) {
-                DownloadExecutors.androidMain.execute(() -> listener.submitFail(new Exception(reason)));
+                AndroidExecutors.main.execute(() -> listener.submitFail(new Exception(reason)));
             }
         });
     }
 
+    /**
+     * submit tasks to downloader service together: one database transaction, one tasks changed event
+     * and one scheduling pass instead of one for each task. Keep a batch to some hundreds of requests,
+     * since it crosses processes in one transaction.
+     *
+     * @param listener told all the created tasks, or why none was created
+     */
+    public static void submitBatch(List<SubmitRequest> requests, BatchSubmitListener listener) {
+        serviceManager.submitBatch(new ArrayList<>(requests), new IBatchSubmitCallback.Stub() {
+            @Override
+            public void submitSuccess(List<DownloadInfo> downloadInfoList) {
+                AndroidExecutors.main.execute(() -> listener.submitSuccess(downloadInfoList));
+            }
+
+            @Override
+            public void submitFail(String reason) {
+                AndroidExecutors.main.execute(() -> listener.submitFail(new Exception(reason)));
+            }
+        });
+    }
+
+    /**
+     * {@link #startOrResume(long, boolean)} for all the tasks, with one scheduling pass
+     */
+    public static void startOrResume(long[] ids, boolean restart) {
+        serviceManager.startOrResume(ids.clone(), restart);
+    }
+
+    /**
+     * @param callback told whether all the tasks were started, in main thread
+     * @see #startOrResume(long[], boolean)
+     */
+    public static void startOrResume(long[] ids, boolean restart, CommandCallback callback) {
+        serviceManager.startOrResume(ids.clone(), restart, callback);
+    }
+
+    /**
+     * {@link #pause(long)} for all the tasks
+     */
+    public static void pause(long[] ids) {
+        serviceManager.pause(ids.clone());
+    }
+
+    /**
+     * @param callback told whether all the tasks were found and every one of them was running and is being paused,
+     *                 in main thread
+     * @see #pause(long[])
+     */
+    public static void pause(long[] ids, CommandCallback callback) {
+        serviceManager.pause(ids.clone(), callback);
+    }
+
+    /**
+     * {@link #delete(long, boolean)} for all the tasks, with their records deleted together
+     */
+    public static void delete(long[] ids, boolean deleteFile) {
+        serviceManager.delete(ids.clone(), deleteFile);
+    }
+
+    /**
+     * @param callback told whether all the tasks were deleted, in main thread
+     * @see #delete(long[], boolean)
+     */
+    public static void delete(long[] ids, boolean deleteFile, CommandCallback callback) {
+        serviceManager.delete(ids.clone(), deleteFile, callback);
+    }
+
     /**
      * delete this download task from db
      * the download tmp file will be deleted anyway
@@ -290,14 +424,55 @@ public abstract class YCDownloader {
         serviceManager.delete(id, deleteFile);
     }
 
+    /**
+     * @param callback told whether the task was deleted, in main thread
+     * @see #delete(long, boolean)
+     */
+    public static void delete(long id, boolean deleteFile, CommandCallback callback) {
+        serviceManager.delete(id, deleteFile, callback);
+    }
+
     /*---------------------  query sould be called in worker thread! --------------------- */
     @WorkerThread
     public static DownloadInfo queryDownloadInfo(long id) {
         return serviceManager.queryDownloadInfo(id);
     }
 
+    /**
+     * connection timings, bytes, retries and disk latency of a task, kept in memory
+     * while the download service lives
+     *
+     * @return null if the task has not run since the service started
+     */
+    @WorkerThread
+    public static DownloadStats queryDownloadStats(long id) {
+        return serviceManager.queryDownloadStats(id);
+    }
+
+    /**
+     * @return {@link DownloadStats} summed over all tasks since the download service started
+     */
+    @WorkerThread
+    public static DownloadStats queryAggregateDownloadStats() {
+        return serviceManager.queryAggregateDownloadStats();
+    }
+
+    /**
+     * write latest task lifecycle events as a Chrome trace JSON file, which can be opened
+     * in chrome://tracing or ui.perfetto.dev
+     * tracing must be enabled by {@link Configuration.Builder#setTraceBufferSize(int)}
+     *
+     * @param path file written by the download service process
+     * @return false if tracing is disabled or the file cannot be written
+     */
+    @WorkerThread
+    public static boolean exportTrace(String path) {
+        return serviceManager.exportTrace(path);
+    }
+
     /**
      * state != FINISH && state != CANCELLED
+     * answered from a local copy of the active tasks once it is synced with the service
      */
     @WorkerThread
     public static List<DownloadInfo> queryActiveDownloadInfoList() {
@@ -320,6 +495,16 @@ public abstract class YCDownloader {
         return serviceManager.queryFinishedDownloadInfoList();
     }
 
+    /**
+     * Keyset paged query for list screens; a page costs the same however long the history is.
+     * Get the next page by {@link DownloadQuery#next(DownloadPage)}.
+     */
+    @WorkerThread
+    public static DownloadPage queryDownloadPage(DownloadQuery query) {
+        return serviceManager.queryDownloadPage(query);
+    }
+
+    /*------- config getters are served from a copy kept up to date by the service ------- */
     public static long getSpeedLimit() {
         return serviceManager.getSpeedLimit();
     }
@@ -372,7 +557,7 @@ public abstract class YCDownloader {
     }
 
     /**
-     * @param avoidFrameDrop if avoidFrameDrop {@link DownloadListener#onDownloadProgressUpdate(long, long, long, double)}
+     * @param avoidFrameDrop if avoidFrameDrop {@link DownloadListener#onDownloadProgressUpdate(long, long, long, double, long)}
      *                       will be called with certain interval to avoid send to many message to
      *                       main thread
      */
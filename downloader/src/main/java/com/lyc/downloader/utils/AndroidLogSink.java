@@ -0,0 +1,27 @@
+package com.lyc.downloader.utils;
+
+import android.util.Log;
+import com.lyc.downloader.BuildConfig;
+
+/**
+ * Sends {@link Logger} output to logcat in debug builds.
+ */
+public class AndroidLogSink implements Logger.Sink {
+
+    public static void installIfDebug() {
+        Logger.setSink(BuildConfig.DEBUG ? new AndroidLogSink() : null);
+    }
+
+    @Override
+    public void log(int priority, String tag, String msg, Throwable tr) {
+        String text;
+        if (tr == null) {
+            text = msg;
+        } else if (msg == null) {
+            text = Log.getStackTraceString(tr);
+        } else {
+            text = msg + '\n' + Log.getStackTraceString(tr);
+        }
+        Log.println(priority, tag, text == null ? "" : text);
+    }
+}
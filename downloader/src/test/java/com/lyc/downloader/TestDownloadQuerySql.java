@@ -0,0 +1,83 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestDownloadQuerySql {
+
+    private static final MimeTypeResolver MIME_TYPES = new MimeTypeResolver() {
+        @Override
+        public String extensionFromMimeType(String mimeType) {
+            return "image/png".equals(mimeType) ? "png" : null;
+        }
+
+        @Override
+        public String extensionFromUrl(String url) {
+            return null;
+        }
+    };
+
+    @Test
+    public void testFirstPage() {
+        DownloadQuery query = new DownloadQuery.Builder()
+                .setStates(DownloadTask.FINISH)
+                .setOrderBy(DownloadQuery.ORDER_BY_FINISHED_TIME)
+                .setPageSize(20)
+                .build();
+        DownloadQuerySql querySql = new DownloadQuerySql(query, MIME_TYPES);
+        Assert.assertTrue(querySql.sql.contains("finished_time IS NOT NULL"));
+        Assert.assertTrue(querySql.sql.endsWith("ORDER BY finished_time DESC, _id DESC LIMIT 21"));
+        Assert.assertEquals(Arrays.asList(Integer.toString(DownloadTask.FINISH)), Arrays.asList(querySql.args));
+    }
+
+    @Test
+    public void testSeveralStatesReadOnePagePerState() {
+        DownloadQuery query = new DownloadQuery.Builder()
+                .setStates(DownloadTask.PAUSED, DownloadTask.ERROR, DownloadTask.PAUSED)
+                .setPageSize(20)
+                .build();
+        DownloadPage page = new DownloadPage(Arrays.asList(
+                new DownloadSummary(7, DownloadTask.PAUSED, 1, 2, "a")), true, 1000, 7);
+        DownloadQuerySql querySql = new DownloadQuerySql(query.next(page), MIME_TYPES);
+        // no IN (...): each state seeks its own range of the (state, time, id) index
+        Assert.assertFalse(querySql.sql.contains(" IN ("));
+        Assert.assertEquals(2, querySql.sql.split(" UNION ALL ").length);
+        Assert.assertEquals(3, querySql.sql.split("ORDER BY created_time DESC, _id DESC LIMIT 21").length);
+        Assert.assertEquals(Arrays.asList(Integer.toString(DownloadTask.PAUSED), "1000", "1000", "7",
+                Integer.toString(DownloadTask.ERROR), "1000", "1000", "7"), Arrays.asList(querySql.args));
+    }
+
+    @Test
+    public void testNextPage() {
+        DownloadQuery query = new DownloadQuery.Builder().setPageSize(2).build();
+        DownloadPage page = new DownloadPage(Arrays.asList(
+                new DownloadSummary(9, DownloadTask.PAUSED, 1, 2, "a"),
+                new DownloadSummary(7, DownloadTask.PAUSED, 1, 2, "b")), true, 1000, 7);
+        DownloadQuery next = query.next(page);
+        Assert.assertNotNull(next);
+        DownloadQuerySql querySql = new DownloadQuerySql(next, MIME_TYPES);
+        Assert.assertTrue(querySql.sql.contains("created_time <= ? AND (created_time < ? OR _id < ?)"));
+        Assert.assertEquals(Arrays.asList("1000", "1000", "7"), Arrays.asList(querySql.args));
+        Assert.assertNull(next.next(new DownloadPage(Arrays.asList(), false, 0, -1)));
+    }
+
+    @Test
+    public void testFilters() {
+        DownloadQuery query = new DownloadQuery.Builder()
+                .setHost("a_b.com")
+                .setCreatedTime(100, 200)
+                .setExtensions("APK")
+                .setMimeTypes("image/png", "unknown/type")
+                .build();
+        DownloadQuerySql querySql = new DownloadQuerySql(query, MIME_TYPES);
+        Assert.assertEquals(Arrays.asList("%://a\\_b.com", "%://a\\_b.com/%", "%://a\\_b.com:%", "%://a\\_b.com?%",
+                "100", "200", "%.apk", "%.png"), Arrays.asList(querySql.args));
+
+        DownloadQuerySql unknown = new DownloadQuerySql(new DownloadQuery.Builder()
+                .setMimeTypes("unknown/type").build(), MIME_TYPES);
+        Assert.assertTrue(unknown.sql.contains(" AND 0"));
+        Assert.assertEquals(0, unknown.args.length);
+    }
+}
@@ -0,0 +1,88 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.DownloadStatsCollector.RangeRecorder;
+import com.lyc.downloader.DownloadStatsCollector.TaskRecorder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDownloadStatsCollector {
+
+    @Test
+    public void testTaskSnapshot() {
+        DownloadStatsCollector collector = new DownloadStatsCollector();
+        TaskRecorder task = collector.taskRecorder(1);
+        Assert.assertSame(task, collector.taskRecorder(1));
+        Assert.assertSame(task.range(0), task.range(0));
+
+        RangeRecorder range0 = task.range(0);
+        RangeRecorder range1 = task.range(1);
+        range0.recordBytes(100);
+        range0.recordRetry();
+        range0.recordDiskWrite(2000000);
+        range1.recordBytes(50);
+        range1.recordWasted(20);
+        range1.recordDiskWrite(4000000);
+        task.recordWasted(30);
+
+        DownloadStats stats = collector.query(1);
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(1, stats.getId());
+        Assert.assertEquals(2, stats.getRanges().size());
+        DownloadStats.Metrics total = stats.getTotal();
+        Assert.assertEquals(-1, total.getTid());
+        Assert.assertEquals(150, total.getBytes());
+        Assert.assertEquals(1, total.getRetryCount());
+        Assert.assertEquals(50, total.getWastedBytes());
+        Assert.assertEquals(2, total.getDiskWriteCount());
+        Assert.assertEquals(3, total.getAverageDiskWriteMillis(), 1e-9);
+        Assert.assertEquals(4, total.getMaxDiskWriteMillis(), 1e-9);
+        Assert.assertNull(collector.query(2));
+    }
+
+    @Test
+    public void testAggregateKeepsRemovedTasks() {
+        DownloadStatsCollector collector = new DownloadStatsCollector();
+        collector.taskRecorder(1).range(0).recordBytes(100);
+        collector.taskRecorder(2).range(0).recordBytes(200);
+        collector.remove(1);
+
+        Assert.assertNull(collector.query(1));
+        DownloadStats aggregate = collector.queryAggregate();
+        Assert.assertEquals(DownloadStats.AGGREGATE_ID, aggregate.getId());
+        Assert.assertEquals(2, aggregate.getTaskCount());
+        Assert.assertEquals(300, aggregate.getTotal().getBytes());
+        Assert.assertTrue(aggregate.getRanges().isEmpty());
+    }
+
+    @Test
+    public void testFinishedTasksDropRecorders() {
+        DownloadStatsCollector collector = new DownloadStatsCollector();
+        TaskRecorder task = collector.taskRecorder(1);
+        task.range(0).recordBytes(100);
+        collector.finish(1);
+
+        // queryable after the finish callback, but no longer held by a recorder
+        DownloadStats stats = collector.query(1);
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(100, stats.getTotal().getBytes());
+        DownloadStats aggregate = collector.queryAggregate();
+        Assert.assertEquals(1, aggregate.getTaskCount());
+        Assert.assertEquals(100, aggregate.getTotal().getBytes());
+
+        for (long id = 2; id <= DownloadStatsCollector.MAX_FINISHED_STATS + 1; id++) {
+            collector.taskRecorder(id).range(0).recordBytes(1);
+            collector.finish(id);
+        }
+        Assert.assertNull(collector.query(1));
+        Assert.assertNotNull(collector.query(2));
+        aggregate = collector.queryAggregate();
+        Assert.assertEquals(DownloadStatsCollector.MAX_FINISHED_STATS + 1, aggregate.getTaskCount());
+        Assert.assertEquals(100 + DownloadStatsCollector.MAX_FINISHED_STATS, aggregate.getTotal().getBytes());
+
+        // deleted after finishing: counted once
+        collector.remove(2);
+        Assert.assertNull(collector.query(2));
+        Assert.assertEquals(DownloadStatsCollector.MAX_FINISHED_STATS + 1, collector.queryAggregate().getTaskCount());
+        Assert.assertNotSame(task, collector.taskRecorder(1));
+    }
+}
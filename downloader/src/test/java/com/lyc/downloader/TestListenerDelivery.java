@@ -0,0 +1,151 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.db.DownloadInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestListenerDelivery {
+
+    @Test
+    public void testKeepsLatestProgressInOrder() {
+        ArrayDeque<Runnable> posted = new ArrayDeque<>();
+        RecordingListener listener = new RecordingListener();
+        ListenerDelivery delivery = new ListenerDelivery(listener, posted::offerLast, YCDownloader.DELIVER_LATEST_PROGRESS);
+
+        delivery.deliverProgress(1, 100, 1, 0, -1);
+        delivery.deliverProgress(2, 100, 1, 0, -1);
+        delivery.deliverProgress(1, 100, 2, 0, -1);
+        delivery.deliver(ListenerDelivery.PAUSED, 1, null);
+        // after the state change: not merged into the progress before it
+        delivery.deliverProgress(1, 100, 3, 0, -1);
+        delivery.deliverProgress(2, 100, 2, 0, -1);
+        Assert.assertEquals(1, posted.size());
+
+        posted.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:p2", "2:p2", "1:paused", "1:p3"), listener.delivered);
+        Assert.assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void testDeliversAllProgress() {
+        ArrayDeque<Runnable> posted = new ArrayDeque<>();
+        RecordingListener listener = new RecordingListener();
+        ListenerDelivery delivery = new ListenerDelivery(listener, posted::offerLast, YCDownloader.DELIVER_ALL);
+
+        delivery.deliverProgress(1, 100, 1, 0, -1);
+        delivery.deliverProgress(1, 100, 2, 0, -1);
+        delivery.deliverError(1, DownloadError.ERROR_NETWORK, false);
+        posted.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:p1", "1:p2", "1:error" + DownloadError.ERROR_NETWORK), listener.delivered);
+    }
+
+    @Test
+    public void testDrainsInBatches() {
+        ArrayDeque<Runnable> posted = new ArrayDeque<>();
+        RecordingListener listener = new RecordingListener();
+        ListenerDelivery delivery = new ListenerDelivery(listener, posted::offerLast, YCDownloader.DELIVER_LATEST_PROGRESS);
+        listener.onConnecting = () -> {
+            delivery.deliverProgress(1, 100, 1, 0, -1);
+            delivery.deliverProgress(1, 100, 2, 0, -1);
+        };
+
+        delivery.deliver(ListenerDelivery.CONNECTING, 1, null);
+        posted.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:connecting"), listener.delivered);
+        // queued while draining: runs in the next batch, so the executor is not monopolized
+        Assert.assertEquals(1, posted.size());
+        posted.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:connecting", "1:p2"), listener.delivered);
+
+        listener.onConnecting = () -> {
+            throw new IllegalStateException();
+        };
+        delivery.deliver(ListenerDelivery.CONNECTING, 2, null);
+        delivery.deliver(ListenerDelivery.CANCELED, 2, null);
+        try {
+            posted.pollFirst().run();
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+        posted.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:connecting", "1:p2", "2:connecting", "2:canceled"), listener.delivered);
+    }
+
+    @Test
+    public void testUpdateReplacesExecutor() {
+        ArrayDeque<Runnable> first = new ArrayDeque<>();
+        ArrayDeque<Runnable> second = new ArrayDeque<>();
+        RecordingListener listener = new RecordingListener();
+        ListenerDelivery delivery = new ListenerDelivery(listener, first::offerLast, YCDownloader.DELIVER_LATEST_PROGRESS);
+
+        delivery.update(second::offerLast, YCDownloader.DELIVER_ALL);
+        delivery.deliverProgress(1, 100, 1, 0, -1);
+        delivery.deliverProgress(1, 100, 2, 0, -1);
+        Assert.assertTrue(first.isEmpty());
+        second.pollFirst().run();
+        Assert.assertEquals(Arrays.asList("1:p1", "1:p2"), listener.delivered);
+    }
+
+    private static class RecordingListener implements DownloadListener {
+        final List<String> delivered = new ArrayList<>();
+        Runnable onConnecting;
+
+        @Override
+        public void onDownloadConnecting(long id) {
+            delivered.add(id + ":connecting");
+            if (onConnecting != null) {
+                onConnecting.run();
+            }
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps, long etaMillis) {
+            delivered.add(id + ":p" + cur);
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+            delivered.add(downloadInfo.getId() + ":info");
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+            delivered.add(id + ":error" + code);
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+            delivered.add(downloadInfo.getId() + ":start");
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+            delivered.add(id + ":stopping");
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+            delivered.add(id + ":paused");
+        }
+
+        @Override
+        public void onDownloadTaskWait(long id) {
+            delivered.add(id + ":waiting");
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+            delivered.add(id + ":canceled");
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+            delivered.add(downloadInfo.getId() + ":finished");
+        }
+    }
+}
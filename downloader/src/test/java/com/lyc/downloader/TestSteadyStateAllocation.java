@@ -0,0 +1,147 @@
+package com.lyc.downloader;
+
+import com.lyc.downloader.DownloadStatsCollector.RangeRecorder;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation budget of the steady-state download loop: a reader and a writer thread running
+ * the {@link SegmentPipeline} steps of DownloadTask on an endless stream, with stats, tracing
+ * and volume accounting on. Allocated bytes of both threads are measured by the JVM after warm-up.
+ */
+public class TestSteadyStateAllocation {
+    private static final int SEGMENT_SIZE = 8192;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int COALESCE_SIZE = 1 << 18;
+    private static final long WARM_UP_BYTES = 16 << 20;
+    private static final long MEASURED_BYTES = 64 << 20;
+    // bytes per MB downloaded; one small object per 8KB segment would already be ~2KB
+    private static final long BUDGET_PER_MB = 256;
+
+    @Test
+    public void testAllocationPerMB() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("no per-thread allocation counter on this JVM",
+                bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue("per-thread allocation counter not supported",
+                threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        File file = File.createTempFile("allocation", Constants.TMP_FILE_SUFFIX);
+        file.deleteOnExit();
+        DownloadStatsCollector collector = new DownloadStatsCollector();
+        RangeRecorder recorder = collector.taskRecorder(1).range(0);
+        TraceRecorder traceRecorder = new TraceRecorder(1024);
+        DiskVolume volume = new DiskVolume("/", 1);
+        DownloadBuffer downloadBuffer = new DownloadBuffer(SEGMENT_SIZE);
+        long total = WARM_UP_BYTES + MEASURED_BYTES;
+
+        Loop reader = new Loop(threadMXBean) {
+            @Override
+            void runLoop() throws InterruptedException, IOException {
+                InputStream network = new EndlessStream();
+                long downloaded = 0;
+                while (downloaded < total) {
+                    Segment segment = SegmentPipeline.awaitFree(downloadBuffer, recorder, traceRecorder, 1, 0);
+                    int readSize = SegmentPipeline.read(network, segment, total - downloaded);
+                    SegmentPipeline.publish(downloadBuffer, recorder, segment, downloaded, 0, readSize);
+                    downloaded += readSize;
+                    mark(downloaded);
+                }
+            }
+        };
+        Loop writer = new Loop(threadMXBean) {
+            @Override
+            void runLoop() throws InterruptedException, IOException {
+                long written = 0;
+                try (CoalescingFileWriter fileWriter = new CoalescingFileWriter(file, 0, BLOCK_SIZE, COALESCE_SIZE)) {
+                    while (written < total) {
+                        Segment segment = SegmentPipeline.awaitRead(downloadBuffer, recorder, traceRecorder, 1, 0);
+                        try {
+                            SegmentPipeline.write(fileWriter, volume, recorder, segment);
+                            written += segment.readSize;
+                        } finally {
+                            downloadBuffer.enqueueWriteSegment(segment);
+                        }
+                        mark(written);
+                    }
+                    SegmentPipeline.flush(fileWriter, volume, recorder);
+                }
+            }
+        };
+        reader.start();
+        writer.start();
+        reader.join();
+        writer.join();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        Assert.assertNull(reader.failure);
+        Assert.assertNull(writer.failure);
+
+        long mb = MEASURED_BYTES >> 20;
+        long readerPerMB = reader.measured() / mb;
+        long writerPerMB = writer.measured() / mb;
+        Assert.assertTrue("reader allocates " + readerPerMB + "B/MB", readerPerMB <= BUDGET_PER_MB);
+        Assert.assertTrue("writer allocates " + writerPerMB + "B/MB", writerPerMB <= BUDGET_PER_MB);
+    }
+
+    /**
+     * A network that always has a full segment ready.
+     */
+    private static class EndlessStream extends InputStream {
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return len;
+        }
+    }
+
+    private abstract static class Loop extends Thread {
+        private final com.sun.management.ThreadMXBean threadMXBean;
+        private long startBytes = -1;
+        private long endBytes;
+        volatile Throwable failure;
+
+        Loop(com.sun.management.ThreadMXBean threadMXBean) {
+            this.threadMXBean = threadMXBean;
+        }
+
+        abstract void runLoop() throws Exception;
+
+        /**
+         * Called after every segment on this thread; no allocation in here.
+         */
+        void mark(long bytes) {
+            if (startBytes < 0 && bytes >= WARM_UP_BYTES) {
+                startBytes = threadMXBean.getThreadAllocatedBytes(getId());
+            }
+            if (bytes >= WARM_UP_BYTES + MEASURED_BYTES) {
+                endBytes = threadMXBean.getThreadAllocatedBytes(getId());
+            }
+        }
+
+        long measured() {
+            return endBytes - startBytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runLoop();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+public class TestTraceRecorder {
+
+    @Test
+    public void testRingKeepsLatest() {
+        TraceRecorder traceRecorder = new TraceRecorder(6);
+        for (int i = 0; i < 20; i++) {
+            traceRecorder.instant(TraceRecorder.STATE, i, TraceRecorder.LANE_TASK, DownloadTask.RUNNING);
+        }
+        List<TraceRecorder.Event> events = traceRecorder.snapshot();
+        // rounded up to 8
+        Assert.assertEquals(8, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(12 + i, events.get(i).taskId);
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        TraceRecorder.DISABLED.instant(TraceRecorder.STATE, 1, TraceRecorder.LANE_TASK, DownloadTask.RUNNING);
+        Assert.assertFalse(TraceRecorder.DISABLED.isEnabled());
+        Assert.assertTrue(TraceRecorder.DISABLED.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testChromeTrace() throws IOException {
+        TraceRecorder traceRecorder = new TraceRecorder(64);
+        long start = System.nanoTime();
+        traceRecorder.instant(TraceRecorder.SCHEDULE, 1, TraceRecorder.LANE_SCHEDULER, TraceRecorder.SCHEDULE_START);
+        traceRecorder.instant(TraceRecorder.STATE, 1, TraceRecorder.LANE_TASK, DownloadTask.CONNECTING);
+        traceRecorder.span(TraceRecorder.CONNECT, 1, TraceRecorder.readerLane(0), start, 1);
+        traceRecorder.instant(TraceRecorder.STATE, 1, TraceRecorder.LANE_TASK, DownloadTask.RUNNING);
+        traceRecorder.instant(TraceRecorder.RANGE_END, 1, TraceRecorder.readerLane(0), 1024);
+
+        StringWriter writer = new StringWriter();
+        traceRecorder.exportChromeTrace(writer);
+        String json = writer.toString();
+        Assert.assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        Assert.assertTrue(json.endsWith("]}"));
+        Assert.assertTrue(json.contains("\"name\":\"CONNECTING\",\"ph\":\"X\""));
+        Assert.assertTrue(json.contains("\"name\":\"RUNNING\",\"ph\":\"X\""));
+        Assert.assertTrue(json.contains("\"args\":{\"name\":\"range 0 read\"}"));
+        Assert.assertTrue(json.contains("\"decision\":\"start\""));
+        Assert.assertTrue(json.contains("\"bytes\":1024"));
+        int depth = 0;
+        for (char c : json.toCharArray()) {
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+            Assert.assertTrue(depth >= 0);
+        }
+        Assert.assertEquals(0, depth);
+    }
+}
@@ -216,7 +216,7 @@ class MainViewModel : ViewModel(), SubmitListener, DownloadListener, DownloadTas
         }
     }
 
-    override fun onDownloadProgressUpdate(id: Long, total: Long, cur: Long, bps: Double) {
+    override fun onDownloadProgressUpdate(id: Long, total: Long, cur: Long, bps: Double, etaMillis: Long) {
         doUpdateCallback(id) { item ->
             item.totalSize = total
             item.downloadedSize = cur